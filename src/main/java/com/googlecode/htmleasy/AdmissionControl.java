@@ -0,0 +1,587 @@
+package com.googlecode.htmleasy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.management.ObjectName;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.jboss.resteasy.core.ResourceMethod;
+import org.jboss.resteasy.core.ServerResponse;
+import org.jboss.resteasy.spi.Failure;
+import org.jboss.resteasy.spi.HttpRequest;
+import org.jboss.resteasy.spi.ResteasyProviderFactory;
+import org.jboss.resteasy.spi.interception.PreProcessInterceptor;
+
+import com.googlecode.htmleasy.provider.CachedOutput;
+import com.googlecode.htmleasy.provider.ViewCache;
+
+/**
+ * Limits how many requests the Htmleasy dispatchers process at once, so that a
+ * traffic spike gets fast rejections instead of piling into expensive renders
+ * until the container's threads run out.  Requests over the limit wait briefly in
+ * a bounded queue and are then turned away with a cached 503 page, or with stale
+ * output from the ViewCache if there is some.
+ *
+ * The limit can be fixed or adaptive.  An adaptive limit follows AIMD: it grows by
+ * one after a full limit's worth of requests finish under the target latency, and
+ * shrinks by 10% (at most once per target latency interval) when a request takes
+ * longer.
+ *
+ * Requests have a priority based on their path.  Low priority requests may only
+ * use half the limit and normal ones 90%, leaving headroom for high priority ones.
+ *
+ * Configure it with init parameters on the dispatcher filter or servlet; it is
+ * off unless htmleasy.admission.limit is set:
+ *
+ *   htmleasy.admission.limit          - the concurrency limit (or the starting limit if adaptive)
+ *   htmleasy.admission.adaptive       - true to adapt the limit; default false
+ *   htmleasy.admission.targetLatency  - ms; the latency the adaptive limit aims for; default 500
+ *   htmleasy.admission.maxLimit       - upper bound of an adaptive limit; default 4 x limit
+ *   htmleasy.admission.queueSize      - how many requests may wait; default the limit
+ *   htmleasy.admission.maxWait        - ms a queued request waits before rejection; default 100
+ *   htmleasy.admission.highPriority   - comma-separated path prefixes within the context
+ *   htmleasy.admission.lowPriority    - comma-separated path prefixes within the context
+ *   htmleasy.admission.rejectPage     - webapp resource to send with the 503, e.g. /busy.html
+ *
+ * Only requests RESTEasy dispatches to a resource method are limited; static
+ * assets and anything else the dispatcher filter passes down the chain are not.
+ * The dispatchers install an Interceptor which takes a slot once RESTEasy has
+ * matched the resource method, and give it back with finish() once the response
+ * has been written.  They also register the control as an MBean so that the
+ * limit, queue depth and rejection rate can be watched.
+ */
+public class AdmissionControl implements AdmissionControlMBean
+{
+	/** */
+	private static final Logger log = Logger.getLogger(AdmissionControl.class.getName());
+	
+	/** Init parameter prefix */
+	public static final String PARAM_PREFIX = "htmleasy.admission.";
+	
+	/** */
+	public enum Priority
+	{
+		LOW(0.5), NORMAL(0.9), HIGH(1.0);
+		
+		/** The share of the limit requests of this priority may use */
+		private final double share;
+		
+		Priority(double share) { this.share = share; }
+	}
+	
+	/** Request attribute holding the control of the dispatcher handling the request */
+	public static final String ATTRIBUTE = AdmissionControl.class.getName();
+	
+	/** Request attribute holding the System.nanoTime() a slot was taken, until it is released */
+	private static final String ADMITTED_ATTRIBUTE = AdmissionControl.class.getName() + ".admitted";
+	
+	/** Sent with 503s if no reject page is configured */
+	private static final byte[] DEFAULT_REJECT_PAGE = (
+			"<html><head><title>Busy</title></head>"
+			+ "<body><h1>Service busy</h1><p>Please try again in a moment.</p></body></html>").getBytes(Charset.forName("UTF-8"));
+	
+	/**
+	 * Takes a slot for each request RESTEasy dispatches to a resource method, on
+	 * behalf of the control in the request's ATTRIBUTE, or returns the rejection.
+	 * The dispatchers register one with their provider factory.
+	 */
+	public static class Interceptor implements PreProcessInterceptor
+	{
+		/** */
+		public ServerResponse preProcess(HttpRequest resteasyRequest, ResourceMethod method) throws Failure, WebApplicationException
+		{
+			HttpServletRequest request = ResteasyProviderFactory.getContextData(HttpServletRequest.class);
+			if (request == null || request.getAttribute(ADMITTED_ATTRIBUTE) != null)
+				return null;
+			
+			Object control = request.getAttribute(ATTRIBUTE);
+			if (!(control instanceof AdmissionControl))
+				return null;
+			
+			return ((AdmissionControl) control).enter(request);
+		}
+	}
+	
+	/** */
+	private final Object lock = new Object();
+	
+	/** Guarded by lock */
+	private int limit;
+	private int inFlight;
+	private int queued;
+	private long admitted;
+	private long rejected;
+	private long servedStale;
+	private int goodSinceIncrease;
+	private long lastDecrease;
+	
+	/** */
+	private final boolean adaptive;
+	private final int minLimit;
+	private final int maxLimit;
+	private final long targetLatencyNanos;
+	private final int queueSize;
+	private final long maxWaitNanos;
+	
+	private List<String> highPriority = Collections.emptyList();
+	private List<String> lowPriority = Collections.emptyList();
+	private byte[] rejectPage = DEFAULT_REJECT_PAGE;
+	private String rejectContentType = "text/html; charset=UTF-8";
+	
+	/**
+	 * A fixed limit.
+	 */
+	public AdmissionControl(int limit, int queueSize, long maxWaitMillis)
+	{
+		this(limit, false, 0, limit, queueSize, maxWaitMillis);
+	}
+	
+	/**
+	 * @param limit is the concurrency limit, or the starting limit if adaptive
+	 * @param targetLatencyMillis is the latency an adaptive limit aims for
+	 * @param maxLimit bounds an adaptive limit
+	 */
+	public AdmissionControl(int limit, boolean adaptive, long targetLatencyMillis, int maxLimit, int queueSize, long maxWaitMillis)
+	{
+		if (limit < 1)
+			throw new IllegalArgumentException("limit must be positive");
+		
+		this.limit = limit;
+		this.adaptive = adaptive;
+		this.minLimit = Math.min(limit, 2);
+		this.maxLimit = Math.max(limit, maxLimit);
+		this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis);
+		this.queueSize = queueSize;
+		this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+	}
+	
+	/**
+	 * Builds a control from dispatcher init parameters.
+	 * 
+	 * @param params are the init parameters, by name
+	 * @return null if admission control is not configured
+	 */
+	public static AdmissionControl fromInitParameters(Map<String, String> params, ServletContext context)
+	{
+		String limitParam = params.get(PARAM_PREFIX + "limit");
+		if (limitParam == null)
+			return null;
+		
+		int limit = Integer.parseInt(limitParam.trim());
+		boolean adaptive = Boolean.parseBoolean(param(params, "adaptive", "false"));
+		long target = Long.parseLong(param(params, "targetLatency", "500"));
+		int maxLimit = Integer.parseInt(param(params, "maxLimit", Integer.toString(limit * 4)));
+		int queueSize = Integer.parseInt(param(params, "queueSize", Integer.toString(limit)));
+		long maxWait = Long.parseLong(param(params, "maxWait", "100"));
+		
+		AdmissionControl control = new AdmissionControl(limit, adaptive, target, maxLimit, queueSize, maxWait);
+		control.setHighPriorityPaths(split(params.get(PARAM_PREFIX + "highPriority")));
+		control.setLowPriorityPaths(split(params.get(PARAM_PREFIX + "lowPriority")));
+		
+		String rejectPage = params.get(PARAM_PREFIX + "rejectPage");
+		if (rejectPage != null)
+			control.loadRejectPage(context, rejectPage.trim());
+		
+		return control;
+	}
+	
+	/** */
+	private static String param(Map<String, String> params, String name, String dflt)
+	{
+		String value = params.get(PARAM_PREFIX + name);
+		return (value == null) ? dflt : value.trim();
+	}
+	
+	/** */
+	private static List<String> split(String value)
+	{
+		List<String> parts = new ArrayList<String>();
+		if (value != null)
+			for (String part : value.split(","))
+				if (part.trim().length() > 0)
+					parts.add(part.trim());
+		
+		return parts;
+	}
+	
+	/** @param prefixes are paths within the context whose requests get HIGH priority */
+	public void setHighPriorityPaths(List<String> prefixes) { this.highPriority = new ArrayList<String>(prefixes); }
+	
+	/** @param prefixes are paths within the context whose requests get LOW priority */
+	public void setLowPriorityPaths(List<String> prefixes) { this.lowPriority = new ArrayList<String>(prefixes); }
+	
+	/** Sets the body sent with 503 responses */
+	public void setRejectPage(byte[] page, String contentType)
+	{
+		this.rejectPage = page;
+		this.rejectContentType = contentType;
+	}
+	
+	/** Reads the reject page once so rejections never touch the disk */
+	private void loadRejectPage(ServletContext context, String path)
+	{
+		InputStream in = context.getResourceAsStream(path);
+		if (in == null)
+		{
+			log.warning("Admission control reject page not found: " + path);
+			return;
+		}
+		
+		try
+		{
+			try
+			{
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				byte[] buf = new byte[4096];
+				int read;
+				while ((read = in.read(buf)) >= 0)
+					bytes.write(buf, 0, read);
+				
+				String type = context.getMimeType(path);
+				this.setRejectPage(bytes.toByteArray(), type == null ? "text/html" : type);
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch (IOException ex)
+		{
+			log.warning("Unable to read admission control reject page " + path + ": " + ex);
+		}
+	}
+	
+	/**
+	 * @return the priority of the request, from its path
+	 */
+	public Priority priorityOf(HttpServletRequest request)
+	{
+		String path = request.getRequestURI().substring(request.getContextPath().length());
+		
+		for (String prefix : this.highPriority)
+			if (path.startsWith(prefix))
+				return Priority.HIGH;
+		
+		for (String prefix : this.lowPriority)
+			if (path.startsWith(prefix))
+				return Priority.LOW;
+		
+		return Priority.NORMAL;
+	}
+	
+	/**
+	 * Takes a slot for the request, remembering it in the request so that finish()
+	 * gives it back.
+	 * 
+	 * @return null if the request may proceed, otherwise the response to send instead
+	 */
+	ServerResponse enter(HttpServletRequest request)
+	{
+		boolean admitted;
+		try
+		{
+			admitted = this.acquire(this.priorityOf(request));
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			admitted = false;
+		}
+		
+		if (!admitted)
+			return ServerResponse.copyIfNotServerResponse(this.rejection(request));
+		
+		request.setAttribute(ADMITTED_ATTRIBUTE, System.nanoTime());
+		return null;
+	}
+	
+	/**
+	 * Gives back the slot the Interceptor took for the request, if it took one.  The
+	 * dispatchers call this once the response has been written.
+	 */
+	public static void finish(HttpServletRequest request)
+	{
+		Object admitted = request.getAttribute(ADMITTED_ATTRIBUTE);
+		Object control = request.getAttribute(ATTRIBUTE);
+		if (admitted instanceof Long && control instanceof AdmissionControl)
+		{
+			request.removeAttribute(ADMITTED_ATTRIBUTE);
+			((AdmissionControl) control).release(System.nanoTime() - (Long) admitted);
+		}
+	}
+	
+	/**
+	 * Admits the request or sends the rejection, for callers limiting something other
+	 * than RESTEasy dispatches.  A true result must be followed by exactly one call to
+	 * release().
+	 * 
+	 * @return true if the request may proceed; false if a 503 has been sent
+	 */
+	public boolean admit(HttpServletRequest request, HttpServletResponse response) throws IOException
+	{
+		boolean admitted;
+		try
+		{
+			admitted = this.acquire(this.priorityOf(request));
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			admitted = false;
+		}
+		
+		if (!admitted)
+			this.reject(request, response);
+		
+		return admitted;
+	}
+	
+	/**
+	 * Waits, within the queue bounds, for a slot.  A true result must be followed
+	 * by exactly one call to release().
+	 * 
+	 * @return true if the request may proceed, false if it should be rejected
+	 */
+	public boolean acquire(Priority priority) throws InterruptedException
+	{
+		synchronized (this.lock)
+		{
+			if (this.inFlight < this.threshold(priority))
+			{
+				this.inFlight++;
+				this.admitted++;
+				return true;
+			}
+			
+			if (this.queued >= this.queueSize || this.maxWaitNanos <= 0)
+			{
+				this.rejected++;
+				return false;
+			}
+			
+			this.queued++;
+			try
+			{
+				long deadline = System.nanoTime() + this.maxWaitNanos;
+				while (this.inFlight >= this.threshold(priority))
+				{
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0)
+					{
+						this.rejected++;
+						return false;
+					}
+					
+					TimeUnit.NANOSECONDS.timedWait(this.lock, remaining);
+				}
+				
+				this.inFlight++;
+				this.admitted++;
+				return true;
+			}
+			finally
+			{
+				this.queued--;
+			}
+		}
+	}
+	
+	/**
+	 * Frees the slot taken by acquire().
+	 * 
+	 * @param latencyNanos is how long the request took; it drives an adaptive limit
+	 */
+	public void release(long latencyNanos)
+	{
+		synchronized (this.lock)
+		{
+			this.inFlight--;
+			
+			if (this.adaptive)
+				this.adapt(latencyNanos);
+			
+			this.lock.notifyAll();
+		}
+	}
+	
+	/** Called with the lock held */
+	private void adapt(long latencyNanos)
+	{
+		long now = System.nanoTime();
+		
+		if (latencyNanos > this.targetLatencyNanos)
+		{
+			this.goodSinceIncrease = 0;
+			
+			// One slow batch shouldn't collapse the limit, so back off once per interval
+			if (now - this.lastDecrease > this.targetLatencyNanos)
+			{
+				this.limit = Math.max(this.minLimit, (int) (this.limit * 0.9));
+				this.lastDecrease = now;
+			}
+		}
+		else if (++this.goodSinceIncrease >= this.limit)
+		{
+			this.goodSinceIncrease = 0;
+			this.limit = Math.min(this.maxLimit, this.limit + 1);
+		}
+	}
+	
+	/** Called with the lock held */
+	private int threshold(Priority priority)
+	{
+		return Math.max(1, (int) (this.limit * priority.share));
+	}
+	
+	/**
+	 * @return the cached 503 response, or if the ViewCache holds output for the
+	 *  request which hasn't expired completely, that instead
+	 */
+	public Response rejection(HttpServletRequest request)
+	{
+		// A stale page beats no page at all
+		if ("GET".equals(request.getMethod()))
+		{
+			ViewCache cache = ViewCache.getInstance();
+			final CachedOutput cached = cache.get(cache.key(request));
+			if (cached != null && !cached.isDead(System.currentTimeMillis()))
+			{
+				this.rejectedWithCache();
+				
+				StreamingOutput body = new StreamingOutput() {
+					public void write(OutputStream out) throws IOException
+					{
+						Channels.newChannel(out).write(cached.getBody());
+					}
+				};
+				return Response.ok(body, cached.getContentType()).header("Content-Length", cached.getLength()).build();
+			}
+		}
+		
+		return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+			.header("Retry-After", "1")
+			.header("Content-Length", this.rejectPage.length)
+			.entity(this.rejectPage)
+			.type(this.rejectContentType)
+			.build();
+	}
+	
+	/**
+	 * Sends the cached 503 response, or if the ViewCache holds output for the
+	 * request which hasn't expired completely, sends that instead.
+	 */
+	public void reject(HttpServletRequest request, HttpServletResponse response) throws IOException
+	{
+		// A stale page beats no page at all
+		if ("GET".equals(request.getMethod()))
+		{
+			ViewCache cache = ViewCache.getInstance();
+			CachedOutput cached = cache.get(cache.key(request));
+			if (cached != null && !cached.isDead(System.currentTimeMillis()))
+			{
+				this.rejectedWithCache();
+				cached.writeTo(response);
+				return;
+			}
+		}
+		
+		response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+		response.setHeader("Retry-After", "1");
+		response.setContentType(this.rejectContentType);
+		response.setContentLength(this.rejectPage.length);
+		response.getOutputStream().write(this.rejectPage);
+	}
+	
+	/**
+	 * Publishes this control's metrics in the platform MBean server.
+	 * 
+	 * @param name distinguishes this control from others in the JVM, e.g. the filter name
+	 * @return the name registered under, or null if registration failed
+	 */
+	public ObjectName register(String name)
+	{
+		try
+		{
+			ObjectName objectName = new ObjectName("com.googlecode.htmleasy:type=AdmissionControl,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+			return objectName;
+		}
+		catch (Exception ex)
+		{
+			log.warning("Unable to register admission control MBean " + name + ": " + ex);
+			return null;
+		}
+	}
+	
+	/**
+	 * Removes an MBean registered by register(); ignores a null name.
+	 */
+	public static void unregister(ObjectName objectName)
+	{
+		if (objectName == null)
+			return;
+		
+		try
+		{
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		}
+		catch (Exception ex)
+		{
+			log.warning("Unable to unregister " + objectName + ": " + ex);
+		}
+	}
+	
+	/** */
+	private void rejectedWithCache()
+	{
+		synchronized (this.lock)
+		{
+			this.servedStale++;
+		}
+	}
+	
+	/* AdmissionControlMBean */
+	
+	public int getLimit() { synchronized (this.lock) { return this.limit; } }
+	public int getInFlight() { synchronized (this.lock) { return this.inFlight; } }
+	public int getQueued() { synchronized (this.lock) { return this.queued; } }
+	public long getAdmittedCount() { synchronized (this.lock) { return this.admitted; } }
+	public long getRejectedCount() { synchronized (this.lock) { return this.rejected; } }
+	public long getServedStaleCount() { synchronized (this.lock) { return this.servedStale; } }
+	
+	public double getRejectionRate()
+	{
+		synchronized (this.lock)
+		{
+			long total = this.admitted + this.rejected;
+			return (total == 0) ? 0 : (double) this.rejected / total;
+		}
+	}
+	
+	public void resetCounts()
+	{
+		synchronized (this.lock)
+		{
+			this.admitted = 0;
+			this.rejected = 0;
+			this.servedStale = 0;
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package com.googlecode.htmleasy;
+
+/**
+ * JMX view of an AdmissionControl.
+ */
+public interface AdmissionControlMBean
+{
+	/** @return the current concurrency limit, which moves if the control is adaptive */
+	public int getLimit();
+	
+	/** @return requests currently being processed */
+	public int getInFlight();
+	
+	/** @return requests currently waiting for a slot */
+	public int getQueued();
+	
+	/** @return total requests let through */
+	public long getAdmittedCount();
+	
+	/** @return total requests turned away */
+	public long getRejectedCount();
+	
+	/** @return rejected requests which were sent stale cached output instead of a 503 */
+	public long getServedStaleCount();
+	
+	/** @return rejected / (admitted + rejected) since the last reset */
+	public double getRejectionRate();
+	
+	/** Zeroes the counts */
+	public void resetCounts();
+}
@@ -0,0 +1,40 @@
+package com.googlecode.htmleasy;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+/**
+ * Caches the rendered output of a resource method's view, keyed by request path
+ * and query string (plus any headers given to ViewCache.setVaryHeaders(); pages
+ * negotiated on Accept-Language or Accept must list those).  Only GET requests are
+ * cached, and renders which set cookies or don't return 200 are never cached.
+ * 
+ * Once an entry is older than maxAge it is stale.  For staleWhileRevalidate more
+ * seconds it is still served immediately and then re-rendered by one request, on
+ * its own thread after the stale page has been sent; for staleIfError more seconds
+ * it is served if rendering fails.  Views which don't dispatch (ConcurrentViewable)
+ * are re-rendered in the background instead, against a snapshot of the request and
+ * the model returned by the current request, so that model must remain usable
+ * after the request completes.
+ * 
+ * <code>
+ *   @GET @ViewWith("/front.jsp") @CacheOutput(maxAge=30, staleWhileRevalidate=300, staleIfError=3600)
+ *   public FrontPage front() { ... }
+ * </code>
+ */
+@Target(METHOD)
+@Retention(RUNTIME)
+public @interface CacheOutput
+{
+	/** Seconds the output is fresh */
+	int maxAge();
+	
+	/** Seconds after maxAge that stale output is served while it is re-rendered */
+	int staleWhileRevalidate() default 0;
+	
+	/** Seconds after maxAge that stale output is served if rendering fails */
+	int staleIfError() default 0;
+}
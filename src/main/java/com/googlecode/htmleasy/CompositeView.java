@@ -0,0 +1,396 @@
+package com.googlecode.htmleasy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.WebApplicationException;
+
+import org.jboss.resteasy.spi.InternalServerErrorException;
+
+import com.googlecode.htmleasy.provider.ViewSizes;
+import com.googlecode.htmleasy.util.BufferedHttpServletResponse;
+import com.googlecode.htmleasy.util.CapturingResponseWrapper;
+import com.googlecode.htmleasy.util.LocalAttributesRequestWrapper;
+
+/**
+ * A view made of several independent regions (widgets) which are rendered
+ * concurrently and written out in the order given.  Each region renders into its
+ * own buffer with its own copy of the request attributes, so regions may use the
+ * same model name.  A region is sent to the client as soon as it and every region
+ * before it have finished, so page latency approaches that of the slowest region
+ * rather than the sum of them all.
+ *
+ * <code>
+ *   return new CompositeView(new View("/header.jsp"), new NewsWidget(news), new StocksWidget(stocks));
+ * </code>
+ *
+ * Only regions which implement ConcurrentViewable are rendered on the executor.
+ * The servlet spec doesn't allow dispatching to a JSP from a thread other than the
+ * request's, so every other region (View, FragmentView, StreamingView, ...) is
+ * rendered on the request thread when its turn comes, through a response wrapper the
+ * container accepts.  A page of plain Views therefore renders one region at a time.
+ *
+ * Headers and cookies a region sets are copied to the response before its output
+ * is written; once an earlier region has been flushed to the client they can no
+ * longer be sent, and are dropped with a warning.  A region's output is converted to
+ * the response's character encoding if it rendered in a different one.
+ *
+ * Each region runs with the request's RenderContext, pointed at the region's own
+ * request and buffer, so reverse routes (Path.to()) and anything else that needs
+ * RESTEasy's context data work on the pool threads without touching the live
+ * response.
+ *
+ * Models annotated with @ViewWith can be turned into regions with ViewResolver.getView().
+ * A region must not itself be a CompositeView sharing the same executor, since
+ * the outer view would hold pool threads while waiting for the inner one.
+ */
+public class CompositeView implements Viewable
+{
+	/** */
+	private static final Logger log = Logger.getLogger(CompositeView.class.getName());
+	
+	/** Shared by all composite views which don't specify an executor */
+	private static volatile Executor defaultExecutor;
+	
+	/** The pool getDefaultExecutor() created, which is ours to shut down; guarded by the class lock */
+	private static ThreadPoolExecutor ownPool;
+
+	/** */
+	protected Executor executor;
+	protected List<Viewable> regions;
+
+	/**
+	 * Renders regions on the default executor, which is bounded to twice the number of processors.
+	 */
+	public CompositeView(Viewable... regions)
+	{
+		this(getDefaultExecutor(), Arrays.asList(regions));
+	}
+
+	/**
+	 * @param executor renders the regions; it should be bounded.
+	 */
+	public CompositeView(Executor executor, Viewable... regions)
+	{
+		this(executor, Arrays.asList(regions));
+	}
+
+	/**
+	 * @param executor renders the regions; it should be bounded.
+	 */
+	public CompositeView(Executor executor, List<? extends Viewable> regions)
+	{
+		this.executor = executor;
+		this.regions = Collections.unmodifiableList(new ArrayList<Viewable>(regions));
+	}
+
+	/** */
+	public List<Viewable> getRegions() { return this.regions; }
+
+	/**
+	 * Starts every concurrent region rendering, then writes each region to the
+	 * response in order, rendering the others on this thread as their turn comes.
+	 */
+	public void render(HttpServletRequest request, HttpServletResponse response)
+			throws IOException, ServletException, WebApplicationException
+	{
+		RenderContext context = RenderContext.of(request);
+		
+		// Null for regions rendered on this thread
+		List<FutureTask<BufferedHttpServletResponse>> tasks = new ArrayList<FutureTask<BufferedHttpServletResponse>>(this.regions.size());
+		try
+		{
+			for (Viewable region : this.regions)
+			{
+				if (region instanceof ConcurrentViewable)
+				{
+					if (context != null)
+						context.detach();
+					
+					FutureTask<BufferedHttpServletResponse> task = new FutureTask<BufferedHttpServletResponse>(this.renderTask(region, context, request, response));
+					tasks.add(task);
+					this.executor.execute(task);
+				}
+				else
+				{
+					tasks.add(null);
+				}
+			}
+			
+			OutputStream out = null;
+			for (int i = 0; i < tasks.size(); i++)
+			{
+				FutureTask<BufferedHttpServletResponse> task = tasks.get(i);
+				BufferedHttpServletResponse rendered = (task == null)
+						? this.renderHere(this.regions.get(i), context, request, response)
+						: this.await(task);
+				
+				if (out == null && response.getContentType() == null && rendered.getContentType() != null)
+					response.setContentType(rendered.getContentType());
+				
+				this.passHeaders(this.regions.get(i), rendered, response);
+				
+				if (out == null)
+					out = response.getOutputStream();
+				
+				if (rendered.getCharacterEncoding().equalsIgnoreCase(response.getCharacterEncoding()))
+					rendered.writeTo(out);
+				else
+					out.write(rendered.getContentAsString().getBytes(response.getCharacterEncoding()));
+				
+				out.flush();
+			}
+		}
+		finally
+		{
+			// Only has an effect if we bailed out early
+			for (FutureTask<BufferedHttpServletResponse> task : tasks)
+				if (task != null)
+					task.cancel(true);
+		}
+	}
+	
+	/**
+	 * @param context is the request's context, already detached; may be null
+	 * @return a task which renders one concurrent region into a buffer, sized by what
+	 *  the region has rendered before
+	 */
+	protected Callable<BufferedHttpServletResponse> renderTask(final Viewable region, final RenderContext context,
+			final HttpServletRequest request, final HttpServletResponse response)
+	{
+		return new Callable<BufferedHttpServletResponse>() {
+			public BufferedHttpServletResponse call() throws Exception
+			{
+				ViewSizes sizes = ViewSizes.getInstance();
+				String sizeKey = ViewSizes.keyOf(region);
+				int capacity = sizes.suggestBufferSize(sizeKey);
+				
+				BufferedHttpServletResponse buffered = new BufferedHttpServletResponse(response, capacity > 0 ? capacity : 8192);
+				renderRegion(region, context, new LocalAttributesRequestWrapper(request), buffered);
+				
+				sizes.record(sizeKey, buffered.size());
+				return buffered;
+			}
+		};
+	}
+	
+	/**
+	 * Renders a region which may dispatch on the request thread.  The buffer is handed
+	 * over inside a wrapper of the real response, which is what forward() and include()
+	 * require.
+	 */
+	protected BufferedHttpServletResponse renderHere(Viewable region, RenderContext context, HttpServletRequest request, HttpServletResponse response)
+			throws IOException, ServletException
+	{
+		ViewSizes sizes = ViewSizes.getInstance();
+		String sizeKey = ViewSizes.keyOf(region);
+		int capacity = sizes.suggestBufferSize(sizeKey);
+		
+		BufferedHttpServletResponse buffered = new BufferedHttpServletResponse(response, capacity > 0 ? capacity : 8192);
+		try
+		{
+			renderRegion(region, context, new LocalAttributesRequestWrapper(request), new CapturingResponseWrapper(response, buffered));
+		}
+		catch (IOException ex)
+		{
+			throw ex;
+		}
+		catch (ServletException ex)
+		{
+			throw ex;
+		}
+		catch (RuntimeException ex)
+		{
+			throw ex;
+		}
+		catch (Exception ex)
+		{
+			// Nothing else is thrown by Viewable.render()
+			throw new InternalServerErrorException(ex);
+		}
+		
+		sizes.record(sizeKey, buffered.size());
+		return buffered;
+	}
+	
+	/**
+	 * Renders a region with the request's context pointed at the region's own request
+	 * and response, and stored in the region's local attributes for RenderContext.of().
+	 */
+	private static void renderRegion(final Viewable region, RenderContext context,
+			final HttpServletRequest regionRequest, final HttpServletResponse regionResponse) throws Exception
+	{
+		if (context == null)
+		{
+			region.render(regionRequest, regionResponse);
+			return;
+		}
+		
+		RenderContext regional = context.with(regionRequest, regionResponse);
+		regionRequest.setAttribute(RenderContext.ATTRIBUTE, regional);
+		regional.call(new Callable<Void>() {
+			public Void call() throws Exception
+			{
+				region.render(regionRequest, regionResponse);
+				return null;
+			}
+		});
+	}
+	
+	/**
+	 * Copies the cookies and headers a region set to the real response.  The body
+	 * headers describe the region rather than the page, so they are left out.
+	 */
+	private void passHeaders(Viewable region, BufferedHttpServletResponse rendered, HttpServletResponse response)
+	{
+		if (rendered.getCookies().isEmpty() && rendered.getHeaders().isEmpty())
+			return;
+		
+		if (response.isCommitted())
+		{
+			log.warning("Region " + region + " set headers or cookies after the page was sent; they were dropped");
+			return;
+		}
+		
+		for (Cookie cookie : rendered.getCookies())
+			response.addCookie(cookie);
+		
+		for (Map.Entry<String, List<String>> header : rendered.getHeaders().entrySet())
+		{
+			if ("Content-Length".equalsIgnoreCase(header.getKey()) || "Content-Type".equalsIgnoreCase(header.getKey()))
+				continue;
+			
+			for (String value : header.getValue())
+				response.addHeader(header.getKey(), value);
+		}
+	}
+	
+	/** Waits for a region, rethrowing its failure as the most specific type we can */
+	private BufferedHttpServletResponse await(FutureTask<BufferedHttpServletResponse> task) throws IOException, ServletException
+	{
+		try
+		{
+			return task.get();
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new InternalServerErrorException("Interrupted while rendering regions", ex);
+		}
+		catch (ExecutionException ex)
+		{
+			Throwable cause = ex.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			else if (cause instanceof ServletException)
+				throw (ServletException) cause;
+			else if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			else if (cause instanceof Error)
+				throw (Error) cause;
+			else
+				throw new InternalServerErrorException(cause);
+		}
+	}
+
+	/**
+	 * @return the executor used by views that don't specify one.  Threads are daemons;
+	 *  when the pool and its queue are full, the requesting thread renders the region itself.
+	 */
+	public static Executor getDefaultExecutor()
+	{
+		Executor exec = defaultExecutor;
+		if (exec == null)
+		{
+			synchronized (CompositeView.class)
+			{
+				exec = defaultExecutor;
+				if (exec == null)
+				{
+					int threads = Runtime.getRuntime().availableProcessors() * 2;
+
+					ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+							new ArrayBlockingQueue<Runnable>(threads * 4), new ThreadFactory() {
+								private final AtomicInteger count = new AtomicInteger();
+
+								public Thread newThread(Runnable r)
+								{
+									Thread thread = new Thread(r, "htmleasy-region-" + count.incrementAndGet());
+									thread.setDaemon(true);
+									return thread;
+								}
+							}, new ThreadPoolExecutor.CallerRunsPolicy());
+					pool.allowCoreThreadTimeOut(true);
+
+					ownPool = pool;
+					exec = defaultExecutor = pool;
+				}
+			}
+		}
+		return exec;
+	}
+
+	/**
+	 * Replaces the executor used by views that don't specify one.  The caller owns
+	 * it; shutdownDefaultExecutor() won't stop it.
+	 */
+	public static void setDefaultExecutor(Executor executor)
+	{
+		synchronized (CompositeView.class)
+		{
+			shutdownOwnPool();
+			defaultExecutor = executor;
+		}
+	}
+	
+	/**
+	 * Stops the pool getDefaultExecutor() created, if any, so its threads don't outlive
+	 * the webapp.  The dispatchers call this when they are destroyed; a later
+	 * getDefaultExecutor() starts a new pool.
+	 */
+	public static void shutdownDefaultExecutor()
+	{
+		synchronized (CompositeView.class)
+		{
+			if (shutdownOwnPool())
+				defaultExecutor = null;
+		}
+	}
+	
+	/** @return true if the default executor was our own pool, which is now shut down */
+	private static boolean shutdownOwnPool()
+	{
+		if (defaultExecutor == null || defaultExecutor != ownPool)
+			return false;
+		
+		ownPool.shutdown();
+		ownPool = null;
+		return true;
+	}
+
+	/** */
+	@Override
+	public String toString()
+	{
+		return this.getClass().getSimpleName() + this.regions;
+	}
+}
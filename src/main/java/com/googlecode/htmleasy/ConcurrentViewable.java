@@ -0,0 +1,15 @@
+package com.googlecode.htmleasy;
+
+/**
+ * A Viewable which renders without help from the servlet container, and so may be
+ * rendered on a thread other than the request's.  Implementations must not use
+ * RequestDispatchers, the session, or the request's input; they may read request
+ * parameters and attributes and must write only to the response they are given.
+ *
+ * CompositeView renders regions of this type concurrently.  Other regions, such as
+ * a View forwarding to a JSP, are rendered on the request thread, because the
+ * servlet spec doesn't allow dispatching from any other thread.
+ */
+public interface ConcurrentViewable extends Viewable
+{
+}
@@ -0,0 +1,484 @@
+package com.googlecode.htmleasy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.jboss.resteasy.util.Base64;
+
+/**
+ * Carries a few values across a redirect without touching the HttpSession, for
+ * the post-redirect-get pattern:
+ *
+ * <code>
+ *   throw new RedirectException(OrderController.class).flash("message", "Order saved");
+ * </code>
+ *
+ * On the next request the dispatchers put each value in the request attributes
+ * under its own name (so the view can use ${message}), and the whole map under
+ * ATTRIBUTE.  The cookie that carries them is cleared when they are read.
+ *
+ * With a secret configured, the values travel in the cookie itself, compactly
+ * encoded and signed with HMAC-SHA256 so they can't be forged; strings, numbers
+ * and booleans take a few bytes each, and other Serializable values are
+ * serialized.  A payload too large for a cookie falls back to the local store.
+ * Each signed cookie carries a random nonce, and a server remembers the nonces it
+ * has read (up to localEntries of them, until they expire) and refuses them a
+ * second time.  Another server behind a load balancer hasn't seen the nonce, so a
+ * copy of the cookie can be replayed there until maxAge runs out; don't flash
+ * anything that must only ever be seen once.
+ *
+ * Without a secret, the values stay in a bounded in-memory store on this server
+ * and the cookie only holds a random one-time token, which suits a single
+ * server or sticky load balancing.  Such a flash is read at most once.
+ *
+ * Configure it with init parameters on the dispatcher filter or servlet:
+ *
+ *   htmleasy.flash.secret        - key for signing cookies; enables the cookie store
+ *   htmleasy.flash.maxAge        - seconds a flash survives if not read; default 60
+ *   htmleasy.flash.cookie        - cookie name; default htmleasy-flash
+ *   htmleasy.flash.localEntries  - capacity of the local store; default 10000
+ */
+public class Flash
+{
+	/** */
+	private static final Logger log = Logger.getLogger(Flash.class.getName());
+	
+	/** Request attribute holding the whole flash map */
+	public static final String ATTRIBUTE = Flash.class.getName();
+	
+	/** Init parameter prefix */
+	public static final String PARAM_PREFIX = "htmleasy.flash.";
+	
+	/** */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String HMAC = "HmacSHA256";
+	private static final byte FORMAT = 2;
+	
+	/** Browsers accept about 4K per cookie, including the name and attributes */
+	private static final int MAX_COOKIE_VALUE = 3800;
+	
+	/** */
+	private static final SecureRandom random = new SecureRandom();
+	
+	/** */
+	private static volatile Flash instance = new Flash(null, 60, "htmleasy-flash", 10000);
+	
+	/** */
+	private final SecretKeySpec key;
+	private final int maxAgeSeconds;
+	private final String cookieName;
+	private final int localEntries;
+	
+	/** Token to flash, oldest first; guarded by itself */
+	private final LinkedHashMap<String, LocalEntry> local;
+	
+	/** Nonces of signed flashes already read, to their expiry, oldest first; guarded by itself */
+	private final LinkedHashMap<Long, Long> consumed;
+	
+	/** */
+	private static class LocalEntry
+	{
+		final long expires;
+		final Map<String, Object> values;
+		
+		LocalEntry(long expires, Map<String, Object> values)
+		{
+			this.expires = expires;
+			this.values = values;
+		}
+	}
+	
+	/**
+	 * @param secret signs cookies; if null, values are kept in the local store
+	 */
+	public Flash(String secret, int maxAgeSeconds, String cookieName, final int localEntries)
+	{
+		this.key = (secret == null) ? null : new SecretKeySpec(secret.getBytes(UTF8), HMAC);
+		this.maxAgeSeconds = maxAgeSeconds;
+		this.cookieName = cookieName;
+		this.localEntries = localEntries;
+		this.local = new LinkedHashMap<String, LocalEntry>() {
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, LocalEntry> eldest)
+			{
+				return this.size() > localEntries;
+			}
+		};
+		this.consumed = new LinkedHashMap<Long, Long>() {
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest)
+			{
+				return this.size() > localEntries || eldest.getValue() < System.currentTimeMillis();
+			}
+		};
+	}
+	
+	/**
+	 * Builds a Flash from dispatcher init parameters.
+	 * 
+	 * @return null if none of the flash parameters are set
+	 */
+	public static Flash fromInitParameters(Map<String, String> params)
+	{
+		String secret = params.get(PARAM_PREFIX + "secret");
+		String maxAge = params.get(PARAM_PREFIX + "maxAge");
+		String cookie = params.get(PARAM_PREFIX + "cookie");
+		String entries = params.get(PARAM_PREFIX + "localEntries");
+		if (secret == null && maxAge == null && cookie == null && entries == null)
+			return null;
+		
+		return new Flash(
+				secret == null ? null : secret.trim(),
+				maxAge == null ? 60 : Integer.parseInt(maxAge.trim()),
+				cookie == null ? "htmleasy-flash" : cookie.trim(),
+				entries == null ? 10000 : Integer.parseInt(entries.trim()));
+	}
+	
+	/** @return the flash RedirectExceptionMapper and the dispatchers use */
+	public static Flash getInstance() { return instance; }
+	
+	/** Replaces the flash RedirectExceptionMapper and the dispatchers use */
+	public static void setInstance(Flash flash) { instance = flash; }
+	
+	/** @return the flash values of the request, or an empty map */
+	@SuppressWarnings("unchecked")
+	public static Map<String, Object> get(HttpServletRequest request)
+	{
+		Object values = request.getAttribute(ATTRIBUTE);
+		return (values instanceof Map) ? (Map<String, Object>) values : Collections.<String, Object>emptyMap();
+	}
+	
+	/**
+	 * Stores the values and returns the Set-Cookie header which will bring them back.
+	 */
+	public String toSetCookie(Map<String, ? extends Serializable> values, HttpServletRequest request)
+	{
+		long expires = System.currentTimeMillis() + this.maxAgeSeconds * 1000L;
+		
+		String value = null;
+		if (this.key != null)
+		{
+			value = this.sign(this.encode(values, expires));
+			if (value.length() > MAX_COOKIE_VALUE)
+			{
+				log.warning("Flash of " + value.length() + " chars is too big for a cookie; keeping it locally");
+				value = null;
+			}
+		}
+		
+		if (value == null)
+			value = this.storeLocally(values, expires);
+		
+		StringBuilder header = new StringBuilder();
+		header.append(this.cookieName).append('=').append(value);
+		header.append("; Path=").append(this.cookiePath(request));
+		header.append("; Max-Age=").append(this.maxAgeSeconds);
+		header.append("; HttpOnly; SameSite=Lax");
+		if (request.isSecure())
+			header.append("; Secure");
+		
+		return header.toString();
+	}
+	
+	/**
+	 * If the request carries a flash, clears its cookie and puts the values in the
+	 * request attributes.
+	 */
+	public void restore(HttpServletRequest request, HttpServletResponse response)
+	{
+		Cookie[] cookies = request.getCookies();
+		if (cookies == null)
+			return;
+		
+		Cookie found = null;
+		for (Cookie cookie : cookies)
+			if (this.cookieName.equals(cookie.getName()))
+				found = cookie;
+		
+		if (found == null)
+			return;
+		
+		Cookie gone = new Cookie(this.cookieName, "");
+		gone.setPath(this.cookiePath(request));
+		gone.setMaxAge(0);
+		response.addCookie(gone);
+		
+		Map<String, Object> values = this.decode(found.getValue());
+		if (values == null)
+			return;
+		
+		request.setAttribute(ATTRIBUTE, values);
+		for (Map.Entry<String, Object> entry : values.entrySet())
+			request.setAttribute(entry.getKey(), entry.getValue());
+	}
+	
+	/** */
+	private String cookiePath(HttpServletRequest request)
+	{
+		String path = request.getContextPath();
+		return (path == null || path.length() == 0) ? "/" : path;
+	}
+	
+	/** */
+	private String storeLocally(Map<String, ? extends Serializable> values, long expires)
+	{
+		byte[] token = new byte[16];
+		random.nextBytes(token);
+		String name = base64(token);
+		
+		synchronized (this.local)
+		{
+			this.local.put(name, new LocalEntry(expires, Collections.unmodifiableMap(new LinkedHashMap<String, Object>(values))));
+		}
+		return name;
+	}
+	
+	/**
+	 * @return the values for a cookie, or null if it is expired, forged or unknown
+	 */
+	private Map<String, Object> decode(String value)
+	{
+		int dot = value.indexOf('.');
+		if (dot < 0)
+		{
+			LocalEntry entry;
+			synchronized (this.local)
+			{
+				entry = this.local.remove(value);
+			}
+			return (entry == null || entry.expires < System.currentTimeMillis()) ? null : entry.values;
+		}
+		
+		if (this.key == null)
+			return null;
+		
+		try
+		{
+			byte[] payload = unbase64(value.substring(0, dot));
+			byte[] signature = unbase64(value.substring(dot + 1));
+			
+			if (!MessageDigest.isEqual(signature, this.mac(payload)))
+			{
+				log.fine("Ignoring flash cookie with a bad signature");
+				return null;
+			}
+			
+			return this.decodePayload(payload);
+		}
+		catch (IOException ex)
+		{
+			log.log(Level.FINE, "Ignoring unreadable flash cookie", ex);
+			return null;
+		}
+		catch (ClassNotFoundException ex)
+		{
+			log.log(Level.FINE, "Ignoring flash cookie for a class we don't have", ex);
+			return null;
+		}
+	}
+	
+	/** */
+	private String sign(byte[] payload)
+	{
+		return base64(payload) + "." + base64(this.mac(payload));
+	}
+	
+	/**
+	 * URL-safe and without '=' padding, so it needs no quoting in a cookie; some
+	 * cookie parsers (older Tomcats among them) cut values at the first '='.
+	 */
+	static String base64(byte[] bytes)
+	{
+		String encoded;
+		try
+		{
+			encoded = Base64.encodeBytes(bytes, 0, bytes.length, Base64.URL_SAFE);
+		}
+		catch (IOException ex)
+		{
+			// Only thrown when compressing
+			throw new RuntimeException(ex);
+		}
+		
+		int end = encoded.length();
+		while (end > 0 && encoded.charAt(end - 1) == '=')
+			end--;
+		
+		return encoded.substring(0, end);
+	}
+	
+	/** Reverses base64(), restoring the padding */
+	static byte[] unbase64(String encoded) throws IOException
+	{
+		StringBuilder padded = new StringBuilder(encoded);
+		while (padded.length() % 4 != 0)
+			padded.append('=');
+		
+		byte[] bytes = padded.toString().getBytes(UTF8);
+		return Base64.decode(bytes, 0, bytes.length, Base64.URL_SAFE);
+	}
+	
+	/** */
+	private byte[] mac(byte[] payload)
+	{
+		try
+		{
+			Mac mac = Mac.getInstance(HMAC);
+			mac.init(this.key);
+			return mac.doFinal(payload);
+		}
+		catch (GeneralSecurityException ex)
+		{
+			throw new RuntimeException(ex);
+		}
+	}
+	
+	/**
+	 * Strings, numbers and booleans get one-byte tags; anything else is serialized.
+	 */
+	private byte[] encode(Map<String, ? extends Serializable> values, long expires)
+	{
+		try
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(FORMAT);
+			out.writeLong(expires);
+			out.writeLong(random.nextLong());
+			out.writeShort(values.size());
+			
+			for (Map.Entry<String, ? extends Serializable> entry : values.entrySet())
+			{
+				out.writeUTF(entry.getKey());
+				Object value = entry.getValue();
+				
+				if (value instanceof String)
+				{
+					out.writeByte('S');
+					out.writeUTF((String) value);
+				}
+				else if (value instanceof Integer)
+				{
+					out.writeByte('I');
+					out.writeInt((Integer) value);
+				}
+				else if (value instanceof Long)
+				{
+					out.writeByte('J');
+					out.writeLong((Long) value);
+				}
+				else if (value instanceof Boolean)
+				{
+					out.writeByte('Z');
+					out.writeBoolean((Boolean) value);
+				}
+				else if (value instanceof Double)
+				{
+					out.writeByte('D');
+					out.writeDouble((Double) value);
+				}
+				else
+				{
+					ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+					ObjectOutputStream oos = new ObjectOutputStream(serialized);
+					oos.writeObject(value);
+					oos.close();
+					
+					out.writeByte('O');
+					out.writeInt(serialized.size());
+					serialized.writeTo(out);
+				}
+			}
+			
+			out.close();
+			return bytes.toByteArray();
+		}
+		catch (IOException ex)
+		{
+			throw new RuntimeException("Unable to encode flash", ex);
+		}
+	}
+	
+	/**
+	 * Only called on signed payloads, so the bytes are ones we wrote.
+	 * 
+	 * @return null if the payload has expired or has been read before
+	 */
+	private Map<String, Object> decodePayload(byte[] payload) throws IOException, ClassNotFoundException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		if (in.readByte() != FORMAT)
+			return null;
+		
+		long expires = in.readLong();
+		if (expires < System.currentTimeMillis())
+			return null;
+		
+		long nonce = in.readLong();
+		synchronized (this.consumed)
+		{
+			if (this.consumed.put(nonce, expires) != null)
+			{
+				log.fine("Ignoring a flash cookie which has already been read");
+				return null;
+			}
+		}
+		
+		int count = in.readUnsignedShort();
+		Map<String, Object> values = new LinkedHashMap<String, Object>();
+		for (int i=0; i<count; i++)
+		{
+			String name = in.readUTF();
+			byte tag = in.readByte();
+			switch (tag)
+			{
+				case 'S': values.put(name, in.readUTF()); break;
+				case 'I': values.put(name, in.readInt()); break;
+				case 'J': values.put(name, in.readLong()); break;
+				case 'Z': values.put(name, in.readBoolean()); break;
+				case 'D': values.put(name, in.readDouble()); break;
+				case 'O':
+					byte[] serialized = new byte[in.readInt()];
+					in.readFully(serialized);
+					ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(serialized));
+					values.put(name, ois.readObject());
+					break;
+				default:
+					throw new IOException("Unknown flash value tag " + tag);
+			}
+		}
+		return Collections.unmodifiableMap(values);
+	}
+	
+	/** */
+	@Override
+	public String toString()
+	{
+		return this.getClass().getSimpleName() + "(" + (this.key == null ? "local, " + this.localEntries + " entries" : "signed cookie") + ")";
+	}
+}
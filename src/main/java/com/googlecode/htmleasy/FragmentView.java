@@ -0,0 +1,166 @@
+package com.googlecode.htmleasy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.WebApplicationException;
+
+import com.googlecode.htmleasy.util.BufferedHttpServletResponse;
+import com.googlecode.htmleasy.util.CapturingResponseWrapper;
+import com.googlecode.htmleasy.util.CompiledShell;
+import com.googlecode.htmleasy.util.FragmentCache;
+import com.googlecode.htmleasy.util.LocalAttributesRequestWrapper;
+
+/**
+ * A page which is cached as a shell, with per-user holes filled in at serve time.
+ * The first time a key is requested, the shell view is rendered and split into
+ * static segments and named holes (see CompiledShell).  On every request after
+ * that, the static segments are written from the cache and only the hole views are
+ * rendered.
+ * 
+ * Mark holes in the shell template with the output of FragmentView.placeholder():
+ * 
+ * <code>
+ *   &lt;div id="cart"&gt;&lt;%= FragmentView.placeholder("cart") %&gt;&lt;/div&gt;
+ * </code>
+ * 
+ * and return something like:
+ * 
+ * <code>
+ *   return new FragmentView(cache, "catalog", new View("/catalog.jsp", catalog),
+ *       Collections.singletonMap("cart", new View("/cart.jsp", cart)));
+ * </code>
+ * 
+ * A hole with no matching view renders as nothing.  When holes are cheap to build,
+ * the shell view is never rendered after the first request; constructing it is the
+ * only cost.
+ * 
+ * The shell and the holes are rendered through a wrapper of the real response, so
+ * they may forward to or include JSPs.  Holes are written in the middle of the page,
+ * so any headers or cookies they set are dropped.
+ */
+public class FragmentView implements Viewable
+{
+	/** */
+	private static final Logger log = Logger.getLogger(FragmentView.class.getName());
+	
+	/** */
+	protected FragmentCache cache;
+	protected String key;
+	protected Viewable shell;
+	protected Map<String, Viewable> holes;
+	
+	/**
+	 * @param cache holds the compiled shell
+	 * @param key identifies the shell in the cache; pages with different static content need different keys
+	 * @param shell renders the whole page, with placeholders where the holes go
+	 * @param holes render the content of each hole, by name
+	 */
+	public FragmentView(FragmentCache cache, String key, Viewable shell, Map<String, ? extends Viewable> holes)
+	{
+		this.cache = cache;
+		this.key = key;
+		this.shell = shell;
+		this.holes = Collections.unmodifiableMap(new HashMap<String, Viewable>(holes));
+	}
+	
+	/**
+	 * @return the marker to put in the shell template where the named hole should go
+	 */
+	public static String placeholder(String name)
+	{
+		return CompiledShell.placeholder(name);
+	}
+	
+	/** */
+	public String getKey() { return this.key; }
+	public Viewable getShell() { return this.shell; }
+	public Map<String, Viewable> getHoles() { return this.holes; }
+	
+	/**
+	 * Writes the cached shell, rendering it first if necessary, and renders each hole in place.
+	 * A shell which redirects or fails is sent as rendered, and one which sets a cookie is
+	 * used for this request only; neither is cached.
+	 */
+	public void render(final HttpServletRequest request, final HttpServletResponse response)
+			throws IOException, ServletException, WebApplicationException
+	{
+		CompiledShell compiled = this.cache.get(this.key);
+		if (compiled == null)
+		{
+			BufferedHttpServletResponse buffered = new BufferedHttpServletResponse(response);
+			this.shell.render(new LocalAttributesRequestWrapper(request), new CapturingResponseWrapper(response, buffered));
+			
+			if (buffered.getStatus() != HttpServletResponse.SC_OK || buffered.getRedirect() != null)
+			{
+				buffered.replayTo(response);
+				return;
+			}
+			
+			compiled = CompiledShell.compile(buffered.toByteArray(), buffered.getContentType());
+			
+			if (buffered.getCookies().isEmpty())
+				this.cache.put(this.key, compiled);
+			else
+				passHeaders(buffered, response);
+		}
+		
+		if (response.getContentType() == null && compiled.getContentType() != null)
+			response.setContentType(compiled.getContentType());
+		
+		OutputStream out = response.getOutputStream();
+		compiled.writeTo(out, new CompiledShell.HoleWriter() {
+			public void writeHole(String name, OutputStream out) throws IOException, ServletException
+			{
+				Viewable hole = holes.get(name);
+				if (hole != null)
+				{
+					BufferedHttpServletResponse buffered = new BufferedHttpServletResponse(response);
+					hole.render(new LocalAttributesRequestWrapper(request), new CapturingResponseWrapper(response, buffered));
+					
+					if (!buffered.getCookies().isEmpty() || !buffered.getHeaders().isEmpty())
+						log.warning("Hole " + name + " of " + FragmentView.this + " set headers or cookies inside the page; they were dropped");
+					
+					buffered.writeTo(out);
+				}
+			}
+		});
+		out.flush();
+	}
+	
+	/**
+	 * Copies the cookies and headers of a shell rendered for one request to the real
+	 * response.  The body headers describe the shell rather than the page, so they are
+	 * left out.
+	 */
+	private static void passHeaders(BufferedHttpServletResponse rendered, HttpServletResponse response)
+	{
+		for (Cookie cookie : rendered.getCookies())
+			response.addCookie(cookie);
+		
+		for (Map.Entry<String, List<String>> header : rendered.getHeaders().entrySet())
+		{
+			if ("Content-Length".equalsIgnoreCase(header.getKey()) || "Content-Type".equalsIgnoreCase(header.getKey()))
+				continue;
+			
+			for (String value : header.getValue())
+				response.addHeader(header.getKey(), value);
+		}
+	}
+	
+	/** */
+	@Override
+	public String toString()
+	{
+		return this.getClass().getSimpleName() + "(" + this.key + ")";
+	}
+}
@@ -2,13 +2,27 @@ package com.googlecode.htmleasy;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
 
+import javax.management.ObjectName;
+
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.jboss.resteasy.plugins.server.servlet.FilterDispatcher;
 import org.jboss.resteasy.plugins.server.servlet.HttpServletResponseWrapper;
 import org.jboss.resteasy.spi.HttpResponse;
 
+import com.googlecode.htmleasy.provider.TemplateMinifier;
+import com.googlecode.htmleasy.provider.ViewSizes;
+
 /**
  * Special HTTP filter to support HtmlEasy. To use, add something like this to your web.xml:
  * 
@@ -25,6 +39,13 @@ import org.jboss.resteasy.spi.HttpResponse;
  * Because Htmleasy forwards through to another view (e.g. a JSP page) the
  * output stream must remain closed. This filter defers opening/creating the stream until a write is performed.
  * 
+ * Requests matching the installed RedirectTable are redirected, and pages in the installed StaticPages are
+ * served from disk, before RESTEasy sees them.  Filter init parameters can enable an AdmissionControl which
+ * limits how many requests RESTEasy dispatches to resource methods at once (requests passed down the filter
+ * chain, such as static assets, are not limited), and ServerTiming headers for sampled requests.  Values
+ * flashed across a redirect are restored into the request attributes here, and init parameters can turn
+ * on a TemplateMinifier for view templates.
+ * 
  * Implementation based on the HTMLServletDispatcher.java file found in the RestEasy SCM located at:
  * ~trunk/jaxrs/providers/resteasy-html/src/main/java/org/jboss/resteasy/plugins/providers/html/HtmlServletDispatcher.java
  * 
@@ -32,6 +53,104 @@ import org.jboss.resteasy.spi.HttpResponse;
  */
 public class HtmleasyFilterDispatcher extends FilterDispatcher {
 
+   /** Same context parameter RESTEasy uses to find its base */
+   private static final String MAPPING_PREFIX_PARAM = "resteasy.servlet.mapping.prefix";
+
+   /** The RESTEasy base relative to the context, e.g. "/rest" or "" */
+   private String mappingPrefix = "";
+
+   /** Null if the view sizes MBean couldn't be registered */
+   private ObjectName sizesName;
+
+   /** Null if not configured */
+   private AdmissionControl admission;
+   private ObjectName admissionName;
+   private ServerTiming.Sampler timingSampler;
+
+   @Override
+   public void init(FilterConfig filterConfig) throws ServletException {
+       super.init(filterConfig);
+
+       String prefix = filterConfig.getServletContext().getInitParameter(MAPPING_PREFIX_PARAM);
+       if (prefix != null) {
+           prefix = prefix.trim();
+           if (prefix.endsWith("/")) {
+               prefix = prefix.substring(0, prefix.length() - 1);
+           }
+           mappingPrefix = prefix;
+       }
+
+       Map<String, String> params = new HashMap<String, String>();
+       for (Enumeration<?> names = filterConfig.getInitParameterNames(); names.hasMoreElements();) {
+           String name = (String) names.nextElement();
+           params.put(name, filterConfig.getInitParameter(name));
+       }
+
+       Flash flash = Flash.fromInitParameters(params);
+       if (flash != null) {
+           Flash.setInstance(flash);
+       }
+
+       TemplateMinifier minifier = TemplateMinifier.fromInitParameters(params, filterConfig.getServletContext());
+       if (minifier != null) {
+           TemplateMinifier.setInstance(minifier);
+       }
+
+       sizesName = ViewSizes.getInstance().register(filterConfig.getFilterName());
+       timingSampler = ServerTiming.Sampler.fromInitParameters(params);
+       admission = AdmissionControl.fromInitParameters(params, filterConfig.getServletContext());
+       if (admission != null) {
+           getDispatcher().getProviderFactory().getServerPreProcessInterceptorRegistry().register(new AdmissionControl.Interceptor());
+           admissionName = admission.register(filterConfig.getFilterName());
+       }
+   }
+
+   @Override
+   public void destroy() {
+       AdmissionControl.unregister(admissionName);
+       ViewSizes.unregister(sizesName);
+       CompositeView.shutdownDefaultExecutor();
+       super.destroy();
+   }
+
+   @Override
+   public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse, FilterChain filterChain)
+           throws IOException, ServletException {
+       HttpServletRequest request = (HttpServletRequest) servletRequest;
+       HttpServletResponse response = (HttpServletResponse) servletResponse;
+
+       String resteasyBase = request.getContextPath() + mappingPrefix;
+       if (RedirectTable.getInstalled().redirect(request, response, resteasyBase)
+               || StaticPages.getInstalled().serve(request, response, resteasyBase)) {
+           return;
+       }
+
+       Flash.getInstance().restore(request, response);
+
+       ServerTiming timing = (timingSampler == null) ? null : timingSampler.begin(request);
+       if (timing != null) {
+           response = timing.wrap(response);
+       }
+
+       try {
+           if (admission == null) {
+               super.doFilter(request, response, filterChain);
+           } else {
+               // The interceptor takes a slot only if RESTEasy dispatches to a resource method
+               request.setAttribute(AdmissionControl.ATTRIBUTE, admission);
+               try {
+                   super.doFilter(request, response, filterChain);
+               } finally {
+                   AdmissionControl.finish(request);
+               }
+           }
+       } finally {
+           if (timing != null) {
+               timing.finish(response);
+           }
+       }
+   }
+
    @Override
    public HttpResponse createResteasyHttpResponse(HttpServletResponse response) {
        return new HttpServletResponseWrapper(response, getDispatcher().getProviderFactory()) {
@@ -6,13 +6,23 @@ package com.googlecode.htmleasy;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
 
+import javax.management.ObjectName;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.jboss.resteasy.plugins.server.servlet.HttpServletDispatcher;
 import org.jboss.resteasy.plugins.server.servlet.HttpServletResponseWrapper;
 import org.jboss.resteasy.spi.HttpResponse;
 
+import com.googlecode.htmleasy.provider.TemplateMinifier;
+import com.googlecode.htmleasy.provider.ViewSizes;
+
 
 /**
  * Special HTTP filter to support Htmleasy. To use, add something like this to your web.xml:
@@ -38,6 +48,12 @@ import org.jboss.resteasy.spi.HttpResponse;
  * Because Htmleasy forwards through to another view (e.g. a JSP page) the
  * output stream must remain closed. This filter defers opening/creating the stream until a write is performed.
  * 
+ * Requests matching the installed RedirectTable are redirected, and pages in the installed StaticPages are
+ * served from disk, before RESTEasy sees them.  Servlet init parameters can enable an AdmissionControl which
+ * limits how many requests are processed at once, and ServerTiming headers for sampled requests.  Values
+ * flashed across a redirect are restored into the request attributes here, and init parameters can turn
+ * on a TemplateMinifier for view templates.
+ * 
  * Implementation based on the HTMLServletDispatcher.java file found in the RestEasy SCM located at:
  * ~trunk/jaxrs/providers/resteasy-html/src/main/java/org/jboss/resteasy/plugins/providers/html/HtmlServletDispatcher.java
  * 
@@ -46,6 +62,86 @@ import org.jboss.resteasy.spi.HttpResponse;
 public class HtmleasyServletDispatcher extends HttpServletDispatcher {
 	private static final long serialVersionUID = 1L;
 
+    /** Null if the view sizes MBean couldn't be registered */
+    private transient ObjectName sizesName;
+
+    /** Null if not configured */
+    private transient AdmissionControl admission;
+    private transient ObjectName admissionName;
+    private transient ServerTiming.Sampler timingSampler;
+
+    @Override
+    public void init(ServletConfig servletConfig) throws ServletException {
+        super.init(servletConfig);
+
+        Map<String, String> params = new HashMap<String, String>();
+        for (Enumeration<?> names = servletConfig.getInitParameterNames(); names.hasMoreElements();) {
+            String name = (String) names.nextElement();
+            params.put(name, servletConfig.getInitParameter(name));
+        }
+
+        Flash flash = Flash.fromInitParameters(params);
+        if (flash != null) {
+            Flash.setInstance(flash);
+        }
+
+        TemplateMinifier minifier = TemplateMinifier.fromInitParameters(params, servletConfig.getServletContext());
+        if (minifier != null) {
+            TemplateMinifier.setInstance(minifier);
+        }
+
+        sizesName = ViewSizes.getInstance().register(servletConfig.getServletName());
+        timingSampler = ServerTiming.Sampler.fromInitParameters(params);
+        admission = AdmissionControl.fromInitParameters(params, servletConfig.getServletContext());
+        if (admission != null) {
+            getDispatcher().getProviderFactory().getServerPreProcessInterceptorRegistry().register(new AdmissionControl.Interceptor());
+            admissionName = admission.register(servletConfig.getServletName());
+        }
+    }
+
+    @Override
+    public void destroy() {
+        AdmissionControl.unregister(admissionName);
+        ViewSizes.unregister(sizesName);
+        CompositeView.shutdownDefaultExecutor();
+        super.destroy();
+    }
+
+    @Override
+    public void service(String httpMethod, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        String resteasyBase = request.getContextPath() + request.getServletPath();
+        if (RedirectTable.getInstalled().redirect(request, response, resteasyBase)
+                || StaticPages.getInstalled().serve(request, response, resteasyBase)) {
+            return;
+        }
+
+        Flash.getInstance().restore(request, response);
+
+        ServerTiming timing = (timingSampler == null) ? null : timingSampler.begin(request);
+        if (timing != null) {
+            response = timing.wrap(response);
+        }
+
+        try {
+            if (admission == null) {
+                super.service(httpMethod, request, response);
+            } else {
+                // The interceptor takes a slot only if RESTEasy dispatches to a resource method
+                request.setAttribute(AdmissionControl.ATTRIBUTE, admission);
+                try {
+                    super.service(httpMethod, request, response);
+                } finally {
+                    AdmissionControl.finish(request);
+                }
+            }
+        } finally {
+            if (timing != null) {
+                timing.finish(response);
+            }
+        }
+    }
+
 	@Override
     protected HttpResponse createServletResponse(HttpServletResponse response) {
         return new HttpServletResponseWrapper(response, getDispatcher()
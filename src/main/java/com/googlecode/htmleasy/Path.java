@@ -4,6 +4,11 @@
  */
 package com.googlecode.htmleasy;
 
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.ws.rs.core.UriBuilder;
 import javax.ws.rs.core.UriInfo;
 
 import org.jboss.resteasy.spi.ResteasyProviderFactory;
@@ -18,14 +23,43 @@ import org.jboss.resteasy.spi.ResteasyProviderFactory;
  * 
  *    model.setPostUrl(Path.to(MyController.class));
  * 
+ * Off the container thread, where RESTEasy's context data isn't available, pass the RenderContext of the
+ * request explicitly (or run with one bound; see RenderContext.propagating()).
+ * 
  * 
  * @author Chris Dance <chris.dance@papercut.com>
  */
 public class Path {
     
+    /** Resource paths by "class" or "class#method"; these never change once the classes are loaded */
+    private static final ConcurrentMap<String, URI> resourceUris = new ConcurrentHashMap<String, URI>();
+    
     /** Private constructor on utility class */
     private Path() {}
 
+    /**
+     * @param clazz
+     *            A Path annotated class.
+     * @param method
+     *            A Path annotated method on the corresponding class, or null.
+     * @return The path of the resource relative to the JAX-RS base (no context path). The annotations are only read
+     *         the first time a given class and method are asked for.
+     */
+    public static URI resourceUri(Class<?> clazz, String method) {
+        String key = (method == null) ? clazz.getName() : clazz.getName() + "#" + method;
+
+        URI uri = resourceUris.get(key);
+        if (uri == null) {
+            UriBuilder builder = UriBuilder.fromResource(clazz);
+            if (method != null) {
+                builder.path(clazz, method);
+            }
+            uri = builder.build();
+            resourceUris.put(key, uri);
+        }
+        return uri;
+    }
+
     /**
      * @param clazz
      *            A Path annotated class.
@@ -44,6 +78,11 @@ public class Path {
      */
     public static String to(Class<?> clazz, String method) {
 
+        RenderContext context = RenderContext.current();
+        if (context != null && context.getBaseUri() != null) {
+            return to(context, clazz, method);
+        }
+
         UriInfo uriinfo = ResteasyProviderFactory.getContextData(UriInfo.class);
 
         String path = "";
@@ -60,4 +99,43 @@ public class Path {
         return path;
 
     }
+
+    /**
+     * @param context
+     *            The context of the request being rendered.
+     * @param clazz
+     *            A Path annotated class.
+     * @return A string representing an absolute path to the annotated class (containing the context base).
+     */
+    public static String to(RenderContext context, Class<?> clazz) {
+        return to(context, clazz, null);
+    }
+
+    /**
+     * Builds the path from the context's base URI and the cached resource path, so it is safe on any thread and
+     * doesn't look anything up.
+     * 
+     * @param context
+     *            The context of the request being rendered.
+     * @param clazz
+     *            A Path annotated class.
+     * @param method
+     *            A Path annotated method on the corresponding class, or null.
+     * @return A string representing an absolute path to the annotated class (containing the context base).
+     */
+    public static String to(RenderContext context, Class<?> clazz, String method) {
+        String resource;
+        try {
+            resource = resourceUri(clazz, method).getRawPath();
+        } catch (Exception e) {
+            throw new RuntimeException("Problem resolving path on: " + clazz.getName()
+                    + " Is the class annotated with @Path?", e);
+        }
+
+        if (resource.startsWith("/")) {
+            return context.getBasePath() + resource;
+        } else {
+            return context.getBasePath() + "/" + resource;
+        }
+    }
 }
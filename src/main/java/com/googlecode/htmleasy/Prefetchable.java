@@ -0,0 +1,23 @@
+package com.googlecode.htmleasy;
+
+import java.util.Collection;
+import java.util.concurrent.Callable;
+
+/**
+ * Implement this on a model to have Htmleasy load its lazy data before the view
+ * renders.  Loading up front lets the loaders batch or run in parallel, instead of
+ * being triggered one at a time from deep inside a template.
+ * 
+ * For model classes you can't change, register a Prefetcher instead.
+ * 
+ * When the PrefetchRunner has an executor, loaders run on its threads, outside the
+ * request's persistence session and transaction; see PrefetchRunner.
+ */
+public interface Prefetchable
+{
+	/**
+	 * @return the loaders that must complete before the view renders.  Each loader
+	 *  should populate the model itself; return values are ignored.  May be empty.
+	 */
+	public Collection<? extends Callable<?>> getLoaders();
+}
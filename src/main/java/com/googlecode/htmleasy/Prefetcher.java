@@ -0,0 +1,20 @@
+package com.googlecode.htmleasy;
+
+import java.util.Collection;
+import java.util.concurrent.Callable;
+
+/**
+ * Declares the lazy data a model class needs loaded before its view renders.  This
+ * is the external equivalent of Prefetchable, for model classes you don't own.
+ * Register one with ViewWriter.getPrefetchRunner().register().  As with
+ * Prefetchable, parallel loaders don't share the request's persistence session or
+ * transaction.
+ */
+public interface Prefetcher<T>
+{
+	/**
+	 * @return the loaders that must complete before the view of model renders.
+	 *  Each loader should populate the model itself; return values are ignored.
+	 */
+	public Collection<? extends Callable<?>> getLoaders(T model);
+}
@@ -0,0 +1,38 @@
+package com.googlecode.htmleasy;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+/**
+ * Declares the critical assets of a view, so the browser can start fetching them
+ * before the page arrives.  Place it next to @ViewWith, on the resource method or
+ * on the model class; the method annotation wins.
+ * 
+ * When the view is resolved, ViewWriter adds a Link: rel=preload header for each
+ * asset and, if the container can send one, a 103 Early Hints response carrying
+ * those headers, all before the template starts rendering.  The header text is
+ * built once per view, not per request.
+ * 
+ * <code>
+ *   @GET @ViewWith("/product.jsp") @Preload({"/css/site.css", "/js/product.js", "/fonts/body.woff2"})
+ *   public Product show(...) { ... }
+ * </code>
+ * 
+ * Paths beginning with '/' are relative to the webapp; absolute URLs are used as
+ * they are.  The preload type (as=style, script, font, image) is inferred from
+ * the file extension; fonts are requested with crossorigin, as browsers require.
+ */
+@Target({TYPE, METHOD})
+@Retention(RUNTIME)
+public @interface Preload
+{
+	/** The assets, most important first */
+	String[] value();
+	
+	/** Whether to also send a 103 Early Hints response where the container supports it */
+	boolean earlyHints() default true;
+}
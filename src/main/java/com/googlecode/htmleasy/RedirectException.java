@@ -1,26 +1,36 @@
 package com.googlecode.htmleasy;
 
+import java.io.Serializable;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.ejb.ApplicationException;
 import javax.ws.rs.core.Response.Status;
-import javax.ws.rs.core.UriBuilder;
 
 /**
  * If thrown, this triggers a redirect to the specified path. The path must be a
  * valid URI and should begin with '/'. The webapp context path will
  * automatically be prepended, if appropriate.
  * 
+ * Values added with flash() are available as request attributes on the request
+ * that follows the redirect, without using the session; see Flash.  flash() leaves
+ * the exception alone and returns a copy, so exceptions kept in constants can be
+ * flashed too: throw HOME.flash("message", "Saved").
+ * 
  * @author Jeff Schnitzer <jeff@infohazard.org>
  * @author Chris Dance <chris.dance@papercut.com>
  */
 @SuppressWarnings("serial")
 @ApplicationException(rollback = false)
-public class RedirectException extends RuntimeException
+public class RedirectException extends RuntimeException implements Cloneable
 {
 	protected URI path;
 	protected Status status;	// 301, 302, 303
+	protected boolean staticTarget;	// the same exception always means the same redirect
+	protected Map<String, Serializable> flash;	// null until something is flashed
 
 	/**
 	 * Default status is SEE_OTHER (303) 
@@ -39,6 +49,7 @@ public class RedirectException extends RuntimeException
 		
 		this.path = path;
 		this.status = status;
+		this.staticTarget = (status == Status.MOVED_PERMANENTLY);
 	}
 
 	/**
@@ -68,6 +79,7 @@ public class RedirectException extends RuntimeException
 		}
 		
 		this.status = status;
+		this.staticTarget = (status == Status.MOVED_PERMANENTLY);
 	}
 
 	/**
@@ -89,7 +101,7 @@ public class RedirectException extends RuntimeException
 
 		try
 		{
-			this.path = UriBuilder.fromResource(clazz).build();
+			this.path = Path.resourceUri(clazz, null);
 		}
 		catch (Exception ex)
 		{
@@ -97,6 +109,7 @@ public class RedirectException extends RuntimeException
 		}
 		
 		this.status = status;
+		this.staticTarget = true;
 	}
 
 	/**
@@ -106,7 +119,7 @@ public class RedirectException extends RuntimeException
 	 */
 	public RedirectException(Class<?> clazz, String method)
 	{
-		this(Status.SEE_OTHER, method);
+		this(Status.SEE_OTHER, clazz, method);
 	}
 	
 	/**
@@ -120,7 +133,7 @@ public class RedirectException extends RuntimeException
 
 		try
 		{
-			this.path = UriBuilder.fromResource(clazz).path(clazz, method).build();
+			this.path = Path.resourceUri(clazz, method);
 		}
 		catch (Exception ex)
 		{
@@ -128,6 +141,7 @@ public class RedirectException extends RuntimeException
 		}
 		
 		this.status = status;
+		this.staticTarget = true;
 	}
 
 	public URI getPath()
@@ -139,4 +153,43 @@ public class RedirectException extends RuntimeException
 	{
 		return this.status;
 	}
+	
+	/**
+	 * @return true if the target can't vary between requests (a permanent redirect, or a
+	 *  class or method target), so the resolved redirect may be cached.
+	 */
+	public boolean isStaticTarget()
+	{
+		return this.staticTarget;
+	}
+	
+	/**
+	 * Carries a value to the request after the redirect, where it will be a request attribute.
+	 * 
+	 * @return a copy of this exception with the value added, to be thrown in its place;
+	 *  this one is not changed
+	 */
+	public RedirectException flash(String name, Serializable value)
+	{
+		RedirectException copy;
+		try
+		{
+			copy = (RedirectException) this.clone();
+		}
+		catch (CloneNotSupportedException ex)
+		{
+			// We are Cloneable
+			throw new IllegalStateException(ex);
+		}
+		
+		copy.flash = (this.flash == null) ? new LinkedHashMap<String, Serializable>() : new LinkedHashMap<String, Serializable>(this.flash);
+		copy.flash.put(name, value);
+		return copy;
+	}
+	
+	/** @return the flashed values; empty if there are none */
+	public Map<String, Serializable> getFlash()
+	{
+		return (this.flash == null) ? Collections.<String, Serializable>emptyMap() : Collections.unmodifiableMap(this.flash);
+	}
 }
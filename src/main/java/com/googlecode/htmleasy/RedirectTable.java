@@ -0,0 +1,221 @@
+package com.googlecode.htmleasy;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.core.Response.Status;
+
+/**
+ * An immutable table of fixed redirects, such as legacy URLs left over from a site
+ * migration.  The Htmleasy dispatchers consult the installed table before RESTEasy
+ * matches a resource, so a hit costs one hash lookup and no reflection or URI
+ * parsing; controller targets are resolved when the table is built.
+ *
+ * <code>
+ *   RedirectTable.install(new RedirectTable.Builder()
+ *       .add("/old/about.html", AboutController.class)
+ *       .add("/old/contact.html", ContactController.class, "form")
+ *       .add("/old/blog", "http://blog.example.com/")
+ *       .addAll(legacyUrlMap)
+ *       .build());
+ * </code>
+ *
+ * Source paths are matched exactly against the request path within the webapp
+ * (without the context path or query string); a trailing slash is ignored.
+ */
+public class RedirectTable
+{
+	/** A table with nothing in it */
+	public static final RedirectTable EMPTY = new RedirectTable(Collections.<String, Entry>emptyMap());
+
+	/** */
+	private static volatile RedirectTable installed = EMPTY;
+
+	/** Where a target path is relative to */
+	private enum Base { ABSOLUTE, CONTEXT, RESTEASY }
+
+	/**
+	 * One resolved redirect.
+	 */
+	public static class Entry
+	{
+		private final int status;
+		private final String target;
+		private final Base base;
+
+		Entry(int status, String target, Base base)
+		{
+			this.status = status;
+			this.target = target;
+			this.base = base;
+		}
+
+		/** */
+		public int getStatus() { return this.status; }
+
+		/** @return the target; relative targets have yet to be joined to the context or JAX-RS base */
+		public String getTarget() { return this.target; }
+
+		/**
+		 * @param resteasyBase is the absolute path of the JAX-RS base, e.g. "/ctx/rest"
+		 * @return the value of the Location header
+		 */
+		public String getLocation(HttpServletRequest request, String resteasyBase)
+		{
+			switch (this.base)
+			{
+				case CONTEXT: return request.getContextPath() + this.target;
+				case RESTEASY: return resteasyBase + this.target;
+				default: return this.target;
+			}
+		}
+	}
+
+	/**
+	 * Collects redirects into a table.  Not thread-safe.
+	 */
+	public static class Builder
+	{
+		private final Map<String, Entry> entries = new HashMap<String, Entry>();
+		private Status status = Status.MOVED_PERMANENTLY;
+
+		/** Sets the status for redirects added after this; the default is MOVED_PERMANENTLY (301) */
+		public Builder status(Status status)
+		{
+			this.status = status;
+			return this;
+		}
+
+		/**
+		 * @param to is either an absolute URI or a path within the webapp beginning with '/'
+		 */
+		public Builder add(String from, String to)
+		{
+			Base base = URI.create(to).isAbsolute() ? Base.ABSOLUTE : Base.CONTEXT;
+			return this.put(from, new Entry(this.status.getStatusCode(), to, base));
+		}
+
+		/**
+		 * @param to is a Path annotated class
+		 */
+		public Builder add(String from, Class<?> to)
+		{
+			return this.add(from, to, null);
+		}
+
+		/**
+		 * @param to is a Path annotated class
+		 * @param method is the Path annotated method on it
+		 */
+		public Builder add(String from, Class<?> to, String method)
+		{
+			String target = Path.resourceUri(to, method).toString();
+			if (!target.startsWith("/"))
+				target = "/" + target;
+
+			return this.put(from, new Entry(this.status.getStatusCode(), target, Base.RESTEASY));
+		}
+
+		/**
+		 * Adds many redirects at once.
+		 *
+		 * @param redirects maps source paths to targets as for add(String, String)
+		 */
+		public Builder addAll(Map<String, String> redirects)
+		{
+			for (Map.Entry<String, String> redirect : redirects.entrySet())
+				this.add(redirect.getKey(), redirect.getValue());
+
+			return this;
+		}
+
+		/** */
+		private Builder put(String from, Entry entry)
+		{
+			this.entries.put(normalize(from), entry);
+			return this;
+		}
+
+		/** */
+		public RedirectTable build()
+		{
+			return new RedirectTable(new HashMap<String, Entry>(this.entries));
+		}
+	}
+
+	/** */
+	private final Map<String, Entry> entries;
+
+	/** */
+	private RedirectTable(Map<String, Entry> entries)
+	{
+		this.entries = entries;
+	}
+
+	/** @return the table the dispatchers use; never null */
+	public static RedirectTable getInstalled()
+	{
+		return installed;
+	}
+
+	/**
+	 * Makes the table visible to the dispatchers.  Requests already in flight may
+	 * still see the previous table.
+	 */
+	public static void install(RedirectTable table)
+	{
+		installed = (table == null) ? EMPTY : table;
+	}
+
+	/** @return the number of redirects */
+	public int size()
+	{
+		return this.entries.size();
+	}
+
+	/**
+	 * @param path is the request path within the webapp
+	 * @return the redirect for the path, or null
+	 */
+	public Entry lookup(String path)
+	{
+		return this.entries.get(normalize(path));
+	}
+
+	/**
+	 * Sends the redirect for the request, if there is one.
+	 *
+	 * @param resteasyBase is the absolute path of the JAX-RS base, e.g. "/ctx/rest"
+	 * @return true if a redirect was sent and the request needs no further processing
+	 */
+	public boolean redirect(HttpServletRequest request, HttpServletResponse response, String resteasyBase) throws IOException
+	{
+		if (this.entries.isEmpty())
+			return false;
+
+		String path = request.getRequestURI().substring(request.getContextPath().length());
+
+		Entry entry = this.lookup(path);
+		if (entry == null)
+			return false;
+
+		response.setStatus(entry.getStatus());
+		response.setHeader("Location", entry.getLocation(request, resteasyBase));
+		response.setContentLength(0);
+		return true;
+	}
+
+	/** Strips a trailing slash so that "/foo" and "/foo/" are the same */
+	private static String normalize(String path)
+	{
+		if (path.length() > 1 && path.endsWith("/"))
+			return path.substring(0, path.length() - 1);
+		else
+			return path;
+	}
+}
@@ -0,0 +1,323 @@
+package com.googlecode.htmleasy;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.core.UriInfo;
+
+import org.jboss.resteasy.spi.ResteasyProviderFactory;
+
+/**
+ * Everything a view needs from the request it is rendering for, captured once so
+ * that rendering can move off the container thread.  RESTEasy keeps its context
+ * data (UriInfo, the servlet request and response) in thread locals, which are
+ * empty on pool threads; a RenderContext carries the same things explicitly.
+ *
+ * ViewWriter captures one per request, stores it in the request attributes and
+ * binds it to the rendering thread.  Views can get it back with of(request), and
+ * reverse routes can be built from it with Path.to(context, ...), with no thread
+ * local lookups at all.
+ *
+ * RESTEasy's context data is only copied when the context is handed to another
+ * thread, by wrap(), propagating() or detach(); requests rendered entirely on the
+ * container thread never pay for the copy.  To render on another thread, wrap the
+ * work (or the executor) so the context follows it:
+ *
+ * <code>
+ *   Executor exec = RenderContext.propagating(Executors.newFixedThreadPool(4));
+ *   exec.execute(task);	// task sees the submitting request's context, and Path.to() works
+ * </code>
+ *
+ * Instances are immutable, but the request and response they hold are not; the
+ * usual servlet rules about touching them from several threads still apply.
+ */
+public class RenderContext
+{
+	/** Request attribute holding the context of the request being rendered */
+	public static final String ATTRIBUTE = RenderContext.class.getName();
+
+	/** The context bound to the current thread */
+	private static final ThreadLocal<RenderContext> current = new ThreadLocal<RenderContext>();
+
+	/** */
+	private final URI baseUri;
+	private final String basePath;
+	private final HttpServletRequest request;
+	private final HttpServletResponse response;
+	private final ServletContext servletContext;
+	private final Viewable view;
+
+	/** RESTEasy context data, installed on threads the context is propagated to */
+	private final ContextData contextData;
+
+	/**
+	 * RESTEasy's context data map for the capturing thread, copied the first time the
+	 * context is detached.  Shared by every context derived with with(), so a copy is
+	 * made at most once per request.
+	 */
+	private static class ContextData
+	{
+		private final Map<Class<?>, Object> live;
+		private volatile Map<Class<?>, Object> copy;
+
+		ContextData(Map<Class<?>, Object> live)
+		{
+			this.live = live;
+		}
+
+		/** @return the copy if there is one, otherwise the capturing thread's live map */
+		Map<Class<?>, Object> get()
+		{
+			Map<Class<?>, Object> copy = this.copy;
+			return (copy == null) ? this.live : copy;
+		}
+
+		/** Must first be called on the capturing thread */
+		synchronized void detach()
+		{
+			if (this.copy == null)
+				this.copy = Collections.unmodifiableMap(new HashMap<Class<?>, Object>(this.live));
+		}
+	}
+
+	/**
+	 * @param baseUri is the JAX-RS base URI, e.g. http://host/ctx/rest/; may be null
+	 *  if reverse routes won't be needed
+	 * @param view is the view being rendered; may be null
+	 * @param contextData is RESTEasy context data to install on other threads; it is
+	 *  copied when the context is detached, and must not change before then
+	 */
+	public RenderContext(URI baseUri, HttpServletRequest request, HttpServletResponse response, ServletContext servletContext,
+			Viewable view, Map<Class<?>, Object> contextData)
+	{
+		this(baseUri, request, response, servletContext, view, new ContextData(contextData));
+	}
+
+	/** */
+	private RenderContext(URI baseUri, HttpServletRequest request, HttpServletResponse response, ServletContext servletContext,
+			Viewable view, ContextData contextData)
+	{
+		this.baseUri = baseUri;
+		this.basePath = (baseUri == null) ? null : stripSlash(baseUri.getRawPath());
+		this.request = request;
+		this.response = response;
+		this.servletContext = servletContext;
+		this.view = view;
+		this.contextData = contextData;
+	}
+
+	/**
+	 * Captures the context from RESTEasy's context data on the current thread, which
+	 * must be one RESTEasy is dispatching a request on.
+	 *
+	 * @param view is the view about to be rendered; may be null
+	 */
+	public static RenderContext capture(Viewable view)
+	{
+		UriInfo uriInfo = ResteasyProviderFactory.getContextData(UriInfo.class);
+
+		return new RenderContext(
+				(uriInfo == null) ? null : uriInfo.getBaseUri(),
+				ResteasyProviderFactory.getContextData(HttpServletRequest.class),
+				ResteasyProviderFactory.getContextData(HttpServletResponse.class),
+				ResteasyProviderFactory.getContextData(ServletContext.class),
+				view,
+				ResteasyProviderFactory.getContextDataMap());
+	}
+
+	/** @return a copy rendering to a different request and response, e.g. a snapshot and a buffer */
+	public RenderContext with(HttpServletRequest request, HttpServletResponse response)
+	{
+		return new RenderContext(this.baseUri, request, response, this.servletContext, this.view, this.contextData);
+	}
+
+	/** @return a copy rendering a different view */
+	public RenderContext with(Viewable view)
+	{
+		return new RenderContext(this.baseUri, this.request, this.response, this.servletContext, view, this.contextData);
+	}
+
+	/** */
+	public URI getBaseUri() { return this.baseUri; }
+	public HttpServletRequest getRequest() { return this.request; }
+	public HttpServletResponse getResponse() { return this.response; }
+	public ServletContext getServletContext() { return this.servletContext; }
+	public Viewable getView() { return this.view; }
+
+	/**
+	 * @return the raw path of the base URI without a trailing slash, e.g. "/ctx/rest"
+	 * @throws IllegalStateException if the context was captured without a base URI
+	 */
+	public String getBasePath()
+	{
+		if (this.basePath == null)
+			throw new IllegalStateException("No base URI in this render context");
+
+		return this.basePath;
+	}
+
+	/**
+	 * Copies RESTEasy's context data so that this context, and every one derived from
+	 * it, can be used on other threads.  Must be called on the thread which captured
+	 * the context, before handing it over; wrap() and propagating() do it for you.
+	 *
+	 * @return this
+	 */
+	public RenderContext detach()
+	{
+		this.contextData.detach();
+		return this;
+	}
+
+	/** @return the context bound to the current thread, or null */
+	public static RenderContext current()
+	{
+		return current.get();
+	}
+
+	/**
+	 * @return the context stored in the request by ViewWriter, or failing that the one
+	 *  bound to the current thread; null if there is neither
+	 */
+	public static RenderContext of(HttpServletRequest request)
+	{
+		Object context = request.getAttribute(ATTRIBUTE);
+		return (context instanceof RenderContext) ? (RenderContext) context : current();
+	}
+
+	/**
+	 * Binds a context to the current thread.  Only the context itself is bound; see
+	 * call() to also install RESTEasy's context data.
+	 *
+	 * @param context may be null to unbind
+	 * @return the context previously bound, to be restored by binding it again
+	 */
+	public static RenderContext bind(RenderContext context)
+	{
+		RenderContext previous = current.get();
+		if (context == null)
+			current.remove();
+		else
+			current.set(context);
+
+		return previous;
+	}
+
+	/**
+	 * Runs a task on the current thread with this context bound and its RESTEasy
+	 * context data installed, so that code which still looks things up through
+	 * ResteasyProviderFactory works too.  Everything is restored afterwards.
+	 *
+	 * On any thread but the capturing one, the context must have been detached first.
+	 */
+	public <T> T call(Callable<T> task) throws Exception
+	{
+		RenderContext previous = bind(this);
+		ResteasyProviderFactory.addContextDataLevel();
+		try
+		{
+			ResteasyProviderFactory.getContextDataMap().putAll(this.contextData.get());
+			if (this.request != null)
+				ResteasyProviderFactory.pushContext(HttpServletRequest.class, this.request);
+			if (this.response != null)
+				ResteasyProviderFactory.pushContext(HttpServletResponse.class, this.response);
+
+			return task.call();
+		}
+		finally
+		{
+			ResteasyProviderFactory.removeContextDataLevel();
+			bind(previous);
+		}
+	}
+
+	/**
+	 * Detaches the context, so must be called on the capturing thread.
+	 *
+	 * @return a task which runs the given one as call() would
+	 */
+	public <T> Callable<T> wrap(final Callable<T> task)
+	{
+		this.detach();
+		return new Callable<T>() {
+			public T call() throws Exception
+			{
+				return RenderContext.this.call(task);
+			}
+		};
+	}
+
+	/**
+	 * Detaches the context, so must be called on the capturing thread.
+	 *
+	 * @return a task which runs the given one as call() would
+	 */
+	public Runnable wrap(final Runnable task)
+	{
+		this.detach();
+		return new Runnable() {
+			public void run()
+			{
+				try
+				{
+					RenderContext.this.call(new Callable<Void>() {
+						public Void call()
+						{
+							task.run();
+							return null;
+						}
+					});
+				}
+				catch (RuntimeException ex)
+				{
+					throw ex;
+				}
+				catch (Exception ex)
+				{
+					// A Runnable can't throw anything checked
+					throw new IllegalStateException(ex);
+				}
+			}
+		};
+	}
+
+	/**
+	 * @return an executor which runs each task with the context that was bound to
+	 *  the thread which submitted it.  Tasks submitted with no context bound run as is.
+	 */
+	public static Executor propagating(final Executor executor)
+	{
+		return new Executor() {
+			public void execute(Runnable task)
+			{
+				RenderContext context = current();
+				executor.execute(context == null ? task : context.wrap(task));
+			}
+		};
+	}
+
+	/** */
+	private static String stripSlash(String path)
+	{
+		if (path == null)
+			return "";
+		else if (path.endsWith("/"))
+			return path.substring(0, path.length() - 1);
+		else
+			return path;
+	}
+
+	/** */
+	@Override
+	public String toString()
+	{
+		return this.getClass().getSimpleName() + "(" + this.baseUri + ", " + this.view + ")";
+	}
+}
@@ -0,0 +1,352 @@
+package com.googlecode.htmleasy;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Where the time went for one request, as measured by Htmleasy itself: view
+ * resolution, model prefetch, rendering and time to first byte.  For sampled
+ * requests the dispatchers put one of these in the request attributes under
+ * ATTRIBUTE and send it to the browser in a Server-Timing header, so slow pages
+ * can be diagnosed from the browser's developer tools.
+ *
+ * Headers can't be added once the response is committed, so the header is set
+ * just before the first byte of the body is written, with the phases finished by
+ * then.  If the whole page fits in the response buffer, the header is set again
+ * at the end of the request with every phase, including the render.
+ *
+ * Sampling is off unless configured with init parameters on the dispatcher
+ * filter or servlet:
+ *
+ *   htmleasy.timing.sampleRate  - fraction of requests to time, 0.0 to 1.0; default 0
+ *   htmleasy.timing.cookie      - name of a cookie which turns timing on for that
+ *                                 browser's requests, e.g. htmleasy-timing
+ *   htmleasy.timing.cookieValue - secret the cookie must hold; without it the cookie
+ *                                 is ignored, since timings tell an attacker which
+ *                                 pages are slow and so which ones to hammer
+ *
+ * Requests which aren't sampled pay for one request attribute lookup per phase.
+ */
+public class ServerTiming
+{
+	/** Request attribute holding the ServerTiming for a sampled request */
+	public static final String ATTRIBUTE = ServerTiming.class.getName();
+	
+	/** */
+	public static final String HEADER = "Server-Timing";
+	
+	/** Phase names */
+	public static final String RESOLVE = "resolve";
+	public static final String PREFETCH = "prefetch";
+	public static final String RENDER = "render";
+	public static final String TTFB = "ttfb";
+	public static final String TOTAL = "total";
+	
+	/** Init parameter prefix */
+	public static final String PARAM_PREFIX = "htmleasy.timing.";
+	
+	/** */
+	private static final Logger log = Logger.getLogger(ServerTiming.class.getName());
+	
+	/**
+	 * Decides which requests are timed.
+	 */
+	public static class Sampler
+	{
+		/** */
+		private final double sampleRate;
+		private final String cookieName;
+		private final byte[] cookieValue;
+		
+		/** One per thread, so sampling doesn't contend on a shared seed */
+		private final ThreadLocal<Random> random = new ThreadLocal<Random>() {
+			@Override
+			protected Random initialValue()
+			{
+				return new Random();
+			}
+		};
+		
+		/**
+		 * @param sampleRate is the fraction of requests to time
+		 * @param cookieName is a cookie which turns timing on regardless of the rate; may be null
+		 * @param cookieValue is the secret the cookie must hold; required with cookieName
+		 */
+		public Sampler(double sampleRate, String cookieName, String cookieValue)
+		{
+			if (cookieName != null && (cookieValue == null || cookieValue.length() == 0))
+				throw new IllegalArgumentException("A timing cookie needs a secret value");
+			
+			this.sampleRate = sampleRate;
+			this.cookieName = cookieName;
+			this.cookieValue = (cookieName == null) ? null : cookieValue.getBytes(Charset.forName("UTF-8"));
+		}
+		
+		/**
+		 * Builds a sampler from dispatcher init parameters.
+		 * 
+		 * @return null if timing is not configured
+		 */
+		public static Sampler fromInitParameters(Map<String, String> params)
+		{
+			String rate = params.get(PARAM_PREFIX + "sampleRate");
+			String cookie = params.get(PARAM_PREFIX + "cookie");
+			String cookieValue = params.get(PARAM_PREFIX + "cookieValue");
+			
+			if (cookie != null && (cookieValue == null || cookieValue.trim().length() == 0))
+			{
+				log.warning(PARAM_PREFIX + "cookie is set without " + PARAM_PREFIX + "cookieValue; ignoring the timing cookie");
+				cookie = null;
+			}
+			
+			if (rate == null && cookie == null)
+				return null;
+			
+			return new Sampler(rate == null ? 0 : Double.parseDouble(rate.trim()),
+					cookie == null ? null : cookie.trim(), cookie == null ? null : cookieValue.trim());
+		}
+		
+		/** @return true if the request should be timed */
+		public boolean isSampled(HttpServletRequest request)
+		{
+			if (this.cookieName != null)
+			{
+				Cookie[] cookies = request.getCookies();
+				if (cookies != null)
+					for (Cookie cookie : cookies)
+						if (this.cookieName.equals(cookie.getName()) && cookie.getValue() != null
+								&& MessageDigest.isEqual(this.cookieValue, cookie.getValue().getBytes(Charset.forName("UTF-8"))))
+							return true;
+			}
+			
+			return this.sampleRate > 0 && this.random.get().nextDouble() < this.sampleRate;
+		}
+		
+		/**
+		 * Starts timing the request if it is sampled, putting the ServerTiming in the
+		 * request attributes.
+		 * 
+		 * @return the timing, or null if the request isn't sampled
+		 */
+		public ServerTiming begin(HttpServletRequest request)
+		{
+			if (!this.isSampled(request))
+				return null;
+			
+			ServerTiming timing = new ServerTiming();
+			request.setAttribute(ATTRIBUTE, timing);
+			return timing;
+		}
+	}
+	
+	/** */
+	private final long start = System.nanoTime();
+	
+	/** Phase name to accumulated nanoseconds, in the order first recorded */
+	private final Map<String, Long> phases = new LinkedHashMap<String, Long>();
+	
+	/** @return the timing for a sampled request, or null */
+	public static ServerTiming get(HttpServletRequest request)
+	{
+		Object timing = request.getAttribute(ATTRIBUTE);
+		return (timing instanceof ServerTiming) ? (ServerTiming) timing : null;
+	}
+	
+	/**
+	 * Adds to a phase of the request's timing; does nothing if the request isn't sampled.
+	 */
+	public static void record(HttpServletRequest request, String phase, long nanos)
+	{
+		ServerTiming timing = get(request);
+		if (timing != null)
+			timing.add(phase, nanos);
+	}
+	
+	/** Adds to the time spent in the phase */
+	public synchronized void add(String phase, long nanos)
+	{
+		Long previous = this.phases.get(phase);
+		this.phases.put(phase, (previous == null) ? nanos : previous + nanos);
+	}
+	
+	/** @return a copy of the phases recorded so far, in nanoseconds */
+	public synchronized Map<String, Long> getPhases()
+	{
+		return new LinkedHashMap<String, Long>(this.phases);
+	}
+	
+	/** @return the value of the Server-Timing header for the phases recorded so far */
+	public synchronized String toHeaderValue()
+	{
+		StringBuilder value = new StringBuilder();
+		for (Map.Entry<String, Long> phase : this.phases.entrySet())
+		{
+			if (value.length() > 0)
+				value.append(", ");
+			
+			value.append(phase.getKey()).append(";dur=").append(String.format(Locale.US, "%.3f", phase.getValue() / 1e6));
+		}
+		return value.toString();
+	}
+	
+	/**
+	 * Records the time to first byte and sets the header, unless that has already happened.
+	 */
+	synchronized void firstByte(HttpServletResponse response)
+	{
+		if (this.phases.containsKey(TTFB))
+			return;
+		
+		this.phases.put(TTFB, System.nanoTime() - this.start);
+		if (!response.isCommitted())
+			response.setHeader(HEADER, this.toHeaderValue());
+	}
+	
+	/**
+	 * Records the total and, if the response is still uncommitted, sets the header
+	 * with every phase.  The dispatchers call this when the request is done.
+	 */
+	public synchronized void finish(HttpServletResponse response)
+	{
+		this.phases.put(TOTAL, System.nanoTime() - this.start);
+		if (!response.isCommitted())
+			response.setHeader(HEADER, this.toHeaderValue());
+	}
+	
+	/**
+	 * @return a response which sets the header just before the body starts
+	 */
+	public HttpServletResponse wrap(HttpServletResponse response)
+	{
+		return new TimingResponse(response, this);
+	}
+	
+	/** */
+	@Override
+	public String toString()
+	{
+		return this.getClass().getSimpleName() + "(" + this.toHeaderValue() + ")";
+	}
+	
+	/**
+	 * Watches for the first write, flush or commit of the body.
+	 */
+	private static class TimingResponse extends HttpServletResponseWrapper
+	{
+		/** */
+		private final ServerTiming timing;
+		private ServletOutputStream out;
+		private PrintWriter writer;
+		
+		/** */
+		TimingResponse(HttpServletResponse response, ServerTiming timing)
+		{
+			super(response);
+			this.timing = timing;
+		}
+		
+		/** */
+		private void firstByte()
+		{
+			this.timing.firstByte((HttpServletResponse) this.getResponse());
+		}
+		
+		@Override
+		public ServletOutputStream getOutputStream() throws IOException
+		{
+			if (this.out == null)
+			{
+				final ServletOutputStream real = super.getOutputStream();
+				this.out = new ServletOutputStream() {
+					@Override
+					public void write(int b) throws IOException
+					{
+						firstByte();
+						real.write(b);
+					}
+					
+					@Override
+					public void write(byte[] b, int off, int len) throws IOException
+					{
+						firstByte();
+						real.write(b, off, len);
+					}
+					
+					@Override
+					public void flush() throws IOException
+					{
+						firstByte();
+						real.flush();
+					}
+					
+					@Override
+					public void close() throws IOException
+					{
+						firstByte();
+						real.close();
+					}
+				};
+			}
+			return this.out;
+		}
+		
+		@Override
+		public PrintWriter getWriter() throws IOException
+		{
+			if (this.writer == null)
+			{
+				this.writer = new PrintWriter(new FilterWriter(super.getWriter()) {
+					@Override
+					public void write(int c) throws IOException
+					{
+						firstByte();
+						super.write(c);
+					}
+					
+					@Override
+					public void write(char[] cbuf, int off, int len) throws IOException
+					{
+						firstByte();
+						super.write(cbuf, off, len);
+					}
+					
+					@Override
+					public void write(String str, int off, int len) throws IOException
+					{
+						firstByte();
+						super.write(str, off, len);
+					}
+					
+					@Override
+					public void flush() throws IOException
+					{
+						firstByte();
+						super.flush();
+					}
+				});
+			}
+			return this.writer;
+		}
+		
+		@Override
+		public void flushBuffer() throws IOException
+		{
+			this.firstByte();
+			super.flushBuffer();
+		}
+	}
+}
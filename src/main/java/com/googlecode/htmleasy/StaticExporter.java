@@ -0,0 +1,454 @@
+package com.googlecode.htmleasy;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.annotation.security.DenyAll;
+import javax.annotation.security.PermitAll;
+import javax.annotation.security.RolesAllowed;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.GET;
+import javax.ws.rs.core.UriInfo;
+
+import org.jboss.resteasy.specimpl.PathSegmentImpl;
+import org.jboss.resteasy.specimpl.UriInfoImpl;
+import org.jboss.resteasy.spi.ResteasyProviderFactory;
+
+import com.googlecode.htmleasy.provider.ViewResolver;
+import com.googlecode.htmleasy.util.BufferedHttpServletResponse;
+import com.googlecode.htmleasy.util.CapturingResponseWrapper;
+import com.googlecode.htmleasy.util.LocalAttributesRequestWrapper;
+import com.googlecode.htmleasy.util.StandInHttpServletRequest;
+
+/**
+ * Renders pages ahead of time, for pages which only depend on data that changes
+ * at deploy time.  Give it the resource classes to export; it finds every resource
+ * method which can be rendered without request data, renders each one through the
+ * ViewResolver into a file, and reports how long each page took.  Install the result
+ * with StaticPages.install(report.toStaticPages()) and the dispatchers will serve
+ * the files directly, falling back to live rendering for anything not exported.
+ *
+ * A method is exported if it is a @GET with no parameters, its path has no
+ * template variables, it isn't restricted with @RolesAllowed or @DenyAll, and it has
+ * a @ViewWith or @ViewSet (or returns a type annotated with @ViewWith).  Resource
+ * classes need a no-arg constructor; nothing is injected into them.
+ *
+ * The servlet spec only lets the container's own requests be forwarded to a
+ * template, so there are two ways to run it:
+ *
+ *   - export(resources, request, response), while handling a request (e.g. from an
+ *     admin resource); pages are rendered one at a time against wrappers of that
+ *     request, so any view works on any container.
+ *   - export(resources), e.g. from a ServletContextListener at startup; pages are
+ *     rendered in parallel against stand-in requests, so only views which don't
+ *     dispatch (ConcurrentViewable) can be exported, and the rest are reported as
+ *     failures.
+ *
+ * Either way templates must not depend on the session, the user or request headers.
+ */
+public class StaticExporter
+{
+	/**
+	 * The outcome of exporting one page.
+	 */
+	public static class Page
+	{
+		private final String path;
+		private final File file;
+		private final String contentType;
+		private final long nanos;
+		private final long bytes;
+		private final Throwable error;
+
+		Page(String path, File file, String contentType, long nanos, long bytes, Throwable error)
+		{
+			this.path = path;
+			this.file = file;
+			this.contentType = contentType;
+			this.nanos = nanos;
+			this.bytes = bytes;
+			this.error = error;
+		}
+
+		/** @return the path of the page relative to the JAX-RS base, e.g. "/about" */
+		public String getPath() { return this.path; }
+
+		/** @return where the page was written, or null if it failed */
+		public File getFile() { return this.file; }
+
+		/** */
+		public String getContentType() { return this.contentType; }
+		public long getNanos() { return this.nanos; }
+		public long getBytes() { return this.bytes; }
+
+		/** @return why the page couldn't be exported, or null if it was */
+		public Throwable getError() { return this.error; }
+
+		/** */
+		public boolean isExported() { return this.error == null; }
+
+		@Override
+		public String toString()
+		{
+			return String.format("%8dms %10dB  %s%s", this.nanos / 1000000, this.bytes, this.path,
+					this.error == null ? "" : "  FAILED: " + this.error);
+		}
+	}
+
+	/**
+	 * The outcome of an export run.
+	 */
+	public static class Report
+	{
+		private final List<Page> pages;
+		private final long elapsedNanos;
+
+		Report(List<Page> pages, long elapsedNanos)
+		{
+			this.pages = Collections.unmodifiableList(pages);
+			this.elapsedNanos = elapsedNanos;
+		}
+
+		/** @return every page attempted, in the order the resources and methods were given */
+		public List<Page> getPages() { return this.pages; }
+
+		/** @return the wall clock time of the whole export */
+		public long getElapsedNanos() { return this.elapsedNanos; }
+
+		/** */
+		public List<Page> getFailures()
+		{
+			List<Page> failures = new ArrayList<Page>();
+			for (Page page : this.pages)
+				if (!page.isExported())
+					failures.add(page);
+
+			return failures;
+		}
+
+		/** @return the exported pages, ready for StaticPages.install() */
+		public StaticPages toStaticPages()
+		{
+			return new StaticPages(this.pages);
+		}
+
+		/** One line per page with its render time and size */
+		@Override
+		public String toString()
+		{
+			StringBuilder bld = new StringBuilder();
+			for (Page page : this.pages)
+				bld.append(page).append('\n');
+
+			bld.append(String.format("%d pages, %d failed, %dms", this.pages.size(), this.getFailures().size(), this.elapsedNanos / 1000000));
+			return bld.toString();
+		}
+	}
+
+	/**
+	 * A container request made to look like a GET of one page, with no query string
+	 * or parameters and its own attributes.
+	 */
+	private static class PageRequest extends LocalAttributesRequestWrapper
+	{
+		private final String servletPath;
+		private final String pathInfo;
+
+		PageRequest(HttpServletRequest request, String servletPath, String pathInfo)
+		{
+			super(request);
+			this.servletPath = servletPath;
+			this.pathInfo = pathInfo;
+		}
+
+		@Override public String getMethod() { return "GET"; }
+		@Override public String getServletPath() { return this.servletPath; }
+		@Override public String getPathInfo() { return this.pathInfo; }
+		@Override public String getPathTranslated() { return null; }
+		@Override public String getQueryString() { return null; }
+		@Override public String getRequestURI() { return this.getContextPath() + this.servletPath + this.pathInfo; }
+		@Override public String getParameter(String name) { return null; }
+		@Override public String[] getParameterValues(String name) { return null; }
+		@Override public Map<String, String[]> getParameterMap() { return Collections.<String, String[]>emptyMap(); }
+		@Override public Enumeration<String> getParameterNames() { return Collections.enumeration(Collections.<String>emptyList()); }
+
+		@Override
+		public StringBuffer getRequestURL()
+		{
+			StringBuffer url = new StringBuffer();
+			url.append(this.getScheme()).append("://").append(this.getServerName());
+			if (!(("http".equals(this.getScheme()) && this.getServerPort() == 80) || ("https".equals(this.getScheme()) && this.getServerPort() == 443)))
+				url.append(':').append(this.getServerPort());
+
+			return url.append(this.getRequestURI());
+		}
+
+		/** Relative paths are resolved against the page's path, not the real request's */
+		@Override
+		public RequestDispatcher getRequestDispatcher(String path)
+		{
+			if (path != null && !path.startsWith("/"))
+			{
+				String current = this.servletPath + this.pathInfo;
+				path = current.substring(0, current.lastIndexOf('/') + 1) + path;
+			}
+			return super.getRequestDispatcher(path);
+		}
+	}
+
+	/** */
+	private final ServletContext context;
+	private final ViewResolver resolver;
+	private final File outputDir;
+
+	private String mappingPrefix = "";
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * @param context dispatches to the templates
+	 * @param resolver picks the view for each page; normally the one from ViewWriter
+	 * @param outputDir is where pages are written, as path/index.html
+	 */
+	public StaticExporter(ServletContext context, ViewResolver resolver, File outputDir)
+	{
+		this.context = context;
+		this.resolver = resolver;
+		this.outputDir = outputDir;
+	}
+
+	/**
+	 * @param mappingPrefix is the JAX-RS base within the context, e.g. "/rest"; the default is ""
+	 */
+	public void setMappingPrefix(String mappingPrefix) { this.mappingPrefix = mappingPrefix; }
+
+	/**
+	 * @param threads is how many pages render at once; the default is the number of processors
+	 */
+	public void setThreads(int threads) { this.threads = threads; }
+
+	/**
+	 * @return the methods of the resource class which can be exported
+	 */
+	public List<Method> findPages(Class<?> resource)
+	{
+		List<Method> found = new ArrayList<Method>();
+		for (Method method : resource.getMethods())
+		{
+			if (!method.isAnnotationPresent(GET.class) || method.getParameterTypes().length > 0)
+				continue;
+
+			boolean hasView = method.isAnnotationPresent(ViewWith.class)
+				|| method.isAnnotationPresent(ViewSet.class)
+				|| method.getReturnType().isAnnotationPresent(ViewWith.class);
+
+			// Static pages are served to anyone, before RESTEasy's security runs
+			boolean restricted = method.isAnnotationPresent(RolesAllowed.class) || method.isAnnotationPresent(DenyAll.class)
+				|| (!method.isAnnotationPresent(PermitAll.class)
+					&& (resource.isAnnotationPresent(RolesAllowed.class) || resource.isAnnotationPresent(DenyAll.class)));
+
+			if (hasView && !restricted && this.pathOf(resource, method).indexOf('{') < 0)
+				found.add(method);
+		}
+		return found;
+	}
+
+	/**
+	 * Exports every page found on the resource classes, in parallel, against stand-in
+	 * requests.  Pages whose views dispatch fail; see the class comment.
+	 */
+	public Report export(Collection<Class<?>> resources) throws InterruptedException
+	{
+		long start = System.nanoTime();
+
+		List<Callable<Page>> tasks = new ArrayList<Callable<Page>>();
+		for (final Class<?> resource : resources)
+		{
+			for (final Method method : this.findPages(resource))
+			{
+				tasks.add(new Callable<Page>() {
+					public Page call()
+					{
+						return exportPage(resource, method);
+					}
+				});
+			}
+		}
+
+		List<Page> pages = new ArrayList<Page>(tasks.size());
+
+		ExecutorService exec = Executors.newFixedThreadPool(Math.max(1, this.threads));
+		try
+		{
+			for (Future<Page> future : exec.invokeAll(tasks))
+			{
+				try
+				{
+					pages.add(future.get());
+				}
+				catch (ExecutionException ex)
+				{
+					// exportPage() catches everything it can, so this is an Error
+					throw new RuntimeException(ex.getCause());
+				}
+			}
+		}
+		finally
+		{
+			exec.shutdownNow();
+		}
+
+		return new Report(pages, System.nanoTime() - start);
+	}
+
+	/**
+	 * Exports every page found on the resource classes, one at a time on the calling
+	 * thread, which must be handling the given request.  Each page is rendered against
+	 * a wrapper of the request and into a wrapper of the response, neither of which
+	 * sees anything of the page, so views may dispatch as usual.
+	 */
+	public Report export(Collection<Class<?>> resources, HttpServletRequest request, HttpServletResponse response)
+	{
+		long start = System.nanoTime();
+
+		List<Page> pages = new ArrayList<Page>();
+		for (Class<?> resource : resources)
+			for (Method method : this.findPages(resource))
+				pages.add(this.exportPage(resource, method, request, response));
+
+		return new Report(pages, System.nanoTime() - start);
+	}
+
+	/**
+	 * Invokes one resource method, renders the result against a stand-in request and
+	 * writes it to disk.
+	 */
+	protected Page exportPage(Class<?> resource, Method method)
+	{
+		return this.exportPage(resource, method, null, null);
+	}
+
+	/**
+	 * Invokes one resource method, renders the result and writes it to disk.
+	 *
+	 * @param containerRequest is the request being handled on this thread, or null to
+	 *  render against a stand-in request
+	 * @param containerResponse is its response, or null
+	 */
+	protected Page exportPage(Class<?> resource, Method method, HttpServletRequest containerRequest, HttpServletResponse containerResponse)
+	{
+		String path = this.pathOf(resource, method);
+		long start = System.nanoTime();
+
+		HttpServletRequest request;
+		HttpServletResponse target;
+		BufferedHttpServletResponse response;
+		if (containerRequest == null)
+		{
+			StandInHttpServletRequest standIn = new StandInHttpServletRequest(this.context, "GET", this.mappingPrefix, path);
+			standIn.addHeader("Accept", "text/html");
+			request = standIn;
+			response = new BufferedHttpServletResponse();
+			target = response;
+		}
+		else
+		{
+			request = new PageRequest(containerRequest, this.mappingPrefix, path);
+			response = new BufferedHttpServletResponse(containerResponse);
+			target = new CapturingResponseWrapper(containerResponse, response);
+		}
+
+		ResteasyProviderFactory.addContextDataLevel();
+		try
+		{
+			ResteasyProviderFactory.pushContext(UriInfo.class, this.uriInfoFor(path));
+			ResteasyProviderFactory.pushContext(HttpServletRequest.class, request);
+			ResteasyProviderFactory.pushContext(HttpServletResponse.class, target);
+			ResteasyProviderFactory.pushContext(ServletContext.class, this.context);
+
+			Object entity = method.invoke(resource.newInstance());
+			Class<?> type = (entity == null) ? method.getReturnType() : entity.getClass();
+
+			Viewable view = this.resolver.getView(entity, type, method.getGenericReturnType(), method.getAnnotations());
+			if (view == null)
+				throw new IllegalStateException("No view resolved for " + type.getName());
+
+			if (containerRequest == null && !(view instanceof ConcurrentViewable))
+				throw new IllegalStateException(view + " may dispatch, which needs a container request; export it with export(resources, request, response)");
+
+			view.render(request, target);
+
+			if (response.getStatus() != HttpServletResponse.SC_OK)
+				throw new IllegalStateException("Rendering returned status " + response.getStatus());
+
+			File file = this.fileFor(path);
+			file.getParentFile().mkdirs();
+
+			OutputStream out = new FileOutputStream(file);
+			try
+			{
+				response.writeTo(out);
+			}
+			finally
+			{
+				out.close();
+			}
+
+			String contentType = (response.getContentType() == null) ? "text/html" : response.getContentType();
+			return new Page(path, file, contentType, System.nanoTime() - start, response.size(), null);
+		}
+		catch (InvocationTargetException ex)
+		{
+			return new Page(path, null, null, System.nanoTime() - start, 0, ex.getCause());
+		}
+		catch (Exception ex)
+		{
+			return new Page(path, null, null, System.nanoTime() - start, 0, ex);
+		}
+		finally
+		{
+			ResteasyProviderFactory.removeContextDataLevel();
+		}
+	}
+
+	/**
+	 * @return the path of the method relative to the JAX-RS base, always with a leading slash
+	 */
+	protected String pathOf(Class<?> resource, Method method)
+	{
+		String name = method.isAnnotationPresent(javax.ws.rs.Path.class) ? method.getName() : null;
+		String path = Path.resourceUri(resource, name).getPath();
+		return path.startsWith("/") ? path : "/" + path;
+	}
+
+	/** */
+	protected File fileFor(String path)
+	{
+		return new File(new File(this.outputDir, path.substring(1)), "index.html");
+	}
+
+	/** So that Path.to() works in exported templates */
+	private UriInfo uriInfoFor(String path)
+	{
+		URI base = URI.create("http://localhost" + this.context.getContextPath() + this.mappingPrefix + "/");
+		return new UriInfoImpl(base.resolve(path.substring(1)), base, path, null, PathSegmentImpl.parseSegments(path, false));
+	}
+}
@@ -0,0 +1,149 @@
+package com.googlecode.htmleasy;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Pre-rendered pages (see StaticExporter) which the Htmleasy dispatchers serve
+ * straight from disk, before RESTEasy matches a resource.  Only GET and HEAD
+ * requests without a query string are served; anything else, or a page whose file
+ * has gone missing, falls through to live rendering.
+ *
+ * Since RESTEasy never sees these requests, its interceptors, filters and security
+ * (@RolesAllowed and the like) don't run for them; servlet filters and container
+ * security constraints mapped ahead of the dispatcher still do.  Every page is
+ * served to anyone who asks.  StaticExporter leaves out methods restricted with
+ * @RolesAllowed or @DenyAll, but only the paths given here are served, so pages which
+ * rely on anything else RESTEasy does can be left out with without().
+ */
+public class StaticPages
+{
+	/** No pages at all */
+	public static final StaticPages EMPTY = new StaticPages(Collections.<StaticExporter.Page>emptyList());
+
+	/** */
+	private static volatile StaticPages installed = EMPTY;
+
+	/** Exported pages by path relative to the JAX-RS base */
+	private final Map<String, StaticExporter.Page> pages;
+
+	/**
+	 * @param exported may include failed pages, which are ignored
+	 */
+	public StaticPages(Collection<StaticExporter.Page> exported)
+	{
+		Map<String, StaticExporter.Page> map = new HashMap<String, StaticExporter.Page>();
+		for (StaticExporter.Page page : exported)
+			if (page.isExported())
+				map.put(page.getPath(), page);
+
+		this.pages = map;
+	}
+
+	/** @return the pages the dispatchers serve; never null */
+	public static StaticPages getInstalled()
+	{
+		return installed;
+	}
+
+	/**
+	 * Makes the pages visible to the dispatchers.
+	 */
+	public static void install(StaticPages pages)
+	{
+		installed = (pages == null) ? EMPTY : pages;
+	}
+
+	/**
+	 * @param paths are paths relative to the JAX-RS base, e.g. "/account"
+	 * @return a copy which doesn't serve the given paths
+	 */
+	public StaticPages without(String... paths)
+	{
+		Map<String, StaticExporter.Page> map = new HashMap<String, StaticExporter.Page>(this.pages);
+		for (String path : paths)
+			map.remove(path);
+
+		return new StaticPages(map.values());
+	}
+
+	/** @return the paths served, relative to the JAX-RS base */
+	public Set<String> getPaths()
+	{
+		return Collections.unmodifiableSet(this.pages.keySet());
+	}
+
+	/** */
+	public int size()
+	{
+		return this.pages.size();
+	}
+
+	/**
+	 * Serves the page for the request, if there is one.
+	 *
+	 * @param resteasyBase is the absolute path of the JAX-RS base, e.g. "/ctx/rest"
+	 * @return true if the page was served and the request needs no further processing
+	 */
+	public boolean serve(HttpServletRequest request, HttpServletResponse response, String resteasyBase) throws IOException
+	{
+		if (this.pages.isEmpty() || request.getQueryString() != null)
+			return false;
+
+		String method = request.getMethod();
+		boolean head = "HEAD".equals(method);
+		if (!head && !"GET".equals(method))
+			return false;
+
+		String uri = request.getRequestURI();
+		if (!uri.startsWith(resteasyBase))
+			return false;
+
+		String path = uri.substring(resteasyBase.length());
+		if (path.length() > 1 && path.endsWith("/"))
+			path = path.substring(0, path.length() - 1);
+		else if (path.length() == 0)
+			path = "/";
+
+		StaticExporter.Page page = this.pages.get(path);
+		if (page == null)
+			return false;
+
+		File file = page.getFile();
+		if (!file.isFile())
+			return false;
+
+		response.setContentType(page.getContentType());
+		response.setContentLength((int) file.length());
+
+		if (!head)
+		{
+			InputStream in = new FileInputStream(file);
+			try
+			{
+				OutputStream out = response.getOutputStream();
+				byte[] buf = new byte[8192];
+				int read;
+				while ((read = in.read(buf)) >= 0)
+					out.write(buf, 0, read);
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+
+		return true;
+	}
+}
@@ -0,0 +1,166 @@
+package com.googlecode.htmleasy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.WebApplicationException;
+
+import org.jboss.resteasy.spi.InternalServerErrorException;
+
+/**
+ * A view for very large lists.  Rather than requiring the whole model in memory,
+ * it walks an Iterable (typically a database cursor) and renders each row as it is
+ * read, flushing to the client every so often.  Memory use stays flat no matter how
+ * many rows there are.
+ *
+ * Rows are rendered by including a row template once per row, with the row in the
+ * request attributes.  Optional header and footer templates are included before and
+ * after.  Because these are includes rather than forwards, the templates can't set
+ * headers; set the content type before returning the view if the default isn't right.
+ * If the Iterator is Closeable, it is closed when rendering ends.
+ *
+ * <code>
+ *   return new StreamingView<Order>("/orders_head.jsp", "/order_row.jsp", "/orders_foot.jsp", orderCursor);
+ * </code>
+ */
+public class StreamingView<T> implements Viewable
+{
+	/** If left unspecified, the name of the current row in the request attributes */
+	public static final String DEFAULT_ROW_NAME = "row";
+
+	/** If left unspecified, how many rows are rendered between flushes */
+	public static final int DEFAULT_FLUSH_EVERY = 100;
+
+	/** */
+	protected String headerPath;
+	protected String rowPath;
+	protected String footerPath;
+	protected Iterable<T> rows;
+	protected String rowName;
+	protected int flushEvery;
+
+	/**
+	 * Renders just the rows.
+	 */
+	public StreamingView(String rowPath, Iterable<T> rows)
+	{
+		this(null, rowPath, null, rows);
+	}
+
+	/**
+	 * @param headerPath may be null
+	 * @param footerPath may be null
+	 */
+	public StreamingView(String headerPath, String rowPath, String footerPath, Iterable<T> rows)
+	{
+		this(headerPath, rowPath, footerPath, rows, DEFAULT_ROW_NAME, DEFAULT_FLUSH_EVERY);
+	}
+
+	/**
+	 * @param headerPath may be null
+	 * @param footerPath may be null
+	 * @param rowName is the request attribute holding the current row; the zero-based
+	 *  row index is available as rowName + "Index"
+	 * @param flushEvery is the number of rows rendered between flushes to the client
+	 */
+	public StreamingView(String headerPath, String rowPath, String footerPath, Iterable<T> rows, String rowName, int flushEvery)
+	{
+		if (flushEvery < 1)
+			throw new IllegalArgumentException("flushEvery must be positive");
+
+		this.headerPath = headerPath;
+		this.rowPath = rowPath;
+		this.footerPath = footerPath;
+		this.rows = rows;
+		this.rowName = rowName;
+		this.flushEvery = flushEvery;
+	}
+
+	/** */
+	public String getHeaderPath() { return this.headerPath; }
+	public String getRowPath() { return this.rowPath; }
+	public String getFooterPath() { return this.footerPath; }
+	public String getRowName() { return this.rowName; }
+	public int getFlushEvery() { return this.flushEvery; }
+
+	/**
+	 * Includes the header, each row and the footer in turn, flushing as it goes.
+	 */
+	public void render(HttpServletRequest request, HttpServletResponse response)
+			throws IOException, ServletException, WebApplicationException
+	{
+		request.setAttribute(StreamingView.class.getName(), this);
+
+		if (response.getContentType() == null)
+			response.setContentType("text/html");
+
+		if (this.headerPath != null)
+			this.include(this.headerPath, request, response);
+
+		String indexName = this.rowName + "Index";
+		Iterator<T> it = this.rows.iterator();
+		try
+		{
+			int index = 0;
+			while (it.hasNext())
+			{
+				T row = it.next();
+
+				request.setAttribute(this.rowName, row);
+				request.setAttribute(indexName, index);
+
+				this.renderRow(row, index, request, response);
+
+				index++;
+				if (index % this.flushEvery == 0)
+					response.flushBuffer();
+			}
+		}
+		finally
+		{
+			request.removeAttribute(this.rowName);
+			request.removeAttribute(indexName);
+
+			if (it instanceof Closeable)
+				((Closeable) it).close();
+		}
+
+		if (this.footerPath != null)
+			this.include(this.footerPath, request, response);
+
+		response.flushBuffer();
+	}
+
+	/**
+	 * Renders a single row; the row is already in the request attributes.  Override
+	 * this to write rows directly to the response instead of including a template.
+	 */
+	protected void renderRow(T row, int index, HttpServletRequest request, HttpServletResponse response)
+			throws IOException, ServletException
+	{
+		this.include(this.rowPath, request, response);
+	}
+
+	/** */
+	protected void include(String path, HttpServletRequest request, HttpServletResponse response)
+			throws IOException, ServletException
+	{
+		RequestDispatcher disp = request.getRequestDispatcher(path);
+		if (disp == null)
+			throw new InternalServerErrorException("No dispatcher found for path '" + path + "'");
+
+		disp.include(request, response);
+	}
+
+	/** */
+	@Override
+	public String toString()
+	{
+		return this.getClass().getSimpleName() + "(" + this.rowPath + ")";
+	}
+}
@@ -74,4 +74,11 @@ public class View implements Viewable
 		
 		disp.forward(request, response);
 	}
+	
+	/** */
+	@Override
+	public String toString()
+	{
+		return this.getClass().getSimpleName() + "(" + this.path + ")";
+	}
 }
@@ -0,0 +1,172 @@
+package com.googlecode.htmleasy;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.ws.rs.core.MediaType;
+
+/**
+ * Hooks for watching what Htmleasy does: view resolution, rendering, redirects
+ * and views raised by ViewException.  Install a Listener to feed them to a
+ * profiler, metrics system or flight recorder.  With no listener installed (the
+ * default) each hook costs one volatile read.
+ *
+ * Resolutions and renders are only reported when they take at least their
+ * threshold, so that a listener sees the slow ones without being flooded.  On a
+ * JDK with Flight Recorder, a listener can commit jdk.jfr events of its own from
+ * these callbacks, which puts slow pages in the same recording as GC pauses and
+ * lock contention:
+ *
+ * <code>
+ *   ViewEvents.setListener(new ViewEvents.Adapter() {
+ *       public void rendered(String view, Class<?> modelClass, long nanos, long bytes, boolean failed) {
+ *           RenderEvent event = new RenderEvent();   // extends jdk.jfr.Event
+ *           event.view = view;
+ *           event.nanos = nanos;
+ *           event.commit();
+ *       }
+ *   });
+ * </code>
+ *
+ * Listener methods are called on request threads and must not throw; anything
+ * they do throw is logged and ignored.
+ */
+public class ViewEvents
+{
+	/** */
+	private static final Logger log = Logger.getLogger(ViewEvents.class.getName());
+	
+	/**
+	 * Receives events.  Extend Adapter rather than implementing this directly, so
+	 * that events added later don't break the listener.
+	 */
+	public interface Listener
+	{
+		/**
+		 * A view was resolved for an entity type.
+		 * 
+		 * @param mediaType is null when resolving for rendering rather than for isWriteable()
+		 * @param cached is true if the resolution came from the resolver's cache
+		 */
+		public void resolved(Class<?> type, MediaType mediaType, boolean resolvable, boolean cached, long nanos);
+		
+		/**
+		 * A view was rendered, or failed to render.
+		 * 
+		 * @param view is the template path, or the Viewable class for views that aren't templates
+		 * @param modelClass may be null
+		 * @param bytes is the size of the output (chars if it was written as text)
+		 */
+		public void rendered(String view, Class<?> modelClass, long nanos, long bytes, boolean failed);
+		
+		/** A RedirectException was turned into a redirect */
+		public void redirected(int status, URI target);
+		
+		/** A ViewException was turned into a view */
+		public void viewRaised(Viewable view);
+	}
+	
+	/**
+	 * A Listener which ignores everything; override the events you want.
+	 */
+	public static class Adapter implements Listener
+	{
+		public void resolved(Class<?> type, MediaType mediaType, boolean resolvable, boolean cached, long nanos) {}
+		public void rendered(String view, Class<?> modelClass, long nanos, long bytes, boolean failed) {}
+		public void redirected(int status, URI target) {}
+		public void viewRaised(Viewable view) {}
+	}
+	
+	/** */
+	private static volatile Listener listener;
+	private static volatile long resolveThresholdNanos = TimeUnit.MILLISECONDS.toNanos(1);
+	private static volatile long renderThresholdNanos = TimeUnit.MILLISECONDS.toNanos(20);
+	
+	/** Not instantiable */
+	private ViewEvents() {}
+	
+	/** @param l receives events from now on; null turns events off */
+	public static void setListener(Listener l) { listener = l; }
+	
+	/** @return the listener, or null if events are off */
+	public static Listener getListener() { return listener; }
+	
+	/** @return true if a listener is installed, so callers can skip timing otherwise */
+	public static boolean isEnabled() { return listener != null; }
+	
+	/** Resolutions faster than this aren't reported; the default is 1ms */
+	public static void setResolveThreshold(long time, TimeUnit unit) { resolveThresholdNanos = unit.toNanos(time); }
+	
+	/** Renders faster than this aren't reported; the default is 20ms, and 0 reports every render */
+	public static void setRenderThreshold(long time, TimeUnit unit) { renderThresholdNanos = unit.toNanos(time); }
+	
+	/** */
+	public static void resolved(Class<?> type, MediaType mediaType, boolean resolvable, boolean cached, long nanos)
+	{
+		Listener l = listener;
+		if (l != null && nanos >= resolveThresholdNanos)
+		{
+			try
+			{
+				l.resolved(type, mediaType, resolvable, cached, nanos);
+			}
+			catch (RuntimeException ex)
+			{
+				log.log(Level.WARNING, "View event listener failed", ex);
+			}
+		}
+	}
+	
+	/** */
+	public static void rendered(String view, Class<?> modelClass, long nanos, long bytes, boolean failed)
+	{
+		Listener l = listener;
+		if (l != null && (nanos >= renderThresholdNanos || failed))
+		{
+			try
+			{
+				l.rendered(view, modelClass, nanos, bytes, failed);
+			}
+			catch (RuntimeException ex)
+			{
+				log.log(Level.WARNING, "View event listener failed", ex);
+			}
+		}
+	}
+	
+	/** */
+	public static void redirected(int status, URI target)
+	{
+		Listener l = listener;
+		if (l != null)
+		{
+			try
+			{
+				l.redirected(status, target);
+			}
+			catch (RuntimeException ex)
+			{
+				log.log(Level.WARNING, "View event listener failed", ex);
+			}
+		}
+	}
+	
+	/** */
+	public static void viewRaised(Viewable view)
+	{
+		Listener l = listener;
+		if (l != null)
+		{
+			try
+			{
+				l.viewRaised(view);
+			}
+			catch (RuntimeException ex)
+			{
+				log.log(Level.WARNING, "View event listener failed", ex);
+			}
+		}
+	}
+}
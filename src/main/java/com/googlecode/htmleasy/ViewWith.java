@@ -30,4 +30,22 @@ public @interface ViewWith
 	
 	/** The name of the model in the request attributes */
 	String modelName() default View.DEFAULT_MODEL_NAME;
+	
+	/**
+	 * If true, the model is exposed to the view as a read-only Map of its bean
+	 * properties instead of the bean itself.  The property table is built once per
+	 * model class, so ${model.name} style lookups skip per-request introspection.
+	 * Off by default; turn it on only for views that read nothing but properties,
+	 * because the view no longer sees the model object:
+	 * <ul>
+	 * <li>EL method calls such as ${model.total()} fail, and ${model.size} reads a
+	 *  property named size rather than calling Map.size().</li>
+	 * <li>instanceof checks and casts on the model in scriptlets or custom tags
+	 *  fail; the attribute is a Map, not the model class.</li>
+	 * <li>Public fields and setters are not visible, and the map can't be written.</li>
+	 * </ul>
+	 * Containers whose EL resolver already caches bean properties gain little;
+	 * bench.PropertyMapBenchmark (mvn -Pbench verify) measures the difference.
+	 */
+	boolean propertyMap() default false;
 }
@@ -0,0 +1,296 @@
+package com.googlecode.htmleasy.apt;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.annotation.processing.SupportedOptions;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic.Kind;
+import javax.tools.FileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Generates a ViewIndex for the @ViewWith and @ViewSet annotations in a module,
+ * and checks @ViewSet ordering: an entry which can never be chosen because an
+ * earlier entry's ifClass already covers it is a compile error.
+ * 
+ * The processor is registered in htmleasy's META-INF/services, so javac runs it
+ * for any module with htmleasy on the classpath.  The generated class is named by
+ * the processor option htmleasy.index (e.g. -Ahtmleasy.index=com.example.Views),
+ * or else HtmleasyViewIndex in the common package of the annotated classes.
+ * 
+ * Only class level @ViewWith bindings are indexed, by class name so that loading
+ * the index doesn't load the model classes.  @ViewWith and @ViewSet on resource
+ * methods are checked but not indexed, since RESTEasy passes them to the resolver
+ * anyway.
+ */
+@SupportedAnnotationTypes({ViewIndexProcessor.VIEW_WITH, ViewIndexProcessor.VIEW_SET})
+@SupportedOptions(ViewIndexProcessor.INDEX_OPTION)
+public class ViewIndexProcessor extends AbstractProcessor
+{
+	/** */
+	static final String VIEW_WITH = "com.googlecode.htmleasy.ViewWith";
+	static final String VIEW_SET = "com.googlecode.htmleasy.ViewSet";
+	static final String VIEW = "com.googlecode.htmleasy.View";
+	static final String INDEX_OPTION = "htmleasy.index";
+	
+	/** */
+	private static final String INDEX_INTERFACE = "com.googlecode.htmleasy.provider.ViewIndex";
+	
+	/** Lines of the generated register() method */
+	private final List<String> registrations = new ArrayList<String>();
+	
+	/** Packages of annotated classes, for picking a default index name */
+	private String commonPackage;
+	
+	/** */
+	private final List<Element> originating = new ArrayList<Element>();
+	
+	/** The index can only be written once */
+	private boolean generated;
+	
+	/** */
+	@Override
+	public SourceVersion getSupportedSourceVersion()
+	{
+		return SourceVersion.latestSupported();
+	}
+	
+	/** */
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv)
+	{
+		TypeElement viewWith = this.processingEnv.getElementUtils().getTypeElement(VIEW_WITH);
+		TypeElement viewSet = this.processingEnv.getElementUtils().getTypeElement(VIEW_SET);
+		
+		if (viewWith != null)
+			for (Element element : roundEnv.getElementsAnnotatedWith(viewWith))
+				this.processViewWith(element, this.findMirror(element, VIEW_WITH));
+		
+		if (viewSet != null)
+			for (Element element : roundEnv.getElementsAnnotatedWith(viewSet))
+				this.processViewSet(element, this.findMirror(element, VIEW_SET));
+		
+		// Generate as soon as there is something to index, so the index itself is
+		// compiled in a later round; bindings in sources generated by other
+		// processors after that are left to reflection
+		if (!this.registrations.isEmpty())
+		{
+			if (this.generated)
+				this.processingEnv.getMessager().printMessage(Kind.NOTE, "View bindings in generated sources are not indexed; they will be resolved by reflection");
+			else
+				this.generate();
+			
+			this.generated = true;
+			this.registrations.clear();
+		}
+		
+		return false;
+	}
+	
+	/** */
+	private void processViewWith(Element element, AnnotationMirror mirror)
+	{
+		if (element.getKind().isClass() || element.getKind().isInterface())
+		{
+			TypeElement type = (TypeElement) element;
+			String binaryName = this.processingEnv.getElementUtils().getBinaryName(type).toString();
+			
+			this.addPackageOf(type);
+			this.originating.add(type);
+			this.registrations.add("registry.type(" + this.literal(binaryName) + ", " + this.bindingArgs(mirror) + ");");
+		}
+	}
+	
+	/** */
+	private void processViewSet(Element element, AnnotationMirror mirror)
+	{
+		@SuppressWarnings("unchecked")
+		List<? extends AnnotationValue> entries = (List<? extends AnnotationValue>) this.value(mirror, "value");
+		
+		List<TypeMirror> seen = new ArrayList<TypeMirror>();
+		for (AnnotationValue entry : entries)
+		{
+			AnnotationMirror entryMirror = (AnnotationMirror) entry.getValue();
+			TypeMirror ifClass = (TypeMirror) this.value(entryMirror, "ifClass");
+			
+			for (TypeMirror earlier : seen)
+			{
+				if (this.processingEnv.getTypeUtils().isAssignable(ifClass, earlier))
+				{
+					this.processingEnv.getMessager().printMessage(Kind.ERROR,
+							"@ViewWith(ifClass=" + ifClass + ") can never be chosen; the earlier entry for " + earlier + " matches first. Put more specific classes first.",
+							element, mirror);
+				}
+			}
+			seen.add(ifClass);
+			
+			if (this.isViewSentinel(ifClass))
+				this.warn(element, "a @ViewSet entry without ifClass only matches View subclasses");
+		}
+	}
+	
+	/** @return the path, modelName and propertyMap arguments as Java source */
+	private String bindingArgs(AnnotationMirror mirror)
+	{
+		return this.literal((String) this.value(mirror, "value")) + ", "
+			+ this.literal((String) this.value(mirror, "modelName")) + ", "
+			+ this.value(mirror, "propertyMap");
+	}
+	
+	/** Writes the index class and its service file */
+	private void generate()
+	{
+		String name = this.processingEnv.getOptions().get(INDEX_OPTION);
+		if (name == null)
+			name = (this.commonPackage == null || this.commonPackage.length() == 0) ? "HtmleasyViewIndex" : this.commonPackage + ".HtmleasyViewIndex";
+		
+		int dot = name.lastIndexOf('.');
+		String pkg = (dot < 0) ? null : name.substring(0, dot);
+		String simpleName = name.substring(dot + 1);
+		
+		try
+		{
+			JavaFileObject source = this.processingEnv.getFiler().createSourceFile(name, this.originating.toArray(new Element[this.originating.size()]));
+			PrintWriter out = new PrintWriter(source.openWriter());
+			try
+			{
+				if (pkg != null)
+					out.println("package " + pkg + ";");
+				
+				out.println();
+				out.println("/** Generated by " + ViewIndexProcessor.class.getName() + "; do not edit. */");
+				out.println("public final class " + simpleName + " implements " + INDEX_INTERFACE);
+				out.println("{");
+				out.println("\tpublic void register(" + INDEX_INTERFACE + ".Registry registry)");
+				out.println("\t{");
+				for (String line : this.registrations)
+					out.println("\t\t" + line);
+				out.println("\t}");
+				out.println("}");
+			}
+			finally
+			{
+				out.close();
+			}
+			
+			FileObject services = this.processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", "META-INF/services/" + INDEX_INTERFACE);
+			PrintWriter svc = new PrintWriter(services.openWriter());
+			try
+			{
+				svc.println(name);
+			}
+			finally
+			{
+				svc.close();
+			}
+		}
+		catch (IOException ex)
+		{
+			this.processingEnv.getMessager().printMessage(Kind.ERROR, "Unable to write view index " + name + ": " + ex);
+		}
+	}
+	
+	/** @return the annotation of that type on the element */
+	private AnnotationMirror findMirror(Element element, String annotationType)
+	{
+		for (AnnotationMirror mirror : element.getAnnotationMirrors())
+			if (((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(annotationType))
+				return mirror;
+		
+		throw new IllegalStateException("No " + annotationType + " on " + element);
+	}
+	
+	/** @return the value of the member, or its default */
+	private Object value(AnnotationMirror mirror, String member)
+	{
+		Map<? extends ExecutableElement, ? extends AnnotationValue> values = this.processingEnv.getElementUtils().getElementValuesWithDefaults(mirror);
+		for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : values.entrySet())
+			if (entry.getKey().getSimpleName().contentEquals(member))
+				return entry.getValue().getValue();
+		
+		return null;
+	}
+	
+	/** View.class stands for "any class" in ifClass */
+	private boolean isViewSentinel(TypeMirror type)
+	{
+		TypeElement element = this.asTypeElement(type);
+		return element != null && element.getQualifiedName().contentEquals(VIEW);
+	}
+	
+	/** @return the class or interface, after erasure; null for primitives, arrays and void */
+	private TypeElement asTypeElement(TypeMirror type)
+	{
+		TypeMirror erased = this.processingEnv.getTypeUtils().erasure(type);
+		if (erased.getKind() != TypeKind.DECLARED)
+			return null;
+		
+		return (TypeElement) ((DeclaredType) erased).asElement();
+	}
+	
+	/** Narrows the common package to one shared with the type's */
+	private void addPackageOf(TypeElement type)
+	{
+		String pkg = this.processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+		
+		if (this.commonPackage == null)
+		{
+			this.commonPackage = pkg;
+			return;
+		}
+		
+		while (!(pkg.equals(this.commonPackage) || pkg.startsWith(this.commonPackage + ".")))
+		{
+			int dot = this.commonPackage.lastIndexOf('.');
+			this.commonPackage = (dot < 0) ? "" : this.commonPackage.substring(0, dot);
+			if (this.commonPackage.length() == 0)
+				break;
+		}
+	}
+	
+	/** @return the string as a Java literal */
+	private String literal(String value)
+	{
+		StringBuilder out = new StringBuilder(value.length() + 2).append('"');
+		for (int i=0; i<value.length(); i++)
+		{
+			char c = value.charAt(i);
+			switch (c)
+			{
+				case '"': out.append("\\\""); break;
+				case '\\': out.append("\\\\"); break;
+				case '\n': out.append("\\n"); break;
+				case '\r': out.append("\\r"); break;
+				default:
+					if (c < 0x20 || c > 0x7e)
+						out.append(String.format("\\u%04x", (int) c));
+					else
+						out.append(c);
+			}
+		}
+		return out.append('"').toString();
+	}
+	
+	/** */
+	private void warn(Element element, String message)
+	{
+		this.processingEnv.getMessager().printMessage(Kind.WARNING, message, element);
+	}
+}
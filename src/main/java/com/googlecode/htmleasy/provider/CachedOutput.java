@@ -0,0 +1,274 @@
+package com.googlecode.htmleasy.provider;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.servlet.http.HttpServletResponse;
+
+import com.googlecode.htmleasy.CacheOutput;
+
+/**
+ * One rendered page held by the ViewCache, with the times that decide whether it
+ * may still be served.  Entries are stored as bytes (see toBytes()) so that an
+ * OutputStore can keep them off the heap or share them between processes.  An
+ * entry read back with fromBytes() keeps a view of the store's buffer as its body,
+ * so a hit is streamed to the response without copying the page onto the heap.
+ * 
+ * The headers the view set are kept and sent with every hit, except Set-Cookie,
+ * which would hand one user's cookies to everyone, and the content type and length,
+ * which are kept separately.
+ */
+public class CachedOutput
+{
+	/** Leads the serialized form, so stores shared between versions don't misread each other */
+	private static final byte FORMAT = 2;
+	
+	/** Headers which are never stored; compared ignoring case */
+	private static final List<String> UNSTORED_HEADERS = Arrays.asList("Set-Cookie", "Set-Cookie2", "Content-Type", "Content-Length");
+	
+	/** Read-only; position 0 to limit is the body */
+	private final ByteBuffer body;
+	private final String contentType;
+	private final Map<String, List<String>> headers;
+	private final long created;
+	private final long freshUntil;
+	private final long staleUntil;
+	private final long errorUntil;
+	
+	/**
+	 * @param headers are the headers the view set, by name; those which are never stored are left out
+	 * @param created is in milliseconds since the epoch
+	 */
+	public CachedOutput(byte[] body, String contentType, Map<String, List<String>> headers, long created, CacheOutput policy)
+	{
+		this(body, contentType, headers, created,
+				created + policy.maxAge() * 1000L,
+				created + (policy.maxAge() + policy.staleWhileRevalidate()) * 1000L,
+				created + (policy.maxAge() + policy.staleIfError()) * 1000L);
+	}
+	
+	/**
+	 * All times are in milliseconds since the epoch.
+	 * 
+	 * @param headers are the headers the view set, by name; those which are never stored are left out
+	 */
+	public CachedOutput(byte[] body, String contentType, Map<String, List<String>> headers, long created, long freshUntil, long staleUntil, long errorUntil)
+	{
+		this(ByteBuffer.wrap(body), contentType, headers, created, freshUntil, staleUntil, errorUntil);
+	}
+	
+	/**
+	 * All times are in milliseconds since the epoch.
+	 * 
+	 * @param body is the page, from its position to its limit; it is not copied
+	 * @param headers are the headers the view set, by name; those which are never stored are left out
+	 */
+	public CachedOutput(ByteBuffer body, String contentType, Map<String, List<String>> headers, long created, long freshUntil, long staleUntil, long errorUntil)
+	{
+		this.body = body.slice().asReadOnlyBuffer();
+		this.contentType = contentType;
+		this.headers = storedHeaders(headers);
+		this.created = created;
+		this.freshUntil = freshUntil;
+		this.staleUntil = staleUntil;
+		this.errorUntil = errorUntil;
+	}
+	
+	/** @return a read-only view of the page */
+	public ByteBuffer getBody() { return this.body.duplicate(); }
+	
+	/** */
+	public int getLength() { return this.body.limit(); }
+	public String getContentType() { return this.contentType; }
+	public Map<String, List<String>> getHeaders() { return this.headers; }
+	public long getCreated() { return this.created; }
+	public long getFreshUntil() { return this.freshUntil; }
+	public long getStaleUntil() { return this.staleUntil; }
+	public long getErrorUntil() { return this.errorUntil; }
+	
+	/** @return true if the entry can be served without re-rendering */
+	public boolean isFresh(long now) { return now < this.freshUntil; }
+	
+	/** @return true if the entry can be served while it is re-rendered */
+	public boolean isRevalidatable(long now) { return now < this.staleUntil; }
+	
+	/** @return true if the entry can be served when rendering fails */
+	public boolean isUsableOnError(long now) { return now < this.errorUntil; }
+	
+	/** @return true if the entry can never be served again */
+	public boolean isDead(long now) { return now >= this.staleUntil && now >= this.errorUntil; }
+	
+	/**
+	 * Writes the entry as a complete response.
+	 */
+	public void writeTo(HttpServletResponse response) throws IOException
+	{
+		if (this.contentType != null)
+			response.setContentType(this.contentType);
+		
+		for (Map.Entry<String, List<String>> header : this.headers.entrySet())
+			for (String value : header.getValue())
+				response.addHeader(header.getKey(), value);
+		
+		response.setContentLength(this.body.limit());
+		
+		// Copies through a small transfer buffer, never the whole page
+		Channels.newChannel(response.getOutputStream()).write(this.body.duplicate());
+	}
+	
+	/**
+	 * @return the entry in the form fromBytes() reads
+	 */
+	public byte[] toBytes()
+	{
+		try
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(this.body.limit() + 64);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(FORMAT);
+			out.writeLong(this.created);
+			out.writeLong(this.freshUntil);
+			out.writeLong(this.staleUntil);
+			out.writeLong(this.errorUntil);
+			out.writeBoolean(this.contentType != null);
+			if (this.contentType != null)
+				out.writeUTF(this.contentType);
+			out.writeInt(this.headers.size());
+			for (Map.Entry<String, List<String>> header : this.headers.entrySet())
+			{
+				out.writeUTF(header.getKey());
+				out.writeInt(header.getValue().size());
+				for (String value : header.getValue())
+					out.writeUTF(value);
+			}
+			out.writeInt(this.body.limit());
+			Channels.newChannel(out).write(this.body.duplicate());
+			out.close();
+			
+			return bytes.toByteArray();
+		}
+		catch (IOException ex)
+		{
+			// Can't happen writing to memory
+			throw new RuntimeException(ex);
+		}
+	}
+	
+	/**
+	 * @return the entry, or null if the bytes aren't in a format this version understands
+	 */
+	public static CachedOutput fromBytes(byte[] data)
+	{
+		return fromBytes(ByteBuffer.wrap(data));
+	}
+	
+	/**
+	 * Reads the header in place; the entry's body is a view of the data, not a copy.
+	 * 
+	 * @param data is read from its position to its limit, and its position is moved
+	 * @return the entry, or null if the bytes aren't in a format this version understands
+	 */
+	public static CachedOutput fromBytes(ByteBuffer data)
+	{
+		try
+		{
+			if (data.get() != FORMAT)
+				return null;
+			
+			long created = data.getLong();
+			long freshUntil = data.getLong();
+			long staleUntil = data.getLong();
+			long errorUntil = data.getLong();
+			String contentType = (data.get() != 0) ? readUTF(data) : null;
+			
+			Map<String, List<String>> headers = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+			int headerCount = data.getInt();
+			if (headerCount < 0 || headerCount > data.remaining())
+				return null;
+			
+			for (int i = 0; i < headerCount; i++)
+			{
+				String name = readUTF(data);
+				int valueCount = data.getInt();
+				if (valueCount < 0 || valueCount > data.remaining())
+					return null;
+				
+				List<String> values = new ArrayList<String>(valueCount);
+				for (int j = 0; j < valueCount; j++)
+					values.add(readUTF(data));
+				
+				headers.put(name, values);
+			}
+			
+			int length = data.getInt();
+			if (length < 0 || length > data.remaining())
+				return null;
+			
+			ByteBuffer body = data.slice();
+			body.limit(length);
+			
+			return new CachedOutput(body, contentType, headers, created, freshUntil, staleUntil, errorUntil);
+		}
+		catch (BufferUnderflowException ex)
+		{
+			// Truncated
+			return null;
+		}
+		catch (IOException ex)
+		{
+			// Corrupt
+			return null;
+		}
+	}
+	
+	/**
+	 * @return an unmodifiable copy of the headers, without those which are never stored
+	 */
+	private static Map<String, List<String>> storedHeaders(Map<String, List<String>> headers)
+	{
+		Map<String, List<String>> stored = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+		if (headers != null)
+		{
+			for (Map.Entry<String, List<String>> header : headers.entrySet())
+			{
+				if (isStored(header.getKey()) && !header.getValue().isEmpty())
+					stored.put(header.getKey(), Collections.unmodifiableList(new ArrayList<String>(header.getValue())));
+			}
+		}
+		return Collections.unmodifiableMap(stored);
+	}
+	
+	/** */
+	private static boolean isStored(String name)
+	{
+		for (String unstored : UNSTORED_HEADERS)
+			if (unstored.equalsIgnoreCase(name))
+				return false;
+		
+		return true;
+	}
+	
+	/** Reads what DataOutputStream.writeUTF() wrote; the string is short, so this copy is */
+	private static String readUTF(ByteBuffer data) throws IOException
+	{
+		int length = data.getShort() & 0xFFFF;
+		byte[] encoded = new byte[2 + length];
+		encoded[0] = (byte) (length >>> 8);
+		encoded[1] = (byte) length;
+		data.get(encoded, 2, length);
+		
+		return new DataInputStream(new ByteArrayInputStream(encoded)).readUTF();
+	}
+}
@@ -0,0 +1,277 @@
+package com.googlecode.htmleasy.provider;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An OutputStore which keeps each value in its own file in a directory.  Several
+ * JVMs on the same host (or sharing a filesystem) can point at the same directory
+ * and share one cache: values are written to a temporary file and renamed into
+ * place, so readers never see a partial value.
+ * 
+ * File names are a hash of the key; the key itself is stored in the file and
+ * checked on read.  When the directory grows past the byte limit the oldest
+ * written files are deleted.  The sweep which does this runs in whichever JVM
+ * happens to notice, after roughly an eighth of the limit has been written.
+ * 
+ * I/O errors and corrupt files are logged and treated as misses; a broken cache
+ * directory slows the site down but doesn't break it.
+ */
+public class FileOutputStore implements OutputStore
+{
+	/** */
+	private static final Logger log = Logger.getLogger(FileOutputStore.class.getName());
+	
+	/** */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	/** */
+	private static final String SUFFIX = ".out";
+	
+	/** Temporary files older than this were left by a crashed writer */
+	private static final long ABANDONED_MILLIS = 60 * 60 * 1000;
+	
+	/** */
+	private static final FileFilter ENTRIES = new FileFilter() {
+		public boolean accept(File file) { return file.getName().endsWith(SUFFIX); }
+	};
+	
+	/** */
+	private final File dir;
+	private final long maxBytes;
+	
+	/** Bytes written since the last sweep */
+	private final AtomicLong written = new AtomicLong();
+	
+	/**
+	 * @param dir is created if it doesn't exist
+	 * @param maxBytes is the approximate most the directory will hold
+	 */
+	public FileOutputStore(File dir, long maxBytes)
+	{
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IllegalArgumentException("Unable to create cache directory " + dir);
+		
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+	}
+	
+	/** */
+	public File getDirectory() { return this.dir; }
+	
+	/** */
+	private File fileFor(String key)
+	{
+		try
+		{
+			byte[] hash = MessageDigest.getInstance("SHA-1").digest(key.getBytes(UTF8));
+			
+			StringBuilder name = new StringBuilder(hash.length * 2 + SUFFIX.length());
+			for (byte b : hash)
+				name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			
+			return new File(this.dir, name.append(SUFFIX).toString());
+		}
+		catch (NoSuchAlgorithmException ex)
+		{
+			throw new RuntimeException(ex);
+		}
+	}
+	
+	/* OutputStore */
+	
+	public ByteBuffer get(String key)
+	{
+		File file = this.fileFor(key);
+		try
+		{
+			DataInputStream in = new DataInputStream(new FileInputStream(file));
+			try
+			{
+				long limit = file.length();
+				
+				byte[] storedKey = new byte[readLength(in, limit)];
+				in.readFully(storedKey);
+				
+				// Different key with the same hash
+				if (!Arrays.equals(storedKey, key.getBytes(UTF8)))
+					return null;
+				
+				byte[] value = new byte[readLength(in, limit)];
+				in.readFully(value);
+				return ByteBuffer.wrap(value).asReadOnlyBuffer();
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch (FileNotFoundException ex)
+		{
+			return null;
+		}
+		catch (IOException ex)
+		{
+			log.log(Level.WARNING, "Unable to read " + file, ex);
+			return null;
+		}
+		catch (RuntimeException ex)
+		{
+			log.log(Level.WARNING, "Unable to read " + file, ex);
+			return null;
+		}
+	}
+	
+	/**
+	 * Reads a length written by put(), refusing anything the file couldn't hold, so
+	 * a corrupt or foreign file can't make us allocate an arbitrary amount.
+	 */
+	private static int readLength(DataInputStream in, long limit) throws IOException
+	{
+		int length = in.readInt();
+		if (length < 0 || length > limit)
+			throw new IOException("Corrupt length " + length);
+		
+		return length;
+	}
+	
+	public void put(String key, byte[] value)
+	{
+		File target = this.fileFor(key);
+		File temp = null;
+		try
+		{
+			temp = File.createTempFile("put", ".tmp", this.dir);
+			
+			byte[] keyBytes = key.getBytes(UTF8);
+			DataOutputStream out = new DataOutputStream(new FileOutputStream(temp));
+			try
+			{
+				out.writeInt(keyBytes.length);
+				out.write(keyBytes);
+				out.writeInt(value.length);
+				out.write(value);
+			}
+			finally
+			{
+				out.close();
+			}
+			
+			// Rename is atomic on POSIX filesystems; elsewhere it won't replace an existing file
+			if (!temp.renameTo(target))
+			{
+				target.delete();
+				if (!temp.renameTo(target))
+					throw new IOException("Unable to rename " + temp + " to " + target);
+			}
+			temp = null;
+		}
+		catch (IOException ex)
+		{
+			log.log(Level.WARNING, "Unable to write " + target, ex);
+		}
+		finally
+		{
+			if (temp != null)
+				temp.delete();
+		}
+		
+		if (this.written.addAndGet(value.length) > this.maxBytes / 8)
+			this.sweep();
+	}
+	
+	public void remove(String key)
+	{
+		this.fileFor(key).delete();
+	}
+	
+	public void clear()
+	{
+		File[] files = this.dir.listFiles(ENTRIES);
+		if (files != null)
+			for (File file : files)
+				file.delete();
+	}
+	
+	public long getSizeBytes()
+	{
+		long total = 0;
+		File[] files = this.dir.listFiles(ENTRIES);
+		if (files != null)
+			for (File file : files)
+				total += file.length();
+		
+		return total;
+	}
+	
+	/**
+	 * Deletes the oldest files until the directory is within its limit, along with
+	 * any temporary files abandoned by writers that died.
+	 */
+	public synchronized void sweep()
+	{
+		this.written.set(0);
+		
+		long now = System.currentTimeMillis();
+		File[] temps = this.dir.listFiles(new FileFilter() {
+			public boolean accept(File file) { return file.getName().endsWith(".tmp"); }
+		});
+		if (temps != null)
+			for (File temp : temps)
+				if (now - temp.lastModified() > ABANDONED_MILLIS)
+					temp.delete();
+		
+		File[] files = this.dir.listFiles(ENTRIES);
+		if (files == null)
+			return;
+		
+		// Read the times once; they can change under us while sorting
+		final long[] modified = new long[files.length];
+		Integer[] order = new Integer[files.length];
+		long total = 0;
+		for (int i=0; i<files.length; i++)
+		{
+			modified[i] = files[i].lastModified();
+			order[i] = i;
+			total += files[i].length();
+		}
+		
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b)
+			{
+				long diff = modified[a] - modified[b];
+				return (diff < 0) ? -1 : (diff > 0) ? 1 : 0;
+			}
+		});
+		
+		for (int i=0; i<order.length && total > this.maxBytes; i++)
+		{
+			File oldest = files[order[i]];
+			long length = oldest.length();
+			if (oldest.delete())
+				total -= length;
+		}
+	}
+	
+	/** */
+	@Override
+	public String toString()
+	{
+		return this.getClass().getSimpleName() + "(" + this.dir + ")";
+	}
+}
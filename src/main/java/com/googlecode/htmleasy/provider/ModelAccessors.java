@@ -0,0 +1,193 @@
+package com.googlecode.htmleasy.provider;
+
+import java.beans.BeanInfo;
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A table of the readable bean properties of one model class.  It is built once
+ * by introspection and then reused for every render of that class, so templates
+ * that read many properties per row don't pay for bean introspection on each
+ * request.
+ *
+ * The usual way to get at it is {@link #asMap(Object)}, which exposes a model as a
+ * read-only Map; an EL expression like ${model.name} then becomes a hash lookup
+ * followed by a direct getter call.
+ */
+public class ModelAccessors
+{
+	/** */
+	private final Class<?> type;
+
+	/** Property name to getter */
+	private final Map<String, Method> readers;
+
+	/**
+	 * Introspects the type.  Prefer ViewResolver.getAccessors(), which caches these.
+	 */
+	public ModelAccessors(Class<?> type)
+	{
+		this.type = type;
+
+		BeanInfo info;
+		try
+		{
+			info = Introspector.getBeanInfo(type, Object.class);
+		}
+		catch (IntrospectionException ex)
+		{
+			throw new RuntimeException("Unable to introspect model class " + type.getName(), ex);
+		}
+
+		Map<String, Method> found = new HashMap<String, Method>();
+		for (PropertyDescriptor prop : info.getPropertyDescriptors())
+		{
+			Method reader = prop.getReadMethod();
+			if (reader == null)
+				continue;
+
+			// Getters declared on non-public classes (anonymous classes, package-private
+			// models) can't be invoked reflectively without this
+			if (!Modifier.isPublic(reader.getDeclaringClass().getModifiers()))
+				reader.setAccessible(true);
+
+			found.put(prop.getName(), reader);
+		}
+
+		this.readers = Collections.unmodifiableMap(found);
+	}
+
+	/** */
+	public Class<?> getType() { return this.type; }
+
+	/** @return the names of all readable properties */
+	public Set<String> getPropertyNames() { return this.readers.keySet(); }
+
+	/** */
+	public boolean hasProperty(String property)
+	{
+		return this.readers.containsKey(property);
+	}
+
+	/**
+	 * @return the value of the property on model
+	 * @throws IllegalArgumentException if the model class has no such readable property
+	 */
+	public Object get(Object model, String property)
+	{
+		Method reader = this.readers.get(property);
+		if (reader == null)
+			throw new IllegalArgumentException("No readable property '" + property + "' on " + this.type.getName());
+
+		return this.invoke(reader, model);
+	}
+
+	/**
+	 * @return a read-only Map view of the model's properties.  Values are read from
+	 *  the model each time they are looked up.
+	 */
+	public Map<String, Object> asMap(Object model)
+	{
+		return new PropertyMap(model);
+	}
+
+	/** */
+	private Object invoke(Method reader, Object model)
+	{
+		try
+		{
+			return reader.invoke(model);
+		}
+		catch (InvocationTargetException ex)
+		{
+			if (ex.getCause() instanceof RuntimeException)
+				throw (RuntimeException) ex.getCause();
+			else
+				throw new RuntimeException(ex.getCause());
+		}
+		catch (IllegalAccessException ex)
+		{
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/**
+	 * Map view over one model instance.
+	 */
+	private class PropertyMap extends AbstractMap<String, Object>
+	{
+		/** */
+		private final Object model;
+
+		/** */
+		PropertyMap(Object model)
+		{
+			this.model = model;
+		}
+
+		@Override
+		public Object get(Object key)
+		{
+			Method reader = readers.get(key);
+			return (reader == null) ? null : invoke(reader, this.model);
+		}
+
+		@Override
+		public boolean containsKey(Object key)
+		{
+			return readers.containsKey(key);
+		}
+
+		@Override
+		public int size()
+		{
+			return readers.size();
+		}
+
+		@Override
+		public Set<Map.Entry<String, Object>> entrySet()
+		{
+			return new AbstractSet<Map.Entry<String, Object>>() {
+				@Override
+				public Iterator<Map.Entry<String, Object>> iterator()
+				{
+					final Iterator<String> names = readers.keySet().iterator();
+					return new Iterator<Map.Entry<String, Object>>() {
+						public boolean hasNext() { return names.hasNext(); }
+
+						public Map.Entry<String, Object> next()
+						{
+							String name = names.next();
+							return new SimpleImmutableEntry<String, Object>(name, PropertyMap.this.get(name));
+						}
+
+						public void remove() { throw new UnsupportedOperationException(); }
+					};
+				}
+
+				@Override
+				public int size()
+				{
+					return readers.size();
+				}
+			};
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.valueOf(this.model);
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package com.googlecode.htmleasy.provider;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * The default OutputStore.  Values live in direct ByteBuffers, outside the Java
+ * heap, so a large cache of rendered pages adds nothing to the live set the
+ * garbage collector has to trace.  Only the keys and small buffer headers are on
+ * the heap, and get() hands out read-only views of the buffers rather than copies,
+ * so serving a hit streams straight from direct memory.
+ * 
+ * The store is split into segments by key hash, each with its own lock and its
+ * own share of the byte limit.  Within a segment the least recently used entries
+ * are evicted first.  Values bigger than a segment's share are not stored.
+ * 
+ * Direct memory is limited by -XX:MaxDirectMemorySize, which defaults to the
+ * maximum heap size; make sure the limit here fits within it.
+ */
+public class OffHeapOutputStore implements OutputStore
+{
+	/** If left unspecified, the number of independently locked segments */
+	public static final int DEFAULT_SEGMENTS = 16;
+	
+	/**
+	 * One independently locked part of the store.
+	 */
+	private static class Segment
+	{
+		/** Access ordered, so iteration starts at the least recently used */
+		private final LinkedHashMap<String, ByteBuffer> entries = new LinkedHashMap<String, ByteBuffer>(16, 0.75f, true);
+		private final long maxBytes;
+		private long bytes;
+		
+		/** */
+		Segment(long maxBytes)
+		{
+			this.maxBytes = maxBytes;
+		}
+		
+		/**
+		 * Takes the lock because a lookup in an access ordered map moves the entry, so
+		 * it is a write.  The read-only view returned can be read without the lock, since
+		 * values are never written after put().
+		 */
+		synchronized ByteBuffer get(String key)
+		{
+			ByteBuffer buf = this.entries.get(key);
+			return (buf == null) ? null : buf.asReadOnlyBuffer();
+		}
+		
+		/** */
+		synchronized void put(String key, byte[] value)
+		{
+			this.remove(key);
+			
+			if (value.length > this.maxBytes)
+				return;
+			
+			for (Iterator<ByteBuffer> it = this.entries.values().iterator(); this.bytes + value.length > this.maxBytes && it.hasNext();)
+			{
+				this.bytes -= it.next().capacity();
+				it.remove();
+			}
+			
+			ByteBuffer buf = ByteBuffer.allocateDirect(value.length);
+			buf.put(value);
+			buf.flip();
+			
+			this.entries.put(key, buf);
+			this.bytes += value.length;
+		}
+		
+		/** */
+		synchronized void remove(String key)
+		{
+			ByteBuffer old = this.entries.remove(key);
+			if (old != null)
+				this.bytes -= old.capacity();
+		}
+		
+		/** */
+		synchronized void clear()
+		{
+			this.entries.clear();
+			this.bytes = 0;
+		}
+		
+		/** */
+		synchronized long getBytes()
+		{
+			return this.bytes;
+		}
+	}
+	
+	/** */
+	private final Segment[] segments;
+	
+	/**
+	 * @param maxBytes is the most value bytes the store will hold
+	 */
+	public OffHeapOutputStore(long maxBytes)
+	{
+		this(maxBytes, DEFAULT_SEGMENTS);
+	}
+	
+	/**
+	 * @param maxBytes is the most value bytes the store will hold
+	 * @param segments is the number of independently locked segments
+	 */
+	public OffHeapOutputStore(long maxBytes, int segments)
+	{
+		if (segments < 1)
+			throw new IllegalArgumentException("segments must be positive");
+		
+		this.segments = new Segment[segments];
+		for (int i=0; i<segments; i++)
+			this.segments[i] = new Segment(maxBytes / segments);
+	}
+	
+	/** */
+	private Segment segmentFor(String key)
+	{
+		int hash = key.hashCode();
+		hash ^= (hash >>> 16);
+		return this.segments[(hash & Integer.MAX_VALUE) % this.segments.length];
+	}
+	
+	/* OutputStore */
+	
+	public ByteBuffer get(String key)
+	{
+		return this.segmentFor(key).get(key);
+	}
+	
+	public void put(String key, byte[] value)
+	{
+		this.segmentFor(key).put(key, value);
+	}
+	
+	public void remove(String key)
+	{
+		this.segmentFor(key).remove(key);
+	}
+	
+	public void clear()
+	{
+		for (Segment segment : this.segments)
+			segment.clear();
+	}
+	
+	public long getSizeBytes()
+	{
+		long total = 0;
+		for (Segment segment : this.segments)
+			total += segment.getBytes();
+		
+		return total;
+	}
+	
+	/** */
+	@Override
+	public String toString()
+	{
+		return this.getClass().getSimpleName() + "(" + this.segments.length + " segments, " + this.getSizeBytes() + " bytes)";
+	}
+}
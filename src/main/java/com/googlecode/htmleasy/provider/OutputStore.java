@@ -0,0 +1,33 @@
+package com.googlecode.htmleasy.provider;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Where the ViewCache keeps rendered output.  The store deals only in bytes, so
+ * an implementation can hold them anywhere: off the Java heap, on disk, or in a
+ * cache shared by a whole cluster.
+ * 
+ * Implementations must be thread-safe.  They may drop entries at any time to stay
+ * within their size limits, so a put() followed by a get() may still miss.
+ */
+public interface OutputStore
+{
+	/**
+	 * @return the value stored for the key, between the buffer's position and limit,
+	 *  or null.  The buffer is read-only and the caller's own, so its position may be
+	 *  moved; it need not be a copy, and stays valid even if the entry is replaced.
+	 */
+	public ByteBuffer get(String key);
+	
+	/** Stores the value, replacing any previous one */
+	public void put(String key, byte[] value);
+	
+	/** */
+	public void remove(String key);
+	
+	/** Removes everything */
+	public void clear();
+	
+	/** @return the number of value bytes held, which may be approximate */
+	public long getSizeBytes();
+}
@@ -0,0 +1,227 @@
+package com.googlecode.htmleasy.provider;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jboss.resteasy.spi.InternalServerErrorException;
+
+import com.googlecode.htmleasy.Prefetchable;
+import com.googlecode.htmleasy.Prefetcher;
+
+/**
+ * Runs the loaders a model declares (through Prefetchable or a registered
+ * Prefetcher) before its view renders.  With an executor set, the loaders run in
+ * parallel and the caller waits for all of them; without one they run as a single
+ * batch on the calling thread.
+ * 
+ * Parallel loaders run on the executor's threads, which have none of the request
+ * thread's thread-bound state: no open persistence session (Hibernate's
+ * getCurrentSession(), an open-session-in-view EntityManager), no transaction, no
+ * security context.  Lazy loading a JPA or Hibernate entity there fails or uses a
+ * different session than the request.  Loaders for such models should open their
+ * own session and detach what they load, or the runner should be left without an
+ * executor so they run inline on the request thread.
+ * 
+ * The registrations and the lookups cached under them form one immutable snapshot
+ * which register() replaces atomically, as in ViewResolver.
+ */
+public class PrefetchRunner
+{
+	/** Marks a class which has no prefetcher, so we don't search again */
+	private static final Prefetcher<Object> NONE = new Prefetcher<Object>() {
+		public Collection<? extends Callable<?>> getLoaders(Object model) { return null; }
+	};
+	
+	/**
+	 * Registrations plus the lookups computed from them.  The cache is filled in
+	 * place, but only ever with results derived from these registrations, so a
+	 * lookup racing with register() can't leave a stale entry behind.
+	 */
+	private static class Snapshot
+	{
+		/** Prefetchers exactly as registered */
+		final Map<Class<?>, Prefetcher<?>> registered;
+		
+		/** Prefetcher for each concrete model class seen, including superclass matches and NONE */
+		final ConcurrentMap<Class<?>, Prefetcher<?>> resolved = new ConcurrentHashMap<Class<?>, Prefetcher<?>>();
+		
+		/** Takes ownership of the map */
+		Snapshot(Map<Class<?>, Prefetcher<?>> registered)
+		{
+			this.registered = Collections.unmodifiableMap(registered);
+		}
+	}
+	
+	/** */
+	private final AtomicReference<Snapshot> snapshot = new AtomicReference<Snapshot>(new Snapshot(new HashMap<Class<?>, Prefetcher<?>>()));
+	
+	/** If null, loaders run on the calling thread */
+	private volatile ExecutorService executor;
+	
+	/**
+	 * Registers a prefetcher for modelClass and its subclasses.  A prefetcher
+	 * registered for a subclass takes precedence.
+	 */
+	public <T> void register(Class<T> modelClass, Prefetcher<? super T> prefetcher)
+	{
+		Snapshot current;
+		Snapshot next;
+		do
+		{
+			current = this.snapshot.get();
+			Map<Class<?>, Prefetcher<?>> registered = new HashMap<Class<?>, Prefetcher<?>>(current.registered);
+			registered.put(modelClass, prefetcher);
+			next = new Snapshot(registered);
+		}
+		while (!this.snapshot.compareAndSet(current, next));
+	}
+	
+	/** */
+	public ExecutorService getExecutor() { return this.executor; }
+	
+	/**
+	 * @param executor will run loaders in parallel; should be bounded since every
+	 *  rendering request may submit to it.  Its threads have no persistence session
+	 *  or transaction of the request's; see the class comment.  Null runs loaders on
+	 *  the calling thread.
+	 */
+	public void setExecutor(ExecutorService executor) { this.executor = executor; }
+	
+	/**
+	 * Runs all loaders declared for the model, returning when they have completed.
+	 * 
+	 * @return the number of nanoseconds spent prefetching
+	 * @throws InternalServerErrorException if any loader fails
+	 */
+	public long prefetch(Object model)
+	{
+		if (model == null)
+			return 0;
+		
+		long start = System.nanoTime();
+		
+		List<Callable<?>> loaders = this.getLoaders(model);
+		if (!loaders.isEmpty())
+		{
+			ExecutorService exec = this.executor;
+			if (exec == null || loaders.size() == 1)
+				this.runInline(loaders);
+			else
+				this.runParallel(exec, loaders);
+		}
+		
+		return System.nanoTime() - start;
+	}
+	
+	/** */
+	@SuppressWarnings("unchecked")
+	protected List<Callable<?>> getLoaders(Object model)
+	{
+		List<Callable<?>> loaders = new ArrayList<Callable<?>>();
+		
+		if (model instanceof Prefetchable)
+		{
+			Collection<? extends Callable<?>> declared = ((Prefetchable) model).getLoaders();
+			if (declared != null)
+				loaders.addAll(declared);
+		}
+		
+		Prefetcher<Object> prefetcher = (Prefetcher<Object>) this.getPrefetcher(model.getClass());
+		if (prefetcher != NONE)
+		{
+			Collection<? extends Callable<?>> declared = prefetcher.getLoaders(model);
+			if (declared != null)
+				loaders.addAll(declared);
+		}
+		
+		return loaders;
+	}
+	
+	/**
+	 * @return the prefetcher registered for the class or its nearest superclass, or NONE
+	 */
+	private Prefetcher<?> getPrefetcher(Class<?> modelClass)
+	{
+		Snapshot snap = this.snapshot.get();
+		Prefetcher<?> prefetcher = snap.resolved.get(modelClass);
+		if (prefetcher == null)
+		{
+			prefetcher = NONE;
+			for (Class<?> clazz = modelClass; clazz != null; clazz = clazz.getSuperclass())
+			{
+				Prefetcher<?> found = snap.registered.get(clazz);
+				if (found != null)
+				{
+					prefetcher = found;
+					break;
+				}
+			}
+			
+			snap.resolved.put(modelClass, prefetcher);
+		}
+		return prefetcher;
+	}
+	
+	/** */
+	private void runInline(List<Callable<?>> loaders)
+	{
+		for (Callable<?> loader : loaders)
+		{
+			try
+			{
+				loader.call();
+			}
+			catch (RuntimeException ex)
+			{
+				throw ex;
+			}
+			catch (Exception ex)
+			{
+				throw new InternalServerErrorException("Prefetch failed", ex);
+			}
+		}
+	}
+	
+	/** */
+	private void runParallel(ExecutorService exec, List<Callable<?>> loaders)
+	{
+		List<Future<?>> futures = new ArrayList<Future<?>>(loaders.size());
+		try
+		{
+			for (Callable<?> loader : loaders)
+				futures.add(exec.submit(loader));
+			
+			for (Future<?> future : futures)
+				future.get();
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new InternalServerErrorException("Interrupted while prefetching", ex);
+		}
+		catch (ExecutionException ex)
+		{
+			if (ex.getCause() instanceof RuntimeException)
+				throw (RuntimeException) ex.getCause();
+			else
+				throw new InternalServerErrorException("Prefetch failed", ex.getCause());
+		}
+		finally
+		{
+			// Don't leave loaders running against a request that has failed
+			for (Future<?> future : futures)
+				future.cancel(true);
+		}
+	}
+}
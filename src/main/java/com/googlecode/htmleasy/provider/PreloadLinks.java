@@ -0,0 +1,187 @@
+package com.googlecode.htmleasy.provider;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletResponse;
+import javax.servlet.ServletResponseWrapper;
+import javax.servlet.http.HttpServletResponse;
+
+import com.googlecode.htmleasy.Preload;
+
+/**
+ * The Link header for a @Preload, prepared once when the view is resolved.  Only
+ * the context path is joined in per request, and the result is remembered for the
+ * last context path seen.
+ * 
+ * Early Hints are sent through a public no-argument sendEarlyHints() method on
+ * the container's response, which Tomcat provides; it is found by reflection once
+ * per response class.  Containers without one just get the Link header on the
+ * final response.
+ */
+public class PreloadLinks
+{
+	/** */
+	private static final Logger log = Logger.getLogger(PreloadLinks.class.getName());
+	
+	/** Stands for "this response class has no sendEarlyHints()" */
+	private static final Method NONE;
+	static
+	{
+		try
+		{
+			NONE = Object.class.getMethod("toString");
+		}
+		catch (NoSuchMethodException ex)
+		{
+			throw new RuntimeException(ex);
+		}
+	}
+	
+	/** */
+	private static final ConcurrentMap<Class<?>, Method> earlyHintMethods = new ConcurrentHashMap<Class<?>, Method>();
+	
+	/** Paths which need the context path in front, parallel to params */
+	private final String[] targets;
+	private final boolean[] relative;
+	private final String[] params;
+	private final boolean earlyHints;
+	
+	/** {contextPath, header} for the last context path seen */
+	private volatile String[] memo;
+	
+	/** */
+	public PreloadLinks(Preload preload)
+	{
+		String[] assets = preload.value();
+		this.targets = new String[assets.length];
+		this.relative = new boolean[assets.length];
+		this.params = new String[assets.length];
+		this.earlyHints = preload.earlyHints();
+		
+		for (int i=0; i<assets.length; i++)
+		{
+			String asset = assets[i].trim();
+			this.targets[i] = asset;
+			this.relative[i] = asset.startsWith("/") && !asset.startsWith("//");
+			this.params[i] = ">; rel=preload" + asType(asset);
+		}
+	}
+	
+	/** @return the as= (and crossorigin) parameters for the asset, from its extension */
+	private static String asType(String asset)
+	{
+		String path = asset;
+		int end = path.indexOf('?');
+		if (end >= 0)
+			path = path.substring(0, end);
+		
+		path = path.toLowerCase();
+		if (path.endsWith(".css"))
+			return "; as=style";
+		else if (path.endsWith(".js") || path.endsWith(".mjs"))
+			return "; as=script";
+		else if (path.endsWith(".woff2") || path.endsWith(".woff") || path.endsWith(".ttf") || path.endsWith(".otf"))
+			return "; as=font; crossorigin";
+		else if (path.endsWith(".png") || path.endsWith(".jpg") || path.endsWith(".jpeg") || path.endsWith(".gif")
+				|| path.endsWith(".webp") || path.endsWith(".avif") || path.endsWith(".svg"))
+			return "; as=image";
+		else
+			return "; as=fetch; crossorigin";
+	}
+	
+	/** */
+	public boolean isEarlyHints() { return this.earlyHints; }
+	
+	/**
+	 * @return the value of the Link header for the webapp at contextPath
+	 */
+	public String getHeader(String contextPath)
+	{
+		String[] m = this.memo;
+		if (m != null && m[0].equals(contextPath))
+			return m[1];
+		
+		StringBuilder header = new StringBuilder();
+		for (int i=0; i<this.targets.length; i++)
+		{
+			if (i > 0)
+				header.append(", ");
+			
+			header.append('<');
+			if (this.relative[i])
+				header.append(contextPath);
+			header.append(this.targets[i]).append(this.params[i]);
+		}
+		
+		String value = header.toString();
+		this.memo = new String[] { contextPath, value };
+		return value;
+	}
+	
+	/**
+	 * Adds the Link header and sends Early Hints if asked for and supported.  Does
+	 * nothing if the response is already committed.
+	 */
+	public void apply(String contextPath, HttpServletResponse response)
+	{
+		if (response.isCommitted())
+			return;
+		
+		response.addHeader("Link", this.getHeader(contextPath));
+		
+		if (this.earlyHints)
+			sendEarlyHints(response);
+	}
+	
+	/**
+	 * Asks the container to send a 103 with the headers set so far, if it knows how.
+	 * 
+	 * @return true if the container took the hint
+	 */
+	public static boolean sendEarlyHints(ServletResponse response)
+	{
+		// Wrappers won't have the method; the container's response at the bottom might
+		while (response instanceof ServletResponseWrapper)
+			response = ((ServletResponseWrapper) response).getResponse();
+		
+		Class<?> clazz = response.getClass();
+		Method method = earlyHintMethods.get(clazz);
+		if (method == null)
+		{
+			try
+			{
+				method = clazz.getMethod("sendEarlyHints");
+			}
+			catch (NoSuchMethodException ex)
+			{
+				method = NONE;
+			}
+			earlyHintMethods.put(clazz, method);
+		}
+		
+		if (method == NONE)
+			return false;
+		
+		try
+		{
+			method.invoke(response);
+			return true;
+		}
+		catch (InvocationTargetException ex)
+		{
+			log.log(Level.FINE, "Container refused early hints", ex.getCause());
+			return false;
+		}
+		catch (IllegalAccessException ex)
+		{
+			// e.g. a public method on a non-public class; don't try again
+			earlyHintMethods.put(clazz, NONE);
+			return false;
+		}
+	}
+}
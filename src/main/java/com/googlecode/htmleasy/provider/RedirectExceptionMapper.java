@@ -1,16 +1,33 @@
 package com.googlecode.htmleasy.provider;
 
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Logger;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.UriInfo;
 import javax.ws.rs.ext.ExceptionMapper;
 import javax.ws.rs.ext.Provider;
 
+import org.jboss.resteasy.spi.ResteasyProviderFactory;
+
+import com.googlecode.htmleasy.Flash;
 import com.googlecode.htmleasy.RedirectException;
+import com.googlecode.htmleasy.ViewEvents;
 
 /**
  * This mapper allows us to use RedirectException to issue, uh, redirects.
  * 
+ * Redirects whose target can't vary (permanent redirects and class/method targets)
+ * have their absolute Location resolved once per base URI and remembered, so
+ * repeats skip the URI resolution.  The Response itself is still built per
+ * request because RESTEasy responses are mutable once handed to interceptors.
+ * 
+ * Flashed values go out in a cookie set by the current Flash.
+ * 
  * @author Jeff Schnitzer <jeff@infohazard.org>
  */
 @Provider
@@ -18,6 +35,12 @@ public class RedirectExceptionMapper implements ExceptionMapper<RedirectExceptio
 {
 	@SuppressWarnings("unused")
 	private static final Logger log = Logger.getLogger(RedirectExceptionMapper.class.getName());
+	
+	/** Beyond this many remembered locations, start over */
+	private static final int MAX_LOCATIONS = 1024;
+	
+	/** Absolute locations keyed by base URI + " " + target */
+	private final ConcurrentMap<String, URI> locations = new ConcurrentHashMap<String, URI>();
 
 	/* (non-Javadoc)
 	 * @see javax.ws.rs.ext.ExceptionMapper#toResponse(java.lang.Throwable)
@@ -25,7 +48,50 @@ public class RedirectExceptionMapper implements ExceptionMapper<RedirectExceptio
 	//@Override
 	public Response toResponse(RedirectException ex)
 	{
-		return Response.status(ex.getStatus()).location(ex.getPath()).build();
+		URI location = ex.getPath();
+		
+		if (ex.isStaticTarget() && !location.isAbsolute())
+		{
+			UriInfo uriInfo = ResteasyProviderFactory.getContextData(UriInfo.class);
+			if (uriInfo != null)
+				location = this.absolute(uriInfo.getBaseUri(), location);
+		}
+		
+		ViewEvents.redirected(ex.getStatus().getStatusCode(), location);
+		
+		ResponseBuilder builder = Response.status(ex.getStatus()).location(location);
+		
+		if (!ex.getFlash().isEmpty())
+		{
+			HttpServletRequest request = ResteasyProviderFactory.getContextData(HttpServletRequest.class);
+			builder.header("Set-Cookie", Flash.getInstance().toSetCookie(ex.getFlash(), request));
+		}
+		
+		return builder.build();
+	}
+	
+	/**
+	 * @return the location resolved against the base the same way RESTEasy would, cached
+	 */
+	private URI absolute(URI base, URI location)
+	{
+		String key = base + " " + location;
+		
+		URI absolute = this.locations.get(key);
+		if (absolute == null)
+		{
+			String path = location.toString();
+			if (path.startsWith("/"))
+				path = path.substring(1);
+			
+			absolute = base.resolve(path);
+			
+			if (this.locations.size() >= MAX_LOCATIONS)
+				this.locations.clear();
+			
+			this.locations.put(key, absolute);
+		}
+		return absolute;
 	}
 
 }
@@ -0,0 +1,62 @@
+package com.googlecode.htmleasy.provider;
+
+import com.googlecode.htmleasy.CacheOutput;
+import com.googlecode.htmleasy.ViewWith;
+
+/**
+ * The cached outcome of resolving a view for one combination of entity type,
+ * resource method annotations and media type.  Once a combination has been seen,
+ * both ViewWriter.isWriteable() and ViewWriter.writeTo() are answered from this
+ * without scanning annotations again.
+ */
+public class Resolution
+{
+	/** The outcome for anything we won't render */
+	public static final Resolution NOT_RESOLVABLE = new Resolution(false, null, null, null, null, null);
+	
+	/** The outcome for entities which are already Viewable, without output caching */
+	public static final Resolution VIEWABLE = new Resolution(true, null, null, null, null, null);
+	
+	/** */
+	private final boolean resolvable;
+	private final ViewWith viewWith;
+	private final String viewPath;
+	private final ModelAccessors accessors;
+	private final CacheOutput cacheOutput;
+	private final PreloadLinks preloadLinks;
+	
+	/**
+	 * @param viewWith is the annotation to render with, or null if the entity is Viewable or not resolvable
+	 * @param viewPath is the template to render, which differs from viewWith.value() if it was remapped
+	 * @param accessors is the property table for the entity type when viewWith asks for a propertyMap, otherwise null
+	 * @param cacheOutput is the output caching policy of the resource method, or null
+	 * @param preloadLinks are the assets to hint before rendering, or null
+	 */
+	public Resolution(boolean resolvable, ViewWith viewWith, String viewPath, ModelAccessors accessors, CacheOutput cacheOutput, PreloadLinks preloadLinks)
+	{
+		this.resolvable = resolvable;
+		this.viewWith = viewWith;
+		this.viewPath = viewPath;
+		this.accessors = accessors;
+		this.cacheOutput = cacheOutput;
+		this.preloadLinks = preloadLinks;
+	}
+	
+	/** @return whether ViewWriter can render the entity */
+	public boolean isResolvable() { return this.resolvable; }
+	
+	/** @return the view annotation, or null if the entity is itself Viewable or not resolvable */
+	public ViewWith getViewWith() { return this.viewWith; }
+	
+	/** @return the template to render, after any remapping, or null if there is no viewWith */
+	public String getViewPath() { return this.viewPath; }
+	
+	/** @return the property table for the entity type, or null if the view doesn't use one */
+	public ModelAccessors getAccessors() { return this.accessors; }
+	
+	/** @return the output caching policy, or null if the output isn't cached */
+	public CacheOutput getCacheOutput() { return this.cacheOutput; }
+	
+	/** @return the preload headers for the view, or null if it declares no assets */
+	public PreloadLinks getPreloadLinks() { return this.preloadLinks; }
+}
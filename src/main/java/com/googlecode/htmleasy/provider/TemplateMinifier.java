@@ -0,0 +1,419 @@
+package com.googlecode.htmleasy.provider;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletContext;
+
+import com.googlecode.htmleasy.util.HtmlMinifier;
+
+/**
+ * Serves minified copies of view templates.  The copies are made at build time:
+ * minifyTree() (or main(), from the build) runs every template under the exploded
+ * webapp through HtmlMinifier and writes the result next to the original with ".min"
+ * before the extension (/WEB-INF/user.jsp becomes /WEB-INF/user.min.jsp).  At
+ * runtime ViewResolver.createView() asks minified() for the path to dispatch to, which
+ * is the copy if the webapp contains one.  The container compiles the copy like any
+ * other JSP, so the smaller static text costs nothing per request; relative includes
+ * still work because the copy is in the same directory.
+ *
+ * Nothing is ever written into the deployed webapp, so read-only and unexploded
+ * deployments work.  Where the webapp is exploded, the copy is checked against its
+ * source every few seconds and the source is used while the copy is missing or older,
+ * so templates edited in place show up as usual (unminified until the next build).
+ * Views returned directly from resource methods rather than resolved through
+ * @ViewWith are not affected.
+ *
+ * To make the copies with Maven, explode the war and minify it before it is packaged:
+ *
+ * <code>
+ *   &lt;plugin&gt;
+ *     &lt;artifactId&gt;maven-war-plugin&lt;/artifactId&gt;
+ *     &lt;executions&gt;&lt;execution&gt;
+ *       &lt;phase&gt;prepare-package&lt;/phase&gt;&lt;goals&gt;&lt;goal&gt;exploded&lt;/goal&gt;&lt;/goals&gt;
+ *     &lt;/execution&gt;&lt;/executions&gt;
+ *   &lt;/plugin&gt;
+ *   &lt;plugin&gt;
+ *     &lt;groupId&gt;org.codehaus.mojo&lt;/groupId&gt;&lt;artifactId&gt;exec-maven-plugin&lt;/artifactId&gt;
+ *     &lt;executions&gt;&lt;execution&gt;
+ *       &lt;phase&gt;prepare-package&lt;/phase&gt;&lt;goals&gt;&lt;goal&gt;java&lt;/goal&gt;&lt;/goals&gt;
+ *       &lt;configuration&gt;
+ *         &lt;mainClass&gt;com.googlecode.htmleasy.provider.TemplateMinifier&lt;/mainClass&gt;
+ *         &lt;arguments&gt;&lt;argument&gt;${project.build.directory}/${project.build.finalName}&lt;/argument&gt;&lt;/arguments&gt;
+ *       &lt;/configuration&gt;
+ *     &lt;/execution&gt;&lt;/executions&gt;
+ *   &lt;/plugin&gt;
+ * </code>
+ *
+ * Configure the runtime side with init parameters on the dispatcher filter or
+ * servlet; it is off unless htmleasy.minify.enabled is true:
+ *
+ *   htmleasy.minify.enabled     - true to dispatch to minified copies
+ *   htmleasy.minify.extensions  - comma-separated template extensions; default .jsp,.html,.htm
+ */
+public class TemplateMinifier
+{
+	/** */
+	private static final Logger log = Logger.getLogger(TemplateMinifier.class.getName());
+
+	/** Init parameter prefix */
+	public static final String PARAM_PREFIX = "htmleasy.minify.";
+
+	/** Inserted before the extension of a minified copy */
+	public static final String SUFFIX = ".min";
+
+	/** Extensions minified unless others are given */
+	public static final String[] DEFAULT_EXTENSIONS = { ".jsp", ".html", ".htm" };
+
+	/** How often a template on disk is checked against its copy */
+	private static final long CHECK_INTERVAL_MILLIS = 2000;
+
+	/** Null unless minification is on */
+	private static volatile TemplateMinifier instance;
+
+	/**
+	 * What happened to one template.
+	 */
+	public static class Template
+	{
+		private final String sourcePath;
+		private final String path;
+		private final long originalBytes;
+		private final long minifiedBytes;
+
+		/** Only set when the template is on disk, so it can be checked for changes */
+		private File source;
+		private File copy;
+		private long sourceModified;
+		private long copyModified;
+		private volatile long checkAfter;
+
+		Template(String sourcePath, String path, long originalBytes, long minifiedBytes)
+		{
+			this.sourcePath = sourcePath;
+			this.path = path;
+			this.originalBytes = originalBytes;
+			this.minifiedBytes = minifiedBytes;
+		}
+
+		/** Remembers the files, so a change to either is noticed */
+		Template watching(File source, File copy)
+		{
+			this.source = source;
+			this.copy = copy;
+			this.sourceModified = source.lastModified();
+			this.copyModified = copy.lastModified();
+			this.checkAfter = System.currentTimeMillis() + CHECK_INTERVAL_MILLIS;
+			return this;
+		}
+
+		/** @return true if either file has changed since this was made; checks at most every few seconds */
+		boolean isOutdated(long now)
+		{
+			if (this.source == null || now < this.checkAfter)
+				return false;
+
+			this.checkAfter = now + CHECK_INTERVAL_MILLIS;
+			return this.source.lastModified() != this.sourceModified || this.copy.lastModified() != this.copyModified;
+		}
+
+		/** @return the path the view asked for */
+		public String getSourcePath() { return this.sourcePath; }
+
+		/** @return the path views dispatch to; the source path if it wasn't minified */
+		public String getPath() { return this.path; }
+
+		/** */
+		public long getOriginalBytes() { return this.originalBytes; }
+		public long getMinifiedBytes() { return this.minifiedBytes; }
+		public long getBytesSaved() { return this.originalBytes - this.minifiedBytes; }
+
+		/** */
+		public boolean isMinified() { return !this.path.equals(this.sourcePath); }
+
+		/** */
+		@Override
+		public String toString()
+		{
+			return this.sourcePath + " (" + this.getBytesSaved() + " of " + this.originalBytes + " bytes saved)";
+		}
+	}
+
+	/** */
+	private final ServletContext context;
+	private final String[] extensions;
+
+	/** By source path */
+	private final ConcurrentMap<String, Template> templates = new ConcurrentHashMap<String, Template>();
+
+	/**
+	 * @param context locates templates and their copies
+	 * @param extensions of templates to minify, e.g. ".jsp"
+	 */
+	public TemplateMinifier(ServletContext context, String... extensions)
+	{
+		this.context = context;
+		this.extensions = extensions.clone();
+	}
+
+	/**
+	 * Builds a minifier from dispatcher init parameters.
+	 *
+	 * @param params are the init parameters, by name
+	 * @return null if minification is not turned on
+	 */
+	public static TemplateMinifier fromInitParameters(Map<String, String> params, ServletContext context)
+	{
+		if (!Boolean.parseBoolean(params.get(PARAM_PREFIX + "enabled")))
+			return null;
+
+		String extensions = params.get(PARAM_PREFIX + "extensions");
+		return new TemplateMinifier(context, (extensions == null) ? DEFAULT_EXTENSIONS : splitExtensions(extensions));
+	}
+
+	/** @return the minifier ViewResolver uses, or null if templates are not minified */
+	public static TemplateMinifier getInstance() { return instance; }
+
+	/** Replaces the minifier ViewResolver uses; null turns minification off */
+	public static void setInstance(TemplateMinifier minifier) { instance = minifier; }
+
+	/**
+	 * @param path is a template path within the webapp
+	 * @return the path to dispatch to instead, which is the path itself if there is no
+	 *  up to date minified copy
+	 */
+	public String minified(String path)
+	{
+		Template template = this.templates.get(path);
+		if (template == null || template.isOutdated(System.currentTimeMillis()))
+		{
+			// Looking only reads, so racing threads just find the same thing
+			template = this.load(path);
+			this.templates.put(path, template);
+		}
+		return template.getPath();
+	}
+
+	/** @return every template seen so far, by source path */
+	public Map<String, Template> getTemplates()
+	{
+		return Collections.unmodifiableMap(new TreeMap<String, Template>(this.templates));
+	}
+
+	/** @return the bytes saved per rendering, summed over every template seen so far */
+	public long getBytesSaved()
+	{
+		long saved = 0;
+		for (Template template : this.templates.values())
+			saved += template.getBytesSaved();
+
+		return saved;
+	}
+
+	/** Finds the copy of a template, without writing anything */
+	private Template load(String path)
+	{
+		String extension = extensionOf(path, this.extensions);
+		if (extension == null)
+			return new Template(path, path, 0, 0);
+
+		String minPath = minifiedName(path, extension);
+
+		String realSource = this.context.getRealPath(path);
+		String realCopy = this.context.getRealPath(minPath);
+		if (realSource != null && realCopy != null)
+		{
+			File source = new File(realSource);
+			File copy = new File(realCopy);
+			if (!source.isFile())
+				return new Template(path, path, 0, 0);
+
+			if (!copy.isFile())
+				return new Template(path, path, source.length(), source.length()).watching(source, copy);
+
+			if (copy.lastModified() < source.lastModified())
+			{
+				log.warning(path + " has changed since it was minified; using it as is until it is minified again");
+				return new Template(path, path, source.length(), source.length()).watching(source, copy);
+			}
+
+			return new Template(path, minPath, source.length(), copy.length()).watching(source, copy);
+		}
+
+		// Not exploded; trust the build
+		try
+		{
+			URL copy = this.context.getResource(minPath);
+			if (copy == null)
+				return new Template(path, path, 0, 0);
+
+			URL source = this.context.getResource(path);
+			long original = (source == null) ? 0 : source.openConnection().getContentLength();
+			return new Template(path, minPath, original, copy.openConnection().getContentLength());
+		}
+		catch (IOException ex)
+		{
+			log.log(Level.WARNING, "Unable to look for a minified copy of " + path + ", using it as is", ex);
+			return new Template(path, path, 0, 0);
+		}
+	}
+
+	/**
+	 * Minifies every template under a directory, writing each copy next to its
+	 * original.  Copies newer than their source are left alone.  Meant for the build,
+	 * on the exploded webapp; never call it on a deployed one.
+	 *
+	 * @param root is the directory to search, e.g. target/myapp
+	 * @param extensions of templates to minify; DEFAULT_EXTENSIONS if none
+	 * @return the templates found, by path relative to the root
+	 */
+	public static Map<String, Template> minifyTree(File root, String... extensions) throws IOException
+	{
+		if (!root.isDirectory())
+			throw new IOException("Not a directory: " + root);
+
+		Map<String, Template> minified = new TreeMap<String, Template>();
+		minifyTree(root, "/", (extensions.length == 0) ? DEFAULT_EXTENSIONS : extensions, minified);
+		return minified;
+	}
+
+	/** */
+	private static void minifyTree(File dir, String prefix, String[] extensions, Map<String, Template> minified) throws IOException
+	{
+		File[] files = dir.listFiles();
+		if (files == null)
+			throw new IOException("Unable to list " + dir);
+
+		for (File file : files)
+		{
+			String path = prefix + file.getName();
+			if (file.isDirectory())
+			{
+				minifyTree(file, path + "/", extensions, minified);
+				continue;
+			}
+
+			String extension = extensionOf(path, extensions);
+			if (extension == null)
+				continue;
+
+			File copy = new File(dir, minifiedName(file.getName(), extension));
+			if (!copy.isFile() || copy.lastModified() < file.lastModified())
+				write(file, copy);
+
+			minified.put(path, new Template(path, minifiedName(path, extension), file.length(), copy.length()));
+		}
+	}
+
+	/**
+	 * Minifies a webapp as part of the build.
+	 *
+	 * @param args are the exploded webapp directory, and optionally a comma-separated
+	 *  list of template extensions
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length < 1 || args.length > 2)
+			throw new IllegalArgumentException("Usage: TemplateMinifier <webapp directory> [.jsp,.html,...]");
+
+		String[] extensions = (args.length > 1) ? splitExtensions(args[1]) : DEFAULT_EXTENSIONS;
+		Map<String, Template> minified = minifyTree(new File(args[0]), extensions);
+
+		long saved = 0;
+		for (Template template : minified.values())
+		{
+			log.fine("Minified " + template);
+			saved += template.getBytesSaved();
+		}
+
+		log.info("Minified " + minified.size() + " templates under " + args[0] + ", saving " + saved + " bytes");
+	}
+
+	/** */
+	private static String[] splitExtensions(String extensions)
+	{
+		String[] split = extensions.split(",");
+		for (int i = 0; i < split.length; i++)
+			split[i] = split[i].trim();
+
+		return split;
+	}
+
+	/** @return the name of the minified copy, e.g. user.min.jsp for user.jsp */
+	private static String minifiedName(String name, String extension)
+	{
+		return name.substring(0, name.length() - extension.length()) + SUFFIX + extension;
+	}
+
+	/** @return the configured extension of the path, or null if it isn't a template to minify */
+	private static String extensionOf(String path, String[] extensions)
+	{
+		if (path.indexOf('?') >= 0)
+			return null;
+
+		for (String extension : extensions)
+			if (path.endsWith(extension) && !path.endsWith(SUFFIX + extension))
+				return extension;
+
+		return null;
+	}
+
+	/** Writes a temporary file and renames it, so nothing ever sees half a copy */
+	private static void write(File source, File copy) throws IOException
+	{
+		byte[] bytes = new byte[(int) source.length()];
+		int read = 0;
+		InputStream in = new FileInputStream(source);
+		try
+		{
+			while (read < bytes.length)
+			{
+				int n = in.read(bytes, read, bytes.length - read);
+				if (n < 0)
+					break;
+				read += n;
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+
+		// Byte transparent; see HtmlMinifier
+		byte[] minified = HtmlMinifier.minify(new String(bytes, 0, read, "ISO-8859-1")).getBytes("ISO-8859-1");
+
+		File temp = File.createTempFile(copy.getName(), ".tmp", copy.getParentFile());
+		try
+		{
+			OutputStream out = new FileOutputStream(temp);
+			try
+			{
+				out.write(minified);
+			}
+			finally
+			{
+				out.close();
+			}
+
+			copy.delete();
+			if (!temp.renameTo(copy))
+				throw new IOException("Unable to rename " + temp + " to " + copy);
+		}
+		finally
+		{
+			temp.delete();
+		}
+	}
+}
@@ -0,0 +1,306 @@
+package com.googlecode.htmleasy.provider;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Rendered output of views whose resource methods are annotated with @CacheOutput.
+ * ViewWriter reads and fills it; the dispatchers' admission control also serves
+ * from it rather than rejecting a request outright.
+ * 
+ * Entries are kept in an OutputStore.  The default is an OffHeapOutputStore of
+ * 64MB; construct a ViewCache around a FileOutputStore (or a store of your own)
+ * and setInstance() it to share rendered pages between processes.
+ * 
+ * Entries are keyed by path and query string only.  Pages which also depend on
+ * request headers (Accept-Language, say) must list them with setVaryHeaders(), or
+ * every variant will be served the first one rendered; each distinct value gets its
+ * own entry, so only vary on headers with few values.  Cookies and the session are
+ * never part of the key, which is why output that sets cookies isn't cached.
+ * 
+ * Refreshes are coalesced, so at most one refresh per key is in flight.  Background
+ * refreshes run on a small bounded executor, without the servlet container, so they
+ * are only used for views that don't dispatch (ConcurrentViewable); if the executor
+ * is saturated the refresh is skipped and a later request will try again.  Other
+ * views are refreshed by refreshHere() on the request thread, after the stale entry
+ * has been sent.
+ */
+public class ViewCache
+{
+	/** */
+	private static final Logger log = Logger.getLogger(ViewCache.class.getName());
+	
+	/** */
+	private static volatile ViewCache instance = new ViewCache();
+	
+	/**
+	 * A background re-render of one entry.
+	 */
+	public interface Refresher
+	{
+		/** @return the new entry, or null if it shouldn't be cached */
+		public CachedOutput render() throws Exception;
+	}
+	
+	/**
+	 * Makes a Refresher, on the requesting thread, only once a refresh has actually
+	 * been scheduled; anything copied from the request is copied only then.
+	 */
+	public interface RefresherFactory
+	{
+		/** */
+		public Refresher create();
+	}
+	
+	/** If left unspecified, the size of the default off-heap store */
+	public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+	
+	/** */
+	private final OutputStore store;
+	
+	/** Request headers which are part of the key */
+	private volatile String[] varyHeaders = new String[0];
+	
+	/** Keys with a refresh in flight */
+	private final ConcurrentMap<String, Boolean> refreshing = new ConcurrentHashMap<String, Boolean>();
+	
+	/** */
+	private volatile ExecutorService executor;
+	
+	/**
+	 * Keeps entries in an OffHeapOutputStore of DEFAULT_MAX_BYTES.
+	 */
+	public ViewCache()
+	{
+		this(new OffHeapOutputStore(DEFAULT_MAX_BYTES));
+	}
+	
+	/** */
+	public ViewCache(OutputStore store)
+	{
+		this.store = store;
+	}
+	
+	/** */
+	public OutputStore getStore() { return this.store; }
+	
+	/** @return the cache ViewWriter and the dispatchers use */
+	public static ViewCache getInstance() { return instance; }
+	
+	/** Replaces the cache ViewWriter and the dispatchers use */
+	public static void setInstance(ViewCache cache) { instance = cache; }
+	
+	/**
+	 * @return the request's path and query string, which key() extends with the vary headers
+	 */
+	public static String keyFor(HttpServletRequest request)
+	{
+		String query = request.getQueryString();
+		return (query == null) ? request.getRequestURI() : request.getRequestURI() + "?" + query;
+	}
+	
+	/**
+	 * @return the cache key for the request: its path and query string, plus the value
+	 *  of each vary header
+	 */
+	public String key(HttpServletRequest request)
+	{
+		String[] vary = this.varyHeaders;
+		if (vary.length == 0)
+			return keyFor(request);
+		
+		StringBuilder key = new StringBuilder(keyFor(request));
+		for (String header : vary)
+		{
+			String value = request.getHeader(header);
+			key.append('\n').append(header).append(':').append(value == null ? "" : value);
+		}
+		return key.toString();
+	}
+	
+	/**
+	 * @param headers are request headers the cached pages depend on, e.g. "Accept-Language"
+	 */
+	public void setVaryHeaders(String... headers) { this.varyHeaders = headers.clone(); }
+	
+	/** */
+	public String[] getVaryHeaders() { return this.varyHeaders.clone(); }
+	
+	/**
+	 * @param executor runs background refreshes; it should be bounded.  The default
+	 *  has two daemon threads and a queue of 64.
+	 */
+	public void setExecutor(ExecutorService executor) { this.executor = executor; }
+	
+	/** @return the entry, or null if there is none which could still be served */
+	public CachedOutput get(String key)
+	{
+		ByteBuffer data = this.store.get(key);
+		if (data == null)
+			return null;
+		
+		CachedOutput output = CachedOutput.fromBytes(data);
+		if (output == null || output.isDead(System.currentTimeMillis()))
+		{
+			this.store.remove(key);
+			return null;
+		}
+		
+		return output;
+	}
+	
+	/** */
+	public void put(String key, CachedOutput output)
+	{
+		this.store.put(key, output.toBytes());
+	}
+	
+	/** */
+	public void remove(String key)
+	{
+		this.store.remove(key);
+	}
+	
+	/** */
+	public void clear()
+	{
+		this.store.clear();
+	}
+	
+	/**
+	 * Re-renders the entry in the background unless a refresh of it is already in flight.
+	 * The refresher runs without the servlet container, so must not dispatch.
+	 * 
+	 * @return true if a refresh was started
+	 */
+	public boolean refresh(String key, final Refresher refresher)
+	{
+		return this.refresh(key, new RefresherFactory() {
+			public Refresher create()
+			{
+				return refresher;
+			}
+		});
+	}
+	
+	/**
+	 * Re-renders the entry in the background unless a refresh of it is already in
+	 * flight.  The factory is only called, on this thread, if the refresh goes ahead.
+	 * 
+	 * @return true if a refresh was started
+	 */
+	public boolean refresh(final String key, RefresherFactory factory)
+	{
+		if (this.refreshing.putIfAbsent(key, Boolean.TRUE) != null)
+			return false;
+		
+		try
+		{
+			final Refresher refresher = factory.create();
+			this.getExecutor().execute(new Runnable() {
+				public void run()
+				{
+					try
+					{
+						CachedOutput output = refresher.render();
+						if (output != null)
+							put(key, output);
+					}
+					catch (Exception ex)
+					{
+						// The stale entry stays until it expires, and the next request will try again
+						log.log(Level.WARNING, "Background refresh of " + key + " failed", ex);
+					}
+					finally
+					{
+						refreshing.remove(key);
+					}
+				}
+			});
+			return true;
+		}
+		catch (RejectedExecutionException ex)
+		{
+			this.refreshing.remove(key);
+			return false;
+		}
+		catch (RuntimeException ex)
+		{
+			this.refreshing.remove(key);
+			throw ex;
+		}
+	}
+	
+	/**
+	 * Re-renders the entry on the calling thread unless a refresh of it is already in
+	 * flight.  Failures are logged, and the stale entry stays until it expires.
+	 * 
+	 * @return true if the entry was refreshed
+	 */
+	public boolean refreshHere(String key, Refresher refresher)
+	{
+		if (this.refreshing.putIfAbsent(key, Boolean.TRUE) != null)
+			return false;
+		
+		try
+		{
+			CachedOutput output = refresher.render();
+			if (output != null)
+				this.put(key, output);
+			
+			return output != null;
+		}
+		catch (Exception ex)
+		{
+			log.log(Level.WARNING, "Refresh of " + key + " failed", ex);
+			return false;
+		}
+		finally
+		{
+			this.refreshing.remove(key);
+		}
+	}
+	
+	/** */
+	private ExecutorService getExecutor()
+	{
+		ExecutorService exec = this.executor;
+		if (exec == null)
+		{
+			synchronized (this)
+			{
+				exec = this.executor;
+				if (exec == null)
+				{
+					ThreadPoolExecutor pool = new ThreadPoolExecutor(2, 2, 60, TimeUnit.SECONDS,
+							new ArrayBlockingQueue<Runnable>(64), new ThreadFactory() {
+								private final AtomicInteger count = new AtomicInteger();
+								
+								public Thread newThread(Runnable r)
+								{
+									Thread thread = new Thread(r, "htmleasy-refresh-" + count.incrementAndGet());
+									thread.setDaemon(true);
+									return thread;
+								}
+							});
+					pool.allowCoreThreadTimeOut(true);
+					
+					exec = this.executor = pool;
+				}
+			}
+		}
+		return exec;
+	}
+}
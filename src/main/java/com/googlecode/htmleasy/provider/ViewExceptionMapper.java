@@ -6,6 +6,7 @@ import javax.ws.rs.core.Response;
 import javax.ws.rs.ext.ExceptionMapper;
 import javax.ws.rs.ext.Provider;
 
+import com.googlecode.htmleasy.ViewEvents;
 import com.googlecode.htmleasy.ViewException;
 
 /**
@@ -26,6 +27,8 @@ public class ViewExceptionMapper implements ExceptionMapper<ViewException>
 	//@Override
 	public Response toResponse(ViewException ex)
 	{
+		ViewEvents.viewRaised(ex.getView());
+		
 		return Response.ok().entity(ex.getView()).build();
 	}
 
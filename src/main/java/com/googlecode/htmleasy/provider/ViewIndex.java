@@ -0,0 +1,33 @@
+package com.googlecode.htmleasy.provider;
+
+/**
+ * A table of view bindings worked out at compile time.  The annotation processor
+ * in com.googlecode.htmleasy.apt generates one implementation per module and lists
+ * it in META-INF/services/com.googlecode.htmleasy.provider.ViewIndex, where
+ * ViewResolver finds it with ServiceLoader.
+ * 
+ * Model classes are named rather than referenced by class literal, so loading an
+ * index loads none of them.  ViewResolver answers for an indexed class from the
+ * index alone, without reading the class's annotations, and falls back to
+ * reflection for classes no index names.  The index is regenerated whenever its
+ * module is compiled; a class file compiled without it is not detected.
+ * 
+ * Resource method bindings are not indexed; RESTEasy hands their annotations to
+ * the resolver with every call, so there is nothing to look up.
+ * 
+ * Implementations are generated; there is no need to write one by hand.
+ */
+public interface ViewIndex
+{
+	/**
+	 * Receives the bindings of an index.
+	 */
+	public interface Registry
+	{
+		/** A @ViewWith on a model class, named as by Class.getName() */
+		public void type(String modelClassName, String path, String modelName, boolean propertyMap);
+	}
+	
+	/** Hands every binding in the index to the registry */
+	public void register(Registry registry);
+}
@@ -0,0 +1,182 @@
+package com.googlecode.htmleasy.provider;
+
+import java.lang.annotation.Annotation;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.googlecode.htmleasy.View;
+import com.googlecode.htmleasy.ViewWith;
+
+/**
+ * Runtime changes to view resolution, layered over the @ViewWith annotations:
+ * overrides which give a model class a different view, and remaps which send one
+ * template path to another.  Instances are immutable; the with/without methods
+ * return modified copies, which ViewResolver publishes atomically.
+ * 
+ * <code>
+ *   resolver.overrideView(Product.class, "/product_v2.jsp");
+ *   resolver.remapView("/cart.jsp", "/cart_experimental.jsp");
+ * </code>
+ */
+public class ViewMappings
+{
+	/** No overrides and no remaps */
+	public static final ViewMappings EMPTY = new ViewMappings(Collections.<Class<?>, ViewWith>emptyMap(), Collections.<String, String>emptyMap());
+	
+	/** */
+	private final Map<Class<?>, ViewWith> overrides;
+	private final Map<String, String> remaps;
+	
+	/** Takes ownership of the maps */
+	private ViewMappings(Map<Class<?>, ViewWith> overrides, Map<String, String> remaps)
+	{
+		this.overrides = Collections.unmodifiableMap(overrides);
+		this.remaps = Collections.unmodifiableMap(remaps);
+	}
+	
+	/** @return model class to the view which replaces its annotated one */
+	public Map<Class<?>, ViewWith> getOverrides() { return this.overrides; }
+	
+	/** @return template path to the path rendered instead */
+	public Map<String, String> getRemaps() { return this.remaps; }
+	
+	/** */
+	public boolean isEmpty()
+	{
+		return this.overrides.isEmpty() && this.remaps.isEmpty();
+	}
+	
+	/**
+	 * @return the override for the type or its nearest superclass, or null
+	 */
+	public ViewWith getOverride(Class<?> type)
+	{
+		if (this.overrides.isEmpty())
+			return null;
+		
+		for (Class<?> clazz = type; clazz != null; clazz = clazz.getSuperclass())
+		{
+			ViewWith viewWith = this.overrides.get(clazz);
+			if (viewWith != null)
+				return viewWith;
+		}
+		return null;
+	}
+	
+	/**
+	 * @return the path to render in place of path; path itself if it isn't remapped
+	 */
+	public String remap(String path)
+	{
+		String to = this.remaps.get(path);
+		return (to == null) ? path : to;
+	}
+	
+	/** @return a copy with the model class rendered by viewWith */
+	public ViewMappings withOverride(Class<?> modelClass, ViewWith viewWith)
+	{
+		Map<Class<?>, ViewWith> copy = new HashMap<Class<?>, ViewWith>(this.overrides);
+		copy.put(modelClass, viewWith);
+		return new ViewMappings(copy, new HashMap<String, String>(this.remaps));
+	}
+	
+	/** @return a copy without an override for the model class */
+	public ViewMappings withoutOverride(Class<?> modelClass)
+	{
+		Map<Class<?>, ViewWith> copy = new HashMap<Class<?>, ViewWith>(this.overrides);
+		copy.remove(modelClass);
+		return new ViewMappings(copy, new HashMap<String, String>(this.remaps));
+	}
+	
+	/** @return a copy with the template at from rendered from to instead */
+	public ViewMappings withRemap(String from, String to)
+	{
+		Map<String, String> copy = new HashMap<String, String>(this.remaps);
+		copy.put(from, to);
+		return new ViewMappings(new HashMap<Class<?>, ViewWith>(this.overrides), copy);
+	}
+	
+	/** @return a copy without a remap for the path */
+	public ViewMappings withoutRemap(String from)
+	{
+		Map<String, String> copy = new HashMap<String, String>(this.remaps);
+		copy.remove(from);
+		return new ViewMappings(new HashMap<Class<?>, ViewWith>(this.overrides), copy);
+	}
+	
+	/**
+	 * @return a ViewWith equivalent to the annotation with the given members, for
+	 *  use as an override
+	 */
+	public static ViewWith viewWith(String path, String modelName, boolean propertyMap)
+	{
+		return new ViewWithLiteral(path, modelName, propertyMap);
+	}
+	
+	/** @return a ViewWith for the path with the default model name */
+	public static ViewWith viewWith(String path)
+	{
+		return viewWith(path, View.DEFAULT_MODEL_NAME, false);
+	}
+	
+	/** */
+	@Override
+	public String toString()
+	{
+		return this.getClass().getSimpleName() + "(overrides=" + this.overrides + ", remaps=" + this.remaps + ")";
+	}
+	
+	/**
+	 * A ViewWith made at runtime rather than read from a class file.
+	 */
+	private static class ViewWithLiteral implements ViewWith
+	{
+		private final String value;
+		private final String modelName;
+		private final boolean propertyMap;
+		
+		ViewWithLiteral(String value, String modelName, boolean propertyMap)
+		{
+			this.value = value;
+			this.modelName = modelName;
+			this.propertyMap = propertyMap;
+		}
+		
+		public String value() { return this.value; }
+		public Class<?> ifClass() { return View.class; }
+		public String modelName() { return this.modelName; }
+		public boolean propertyMap() { return this.propertyMap; }
+		public Class<? extends Annotation> annotationType() { return ViewWith.class; }
+		
+		/** As specified by Annotation, so a literal equals a compiled @ViewWith with the same members */
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof ViewWith))
+				return false;
+			
+			ViewWith other = (ViewWith) o;
+			return this.value.equals(other.value())
+				&& this.ifClass().equals(other.ifClass())
+				&& this.modelName.equals(other.modelName())
+				&& this.propertyMap == other.propertyMap();
+		}
+		
+		/** As specified by Annotation: the sum of (127 * name.hashCode()) ^ value.hashCode() over the members */
+		@Override
+		public int hashCode()
+		{
+			return ((127 * "value".hashCode()) ^ this.value.hashCode())
+				+ ((127 * "ifClass".hashCode()) ^ this.ifClass().hashCode())
+				+ ((127 * "modelName".hashCode()) ^ this.modelName.hashCode())
+				+ ((127 * "propertyMap".hashCode()) ^ Boolean.valueOf(this.propertyMap).hashCode());
+		}
+		
+		@Override
+		public String toString()
+		{
+			return "@" + ViewWith.class.getName() + "(value=" + this.value + ", modelName=" + this.modelName + ", propertyMap=" + this.propertyMap + ")";
+		}
+	}
+}
@@ -4,9 +4,28 @@
 package com.googlecode.htmleasy.provider;
 
 import java.lang.annotation.Annotation;
+import java.lang.reflect.Modifier;
 import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import javax.ws.rs.core.MediaType;
+
+import com.googlecode.htmleasy.CacheOutput;
+import com.googlecode.htmleasy.Preload;
 import com.googlecode.htmleasy.View;
+import com.googlecode.htmleasy.ViewEvents;
 import com.googlecode.htmleasy.ViewSet;
 import com.googlecode.htmleasy.ViewWith;
 import com.googlecode.htmleasy.Viewable;
@@ -14,11 +33,166 @@ import com.googlecode.htmleasy.Viewable;
 /**
  * Resolves the view to be used for rendering a given object or type.
  * 
+ * The annotations can be overridden at runtime through ViewMappings (see
+ * overrideView() and remapView()).  The mappings and the resolutions cached under
+ * them form one immutable snapshot which is replaced atomically on every change,
+ * so lookups never lock and a request already being rendered finishes with the
+ * mappings it started with.
+ * 
+ * Class level @ViewWith bindings listed in generated ViewIndexes (see
+ * com.googlecode.htmleasy.apt) are looked up by class name without reading the
+ * class's annotations; classes no index covers are resolved by reflection.  The
+ * indexes visible to a class loader are read once and shared by every resolver
+ * created under it.
+ * 
  * @author Vivian Steller
  * 
  */
 public class ViewResolver
 {
+	/** */
+	private static final Logger log = Logger.getLogger(ViewResolver.class.getName());
+	
+	/** At most this many resolutions are cached; beyond it, new combinations are resolved on every call */
+	private static final int MAX_RESOLUTIONS = 4096;
+	
+	/**
+	 * Cache key.  RESTEasy passes a fresh copy of the resource method's annotations
+	 * on every call (Method.getAnnotations() never returns the same array twice), so
+	 * they are compared by value.  The media type is reduced to type/subtype, which
+	 * is all isHtml() looks at, so parameters like charset or q don't multiply entries.
+	 */
+	private static class ResolutionKey
+	{
+		private final Class<?> type;
+		private final Type genericType;
+		private final Annotation[] annotations;
+		private final String mediaType;
+		private final int hash;
+		
+		ResolutionKey(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType)
+		{
+			this.type = type;
+			this.genericType = genericType;
+			this.annotations = annotations;
+			this.mediaType = (mediaType == null) ? null : mediaType.getType() + "/" + mediaType.getSubtype();
+			
+			int h = (type == null ? 0 : type.hashCode());
+			h = 31 * h + (genericType == null ? 0 : genericType.hashCode());
+			h = 31 * h + Arrays.hashCode(annotations);
+			h = 31 * h + (this.mediaType == null ? 0 : this.mediaType.hashCode());
+			this.hash = h;
+		}
+		
+		@Override
+		public int hashCode() { return this.hash; }
+		
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof ResolutionKey))
+				return false;
+			
+			ResolutionKey other = (ResolutionKey) o;
+			return this.hash == other.hash
+				&& this.type == other.type
+				&& (this.genericType == null ? other.genericType == null : this.genericType.equals(other.genericType))
+				&& (this.mediaType == null ? other.mediaType == null : this.mediaType.equals(other.mediaType))
+				&& Arrays.equals(this.annotations, other.annotations);
+		}
+	}
+	
+	/** */
+	private static final MediaType APPLICATION_XHTML_XML = MediaType.valueOf(MediaType.APPLICATION_XHTML_XML);
+	
+	/**
+	 * Mappings plus the resolutions computed under them.  The cache is filled in
+	 * place, but only ever with results derived from these mappings.
+	 */
+	private static class Snapshot
+	{
+		final ViewMappings mappings;
+		final ConcurrentMap<ResolutionKey, Resolution> resolutions = new ConcurrentHashMap<ResolutionKey, Resolution>();
+		volatile boolean full;
+		
+		Snapshot(ViewMappings mappings)
+		{
+			this.mappings = mappings;
+		}
+	}
+	
+	/** */
+	private final AtomicReference<Snapshot> snapshot = new AtomicReference<Snapshot>(new Snapshot(ViewMappings.EMPTY));
+	
+	/** Property tables for models of views declared with propertyMap=true */
+	private final ConcurrentMap<Class<?>, ModelAccessors> accessors = new ConcurrentHashMap<Class<?>, ModelAccessors>();
+	
+	/** Indexed bindings by class loader, so each loader's indexes are only read once; guarded by itself */
+	private static final Map<ClassLoader, Map<String, ViewWith>> indexesByLoader = new WeakHashMap<ClassLoader, Map<String, ViewWith>>();
+	
+	/** Model class name to binding, from generated ViewIndexes; never modified */
+	private final Map<String, ViewWith> indexedTypes;
+	
+	/**
+	 * Uses the generated ViewIndexes visible to the context class loader.
+	 */
+	public ViewResolver()
+	{
+		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+		this.indexedTypes = indexesFor(loader != null ? loader : ViewResolver.class.getClassLoader());
+	}
+	
+	/** @return the bindings of every ViewIndex the loader can see, read on first use */
+	private static Map<String, ViewWith> indexesFor(ClassLoader loader)
+	{
+		synchronized (indexesByLoader)
+		{
+			Map<String, ViewWith> indexed = indexesByLoader.get(loader);
+			if (indexed == null)
+			{
+				indexed = Collections.unmodifiableMap(loadIndexes(loader));
+				indexesByLoader.put(loader, indexed);
+			}
+			return indexed;
+		}
+	}
+	
+	/** */
+	private static Map<String, ViewWith> loadIndexes(ClassLoader loader)
+	{
+		final Map<String, ViewWith> indexed = new HashMap<String, ViewWith>();
+		ViewIndex.Registry registry = new ViewIndex.Registry() {
+			public void type(String modelClassName, String path, String modelName, boolean propertyMap)
+			{
+				indexed.put(modelClassName, ViewMappings.viewWith(path, modelName, propertyMap));
+			}
+		};
+		
+		Iterator<ViewIndex> it = ServiceLoader.load(ViewIndex.class, loader).iterator();
+		while (true)
+		{
+			try
+			{
+				if (!it.hasNext())
+					break;
+				
+				it.next().register(registry);
+			}
+			catch (ServiceConfigurationError ex)
+			{
+				// A stale index shouldn't stop the application; reflection still works
+				log.log(Level.WARNING, "Skipping unloadable view index", ex);
+			}
+		}
+		return indexed;
+	}
+	
+	/** @return model class name to binding for all loaded ViewIndexes, for tools and diagnostics */
+	public Map<String, ViewWith> getIndexedTypes()
+	{
+		return this.indexedTypes;
+	}
+	
 	public boolean isResolvable(Object object)
 	{
 		return isResolvable(object.getClass(), object.getClass().getGenericSuperclass(), null);
@@ -29,10 +203,188 @@ public class ViewResolver
 	 */
 	public boolean isResolvable(Class<?> type, Type genericType, Annotation[] methodAnnotations)
 	{
-		if (Viewable.class.isAssignableFrom(type))
-			return true;
-		else
-			return this.getViewWith(type, genericType, methodAnnotations) != null;
+		return this.resolve(type, genericType, methodAnnotations, null).isResolvable();
+	}
+	
+	/**
+	 * @return whether a view can be resolved for the given type and rendered as the
+	 *  media type.  Viewables can be rendered as any media type; models resolved
+	 *  through @ViewWith only as HTML (or wildcards).
+	 */
+	public boolean isResolvable(Class<?> type, Type genericType, Annotation[] methodAnnotations, MediaType mediaType)
+	{
+		return this.resolve(type, genericType, methodAnnotations, mediaType).isResolvable();
+	}
+	
+	/**
+	 * Decides, in one cache lookup after the first call for a combination, whether
+	 * the entity goes to a view or is left for another writer.
+	 * 
+	 * @param mediaType may be null to ignore the media type
+	 * @return never null
+	 */
+	public Resolution resolve(Class<?> type, Type genericType, Annotation[] methodAnnotations, MediaType mediaType)
+	{
+		boolean events = ViewEvents.isEnabled();
+		long start = events ? System.nanoTime() : 0;
+		
+		Snapshot snap = this.snapshot.get();
+		ResolutionKey key = new ResolutionKey(type, genericType, methodAnnotations, mediaType);
+		
+		Resolution resolution = snap.resolutions.get(key);
+		boolean cached = (resolution != null);
+		if (resolution == null)
+		{
+			resolution = this.computeResolution(type, genericType, methodAnnotations, mediaType, snap.mappings);
+			
+			// Entries are never evicted, so a full cache keeps serving the hot combinations
+			if (snap.resolutions.size() < MAX_RESOLUTIONS)
+			{
+				snap.resolutions.putIfAbsent(key, resolution);
+			}
+			else if (!snap.full)
+			{
+				snap.full = true;
+				log.warning("More than " + MAX_RESOLUTIONS + " view resolutions; further ones will not be cached");
+			}
+		}
+		
+		if (events)
+			ViewEvents.resolved(type, mediaType, resolution.isResolvable(), cached, System.nanoTime() - start);
+		
+		return resolution;
+	}
+	
+	/** @return how many resolutions are cached */
+	public int getCachedResolutionCount()
+	{
+		return this.snapshot.get().resolutions.size();
+	}
+	
+	/** Forgets all cached resolutions; call this if getViewWith() would now answer differently. */
+	public void clearCache()
+	{
+		this.setMappings(this.getMappings());
+	}
+	
+	/** @return the runtime overrides and remaps currently in force */
+	public ViewMappings getMappings()
+	{
+		return this.snapshot.get().mappings;
+	}
+	
+	/**
+	 * Replaces all runtime overrides and remaps at once.  Requests which have
+	 * already resolved their view are unaffected.
+	 */
+	public void setMappings(ViewMappings mappings)
+	{
+		this.snapshot.set(new Snapshot(mappings == null ? ViewMappings.EMPTY : mappings));
+	}
+	
+	/**
+	 * Renders the model class (and subclasses without an override of their own)
+	 * with the view, in preference to any annotation.
+	 */
+	public void overrideView(Class<?> modelClass, ViewWith viewWith)
+	{
+		Snapshot current;
+		do
+		{
+			current = this.snapshot.get();
+		}
+		while (!this.snapshot.compareAndSet(current, new Snapshot(current.mappings.withOverride(modelClass, viewWith))));
+	}
+	
+	/** Renders the model class with the template at path, in preference to any annotation */
+	public void overrideView(Class<?> modelClass, String path)
+	{
+		this.overrideView(modelClass, ViewMappings.viewWith(path));
+	}
+	
+	/** Goes back to the annotated view for the model class */
+	public void removeOverride(Class<?> modelClass)
+	{
+		Snapshot current;
+		do
+		{
+			current = this.snapshot.get();
+		}
+		while (!this.snapshot.compareAndSet(current, new Snapshot(current.mappings.withoutOverride(modelClass))));
+	}
+	
+	/** Renders the template at to wherever a view resolves to the template at from */
+	public void remapView(String from, String to)
+	{
+		Snapshot current;
+		do
+		{
+			current = this.snapshot.get();
+		}
+		while (!this.snapshot.compareAndSet(current, new Snapshot(current.mappings.withRemap(from, to))));
+	}
+	
+	/** */
+	public void removeRemap(String from)
+	{
+		Snapshot current;
+		do
+		{
+			current = this.snapshot.get();
+		}
+		while (!this.snapshot.compareAndSet(current, new Snapshot(current.mappings.withoutRemap(from))));
+	}
+	
+	/** Does the actual work of resolve() on a cache miss */
+	protected Resolution computeResolution(Class<?> type, Type genericType, Annotation[] methodAnnotations, MediaType mediaType, ViewMappings mappings)
+	{
+		CacheOutput cacheOutput = null;
+		Preload preload = null;
+		if (methodAnnotations != null)
+		{
+			for (Annotation anno : methodAnnotations)
+			{
+				if (anno instanceof CacheOutput)
+					cacheOutput = (CacheOutput) anno;
+				else if (anno instanceof Preload)
+					preload = (Preload) anno;
+			}
+		}
+		
+		// Viewables render as whatever media type they like, e.g. RSS from a JSP
+		if (type != null && Viewable.class.isAssignableFrom(type))
+		{
+			if (cacheOutput == null && preload == null)
+				return Resolution.VIEWABLE;
+			
+			return new Resolution(true, null, null, null, cacheOutput, preload == null ? null : new PreloadLinks(preload));
+		}
+		
+		if (mediaType != null && !this.isHtml(mediaType))
+			return Resolution.NOT_RESOLVABLE;
+		
+		ViewWith viewWith = mappings.getOverride(type);
+		if (viewWith == null)
+			viewWith = this.getViewWith(type, genericType, methodAnnotations);
+		if (viewWith == null)
+			return Resolution.NOT_RESOLVABLE;
+		
+		ModelAccessors table = null;
+		if (viewWith.propertyMap() && type != null && !type.isInterface() && !Modifier.isAbstract(type.getModifiers()))
+			table = this.getAccessors(type);
+		
+		if (preload == null && type != null)
+			preload = type.getAnnotation(Preload.class);
+		
+		return new Resolution(true, viewWith, mappings.remap(viewWith.value()), table, cacheOutput, preload == null ? null : new PreloadLinks(preload));
+	}
+	
+	/**
+	 * @return whether we render this media type
+	 */
+	protected boolean isHtml(MediaType mediaType)
+	{
+		return mediaType.isCompatible(MediaType.TEXT_HTML_TYPE) || mediaType.isCompatible(APPLICATION_XHTML_XML);
 	}
 	
 	public Viewable getView(Object object)
@@ -48,25 +400,59 @@ public class ViewResolver
 	 */
 	public Viewable getView(Object object, Class<?> type, Type genericType, Annotation[] annotations)
 	{
-		Viewable viewingPleasure;
+		if (object instanceof Viewable)
+			return (Viewable) object;
 		
+		// Since isResolvable should have been called, this should never be null
+		return this.getView(object, this.resolve(type, genericType, annotations, null));
+	}
+	
+	/**
+	 * @return the view to render object as already resolved, or null if the resolution has no view
+	 */
+	public Viewable getView(Object object, Resolution resolution)
+	{
 		if (object instanceof Viewable)
+			return (Viewable) object;
+		
+		ViewWith viewWith = resolution.getViewWith();
+		if (viewWith == null)
+			return null;
+		
+		Object model = object;
+		if (viewWith.propertyMap() && object != null)
 		{
-			viewingPleasure = (Viewable) object;
+			ModelAccessors table = resolution.getAccessors();
+			if (table == null || table.getType() != object.getClass())
+				table = this.getAccessors(object.getClass());
+			
+			model = table.asMap(object);
 		}
-		else
+		
+		return this.createView(resolution.getViewPath(), model, viewWith.modelName());
+	}
+	
+	/**
+	 * @return the property table for the model class, built on first use and cached
+	 *  for the life of this resolver.
+	 */
+	public ModelAccessors getAccessors(Class<?> modelClass)
+	{
+		ModelAccessors table = this.accessors.get(modelClass);
+		if (table == null)
 		{
-			// Since isResolvable should have been called, this should never be null
-			ViewWith viewWith = this.getViewWith(type, genericType, annotations);
-			if (viewWith == null)
-				return null;
-			
-			viewingPleasure = this.createView(viewWith.value(), object, viewWith.modelName());
+			// Racing threads may both introspect; either result is equivalent
+			table = new ModelAccessors(modelClass);
+			ModelAccessors existing = this.accessors.putIfAbsent(modelClass, table);
+			if (existing != null)
+				table = existing;
 		}
-		return viewingPleasure;
+		return table;
 	}
 
 	/**
+	 * Results are cached by resolve(), so overrides should depend only on the arguments.
+	 * 
 	 * @return the relevant view annotation, or null if no view can be determined
 	 */
 	protected ViewWith getViewWith(Class<?> type, Type genericType, Annotation[] methodAnnotations)
@@ -101,27 +487,47 @@ public class ViewResolver
 			}
 		}
 
-		if (type != null && type.isAnnotationPresent(ViewWith.class))
-		{
-			return (ViewWith) type.getAnnotation(ViewWith.class);
-		}
+		ViewWith classLevel = this.getClassViewWith(type);
+		if (classLevel != null)
+			return classLevel;
 
-		if (genericType != null && genericType instanceof Class
-				&& ((Class<?>) genericType).isAnnotationPresent(ViewWith.class))
-		{
-			return (ViewWith) ((Class<?>) genericType).getAnnotation(ViewWith.class);
-		}
+		if (genericType instanceof Class)
+			return this.getClassViewWith((Class<?>) genericType);
 
 		return null;
 	}
 
+	/**
+	 * @return the class's own @ViewWith, from a ViewIndex if one covers the class and
+	 *  otherwise by reflection; null if it has none
+	 */
+	private ViewWith getClassViewWith(Class<?> type)
+	{
+		if (type == null)
+			return null;
+		
+		ViewWith indexed = this.indexedTypes.get(type.getName());
+		if (indexed != null)
+			return indexed;
+		
+		return type.getAnnotation(ViewWith.class);
+	}
+
 	/**
 	 * You can override this method to change the view implementation to something
 	 * completely different - for example, you could directly instantiate a template
 	 * object and render it without going through the servlet dispatch stack again.
+	 * If the view was declared with propertyMap=true, model is already the property
+	 * Map; getAccessors() gives the same table for engines that prefer it directly.
+	 * When a TemplateMinifier is installed, the view dispatches to the minified copy
+	 * of the template if the build made one.
 	 */
 	protected Viewable createView(String path, Object model, String modelName)
 	{
+		TemplateMinifier minifier = TemplateMinifier.getInstance();
+		if (minifier != null)
+			path = minifier.minified(path);
+		
 		return new View(path, model, modelName);
 	}
 }
@@ -0,0 +1,199 @@
+package com.googlecode.htmleasy.provider;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+import javax.management.ObjectName;
+
+import com.googlecode.htmleasy.CompositeView;
+import com.googlecode.htmleasy.View;
+import com.googlecode.htmleasy.Viewable;
+import com.googlecode.htmleasy.util.SizeHistogram;
+
+/**
+ * Learns how big each view's output tends to be, so that response buffers and
+ * capture buffers can be sized before rendering instead of growing (or committing
+ * early) part way through.  ViewWriter records the size of every page it renders
+ * and sets the response buffer to a high percentile of recent sizes; CompositeView
+ * does the same for the buffers its regions render into.
+ * 
+ * Views are keyed by template path for View, by the keys of their regions for
+ * CompositeView, and by class for other Viewables.  Nothing is suggested until a
+ * view has been seen a few times, and suggestions are clamped to a maximum so a
+ * runaway page can't demand a huge buffer.
+ * 
+ * The dispatchers register the instance as an MXBean, so what has been learned
+ * can be watched from a JMX console.
+ */
+public class ViewSizes implements ViewSizesMXBean
+{
+	/** */
+	private static final Logger log = Logger.getLogger(ViewSizes.class.getName());
+	
+	/** */
+	private static volatile ViewSizes instance = new ViewSizes();
+	
+	/** Suggestions need at least this many samples */
+	private static final int MIN_SAMPLES = 16;
+	
+	/** */
+	private final ConcurrentMap<String, SizeHistogram> histograms = new ConcurrentHashMap<String, SizeHistogram>();
+	
+	/** */
+	private volatile double percentile = 0.9;
+	private volatile int maxBufferSize = 256 * 1024;
+	private volatile long halfLifeMillis = 10 * 60 * 1000;
+	
+	/** @return the sizes ViewWriter and CompositeView use */
+	public static ViewSizes getInstance() { return instance; }
+	
+	/** Replaces the sizes ViewWriter and CompositeView use */
+	public static void setInstance(ViewSizes sizes) { instance = sizes; }
+	
+	/** */
+	public double getPercentile() { return this.percentile; }
+	
+	/** @param percentile is the share of pages a suggested buffer should hold whole; default 0.9 */
+	public void setPercentile(double percentile) { this.percentile = percentile; }
+	
+	/** */
+	public int getMaxBufferSize() { return this.maxBufferSize; }
+	
+	/** @param maxBufferSize caps suggestions; default 256K */
+	public void setMaxBufferSize(int maxBufferSize) { this.maxBufferSize = maxBufferSize; }
+	
+	/** @param halfLifeMillis applies to histograms created after the call; default 10 minutes */
+	public void setHalfLifeMillis(long halfLifeMillis) { this.halfLifeMillis = halfLifeMillis; }
+	
+	/**
+	 * @return the key sizes of the view are recorded under.  A CompositeView is
+	 *  keyed by its regions, so that pages made of different regions don't share a
+	 *  histogram.
+	 */
+	public static String keyOf(Viewable view)
+	{
+		if (view instanceof View)
+			return ((View) view).getPath();
+		
+		if (view instanceof CompositeView)
+		{
+			StringBuilder key = new StringBuilder("composite[");
+			boolean first = true;
+			for (Viewable region : ((CompositeView) view).getRegions())
+			{
+				if (!first)
+					key.append(',');
+				
+				key.append(keyOf(region));
+				first = false;
+			}
+			return key.append(']').toString();
+		}
+		
+		return view.getClass().getName();
+	}
+	
+	/** Notes the size of one rendering of the view */
+	public void record(String key, long size)
+	{
+		SizeHistogram histogram = this.histograms.get(key);
+		if (histogram == null)
+		{
+			histogram = new SizeHistogram(this.halfLifeMillis);
+			SizeHistogram existing = this.histograms.putIfAbsent(key, histogram);
+			if (existing != null)
+				histogram = existing;
+		}
+		histogram.record(size);
+	}
+	
+	/**
+	 * @return the buffer size to use for the view, or 0 if there isn't enough
+	 *  history to say
+	 */
+	public int suggestBufferSize(String key)
+	{
+		SizeHistogram histogram = this.histograms.get(key);
+		if (histogram == null || histogram.getSamples() < MIN_SAMPLES)
+			return 0;
+		
+		return (int) Math.min(histogram.percentile(this.percentile), this.maxBufferSize);
+	}
+	
+	/** @return the histogram for the view, or null if it has never been recorded */
+	public SizeHistogram getHistogram(String key)
+	{
+		return this.histograms.get(key);
+	}
+	
+	/**
+	 * @return view key to the buffer size currently suggested for it, for
+	 *  monitoring; views without enough history are left out
+	 */
+	public Map<String, Integer> getLearnedSizes()
+	{
+		Map<String, Integer> learned = new TreeMap<String, Integer>();
+		for (String key : this.histograms.keySet())
+		{
+			int size = this.suggestBufferSize(key);
+			if (size > 0)
+				learned.put(key, size);
+		}
+		return learned;
+	}
+	
+	/** */
+	public int getViewCount()
+	{
+		return this.histograms.size();
+	}
+	
+	/** Forgets everything learned */
+	public void clear()
+	{
+		this.histograms.clear();
+	}
+	
+	/**
+	 * Publishes these sizes in the platform MBean server.
+	 * 
+	 * @param name distinguishes this registration from others in the JVM, e.g. the filter name
+	 * @return the name registered under, or null if registration failed
+	 */
+	public ObjectName register(String name)
+	{
+		try
+		{
+			ObjectName objectName = new ObjectName("com.googlecode.htmleasy:type=ViewSizes,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+			return objectName;
+		}
+		catch (Exception ex)
+		{
+			log.warning("Unable to register view sizes MBean " + name + ": " + ex);
+			return null;
+		}
+	}
+	
+	/**
+	 * Removes an MBean registered by register(); ignores a null name.
+	 */
+	public static void unregister(ObjectName objectName)
+	{
+		if (objectName == null)
+			return;
+		
+		try
+		{
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		}
+		catch (Exception ex)
+		{
+			log.warning("Unable to unregister " + objectName + ": " + ex);
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package com.googlecode.htmleasy.provider;
+
+import java.util.Map;
+
+/**
+ * JMX view of ViewSizes.  An MXBean, so the learned sizes show up as a table in
+ * any JMX console.
+ */
+public interface ViewSizesMXBean
+{
+	/** @return view key to the buffer size currently suggested for it */
+	public Map<String, Integer> getLearnedSizes();
+	
+	/** @return how many views have sizes recorded, learned or not */
+	public int getViewCount();
+	
+	/** @return the share of pages a suggested buffer should hold whole */
+	public double getPercentile();
+	
+	/** */
+	public void setPercentile(double percentile);
+	
+	/** @return the cap on suggestions */
+	public int getMaxBufferSize();
+	
+	/** */
+	public void setMaxBufferSize(int maxBufferSize);
+	
+	/** Forgets everything learned */
+	public void clear();
+}
@@ -4,6 +4,8 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Type;
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.servlet.ServletException;
@@ -18,11 +20,25 @@ import javax.ws.rs.ext.Provider;
 import org.jboss.resteasy.spi.InternalServerErrorException;
 import org.jboss.resteasy.spi.ResteasyProviderFactory;
 
+import com.googlecode.htmleasy.CacheOutput;
+import com.googlecode.htmleasy.ConcurrentViewable;
+import com.googlecode.htmleasy.RenderContext;
+import com.googlecode.htmleasy.ServerTiming;
+import com.googlecode.htmleasy.ViewEvents;
+import com.googlecode.htmleasy.View;
 import com.googlecode.htmleasy.ViewWith;
 import com.googlecode.htmleasy.Viewable;
+import com.googlecode.htmleasy.util.BufferedHttpServletResponse;
+import com.googlecode.htmleasy.util.CapturingResponseWrapper;
+import com.googlecode.htmleasy.util.CountingHttpServletResponse;
+import com.googlecode.htmleasy.util.LocalAttributesRequestWrapper;
+import com.googlecode.htmleasy.util.StandInHttpServletRequest;
 
 /**
- * JAX-RS provider for viewable objects. Handles all media types so that it can look for relevant @ViewWith annotations.
+ * JAX-RS provider for viewable objects. Viewable entities are written as any media type, so a View of an RSS or XML
+ * JSP still works; other entities are written only as HTML, looking for relevant @ViewWith annotations, and other
+ * media types (e.g. JSON from the same resource method) are left to other writers.  Either way the decision is one
+ * cached lookup per resource method and media type.
  * 
  * @author Jeff Schnitzer <jeff@infohazard.org>
  * @author Vivian Steller <vivian@steller.info>
@@ -30,10 +46,17 @@ import com.googlecode.htmleasy.Viewable;
 @Provider
 public class ViewWriter implements MessageBodyWriter<Object>
 {
-	@SuppressWarnings("unused")
 	private static final Logger log = Logger.getLogger(ViewWriter.class.getName());
 	
-	private ViewResolver viewResolver = new ViewResolver();
+	/** Request attribute (a Long) holding the nanoseconds spent running prefetch loaders */
+	public static final String PREFETCH_NANOS_ATTRIBUTE = ViewWriter.class.getName() + ".prefetchNanos";
+	
+	/** Request attribute (a Long) holding the nanoseconds spent in Viewable.render() */
+	public static final String RENDER_NANOS_ATTRIBUTE = ViewWriter.class.getName() + ".renderNanos";
+	
+	private volatile ViewResolver viewResolver = new ViewResolver();
+	
+	private volatile PrefetchRunner prefetchRunner = new PrefetchRunner();
 	
 	/*
 	 * (non-Javadoc)
@@ -57,7 +80,7 @@ public class ViewWriter implements MessageBodyWriter<Object>
 	@Override
 	public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType)
 	{
-		return viewResolver.isResolvable(type, genericType, annotations);
+		return viewResolver.isResolvable(type, genericType, annotations, mediaType);
 	}
 	
 	/*
@@ -71,22 +94,259 @@ public class ViewWriter implements MessageBodyWriter<Object>
 	public void writeTo(Object obj, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType, MultivaluedMap<String, Object> httpHeaders,
 			OutputStream entityStream) throws IOException, WebApplicationException
 	{
-		Viewable viewingPleasure = viewResolver.getView(obj, type, genericType, annotations);
+		HttpServletRequest request = ResteasyProviderFactory.getContextData(HttpServletRequest.class);
+		HttpServletResponse response = ResteasyProviderFactory.getContextData(HttpServletResponse.class);
+		
+		// Resolve once, so a resolver or mapping swapped mid-request doesn't mix old and new
+		long resolveStart = System.nanoTime();
+		ViewResolver resolver = this.viewResolver;
+		Resolution resolution = resolver.resolve(type, genericType, annotations, null);
+		Viewable viewingPleasure = resolver.getView(obj, resolution);
+		ServerTiming.record(request, ServerTiming.RESOLVE, System.nanoTime() - resolveStart);
 		
 		if (viewingPleasure == null)
 			throw new InternalServerErrorException("No " + ViewWith.class.getSimpleName() + " annotation found for object of type " + type.getName());
 		
-		HttpServletRequest request = ResteasyProviderFactory.getContextData(HttpServletRequest.class);
-		HttpServletResponse response = ResteasyProviderFactory.getContextData(HttpServletResponse.class);
+		// Let the browser start on the page's assets while we render
+		PreloadLinks preloadLinks = resolution.getPreloadLinks();
+		if (preloadLinks != null)
+			preloadLinks.apply(request.getContextPath(), response);
+		
+		Object model = (obj instanceof View) ? ((View) obj).getModel() : obj;
+		
+		// From here on, nothing needs RESTEasy's thread-bound context data
+		RenderContext context = RenderContext.capture(viewingPleasure);
+		request.setAttribute(RenderContext.ATTRIBUTE, context);
+		RenderContext previous = RenderContext.bind(context);
+		try
+		{
+			CacheOutput policy = resolution.getCacheOutput();
+			if (policy != null && "GET".equals(request.getMethod()))
+				this.renderCached(policy, viewingPleasure, model, request, response);
+			else
+				this.render(viewingPleasure, model, request, response);
+		}
+		finally
+		{
+			RenderContext.bind(previous);
+		}
+	}
+	
+	/**
+	 * Prefetches the model and renders the view, recording how long each took and
+	 * how much was written.
+	 */
+	protected void render(Viewable viewingPleasure, Object model, HttpServletRequest request, HttpServletResponse response)
+			throws IOException, WebApplicationException
+	{
+		// Give the model a chance to load lazy data in bulk before the template walks it
+		long prefetchNanos = prefetchRunner.prefetch(model);
+		request.setAttribute(PREFETCH_NANOS_ATTRIBUTE, prefetchNanos);
+		ServerTiming.record(request, ServerTiming.PREFETCH, prefetchNanos);
 		
+		// Size the buffer for the whole page when we know how big it usually is
+		ViewSizes sizes = ViewSizes.getInstance();
+		String sizeKey = ViewSizes.keyOf(viewingPleasure);
+		int bufferSize = sizes.suggestBufferSize(sizeKey);
+		if (bufferSize > 0 && !response.isCommitted())
+		{
+			try
+			{
+				response.setBufferSize(bufferSize);
+			}
+			catch (IllegalStateException ex)
+			{
+				// Something has already been written; keep the buffer we have
+			}
+		}
+		
+		CountingHttpServletResponse counted = new CountingHttpServletResponse(response);
+		boolean rendered = false;
+		long renderStart = System.nanoTime();
 		try
 		{
-			viewingPleasure.render(request, response);
+			viewingPleasure.render(request, counted);
+			sizes.record(sizeKey, counted.getCount());
+			rendered = true;
 		}
 		catch (ServletException ex)
 		{
 			throw new WebApplicationException(ex);
 		}
+		finally
+		{
+			long renderNanos = System.nanoTime() - renderStart;
+			request.setAttribute(RENDER_NANOS_ATTRIBUTE, renderNanos);
+			ServerTiming.record(request, ServerTiming.RENDER, renderNanos);
+			ViewEvents.rendered(sizeKey, model == null ? null : model.getClass(), renderNanos, counted.getCount(), !rendered);
+			
+			if (log.isLoggable(Level.FINE))
+				log.fine("Rendered " + viewingPleasure + " (prefetch " + prefetchNanos / 1000000 + "ms, render " + renderNanos / 1000000 + "ms)");
+		}
+	}
+	
+	/**
+	 * Serves from the ViewCache where the policy allows, otherwise renders into a
+	 * buffer, caches the result and sends it.  Stale entries within the
+	 * stale-while-revalidate window are served at once and then refreshed: in the
+	 * background for a ConcurrentViewable, otherwise on this thread once the stale
+	 * page has been flushed to the client, since only this thread may dispatch.
+	 */
+	protected void renderCached(CacheOutput policy, Viewable viewingPleasure, Object model, HttpServletRequest request, HttpServletResponse response)
+			throws IOException, WebApplicationException
+	{
+		ViewCache cache = ViewCache.getInstance();
+		String key = cache.key(request);
+		long now = System.currentTimeMillis();
+		
+		CachedOutput cached = cache.get(key);
+		if (cached != null && cached.isFresh(now))
+		{
+			cached.writeTo(response);
+			return;
+		}
+		
+		if (cached != null && cached.isRevalidatable(now))
+		{
+			cached.writeTo(response);
+			if (viewingPleasure instanceof ConcurrentViewable)
+			{
+				cache.refresh(key, this.refresher(policy, viewingPleasure, model, request, response));
+			}
+			else
+			{
+				// The length was sent, so the client has the whole page once it is flushed
+				response.flushBuffer();
+				cache.refreshHere(key, this.inlineRefresher(policy, viewingPleasure, model, request, response));
+			}
+			return;
+		}
+		
+		BufferedHttpServletResponse buffered = new BufferedHttpServletResponse(response);
+		try
+		{
+			this.render(viewingPleasure, model, request, new CapturingResponseWrapper(response, buffered));
+		}
+		catch (IOException ex)
+		{
+			if (!this.serveOnError(cached, now, response, ex))
+				throw ex;
+			return;
+		}
+		catch (RuntimeException ex)
+		{
+			if (!this.serveOnError(cached, now, response, ex))
+				throw ex;
+			return;
+		}
+		
+		if (this.isCacheable(buffered))
+			cache.put(key, new CachedOutput(buffered.toByteArray(), buffered.getContentType(), buffered.getHeaders(), System.currentTimeMillis(), policy));
+		
+		buffered.replayTo(response);
+	}
+	
+	/**
+	 * @return true if the stale entry was sent in place of a failed render
+	 */
+	private boolean serveOnError(CachedOutput cached, long now, HttpServletResponse response, Exception ex) throws IOException
+	{
+		if (cached == null || !cached.isUsableOnError(now))
+			return false;
+		
+		log.log(Level.WARNING, "Rendering failed, serving stale output", ex);
+		cached.writeTo(response);
+		return true;
+	}
+	
+	/**
+	 * Output which sets cookies is probably specific to one user, so it is never cached.
+	 */
+	private boolean isCacheable(BufferedHttpServletResponse buffered)
+	{
+		return buffered.getStatus() == HttpServletResponse.SC_OK
+			&& buffered.getRedirect() == null
+			&& buffered.getCookies().isEmpty();
+	}
+	
+	/**
+	 * @return a factory for a task which renders the view again against a snapshot of
+	 *  the request, for use after this request has completed.  The snapshot is only
+	 *  taken if the refresh is scheduled.  The view must not dispatch, since the task
+	 *  runs without the servlet container.
+	 */
+	private ViewCache.RefresherFactory refresher(final CacheOutput policy, final Viewable viewingPleasure, final Object model,
+			final HttpServletRequest request, HttpServletResponse response)
+	{
+		final String encoding = response.getCharacterEncoding();
+		
+		return new ViewCache.RefresherFactory() {
+			public ViewCache.Refresher create()
+			{
+				// The refresh runs on another thread after this request has finished
+				RenderContext current = RenderContext.of(request);
+				final RenderContext context = ((current != null) ? current : RenderContext.capture(viewingPleasure)).detach();
+				final StandInHttpServletRequest snapshot = StandInHttpServletRequest.snapshot(request, context.getServletContext());
+				snapshot.removeAttribute(ServerTiming.ATTRIBUTE);
+				
+				return new ViewCache.Refresher() {
+					public CachedOutput render() throws Exception
+					{
+						BufferedHttpServletResponse buffered = new BufferedHttpServletResponse();
+						buffered.setCharacterEncoding(encoding);
+						
+						return renderForCache(policy, viewingPleasure, model, context, snapshot, buffered, buffered);
+					}
+				};
+			}
+		};
+	}
+	
+	/**
+	 * @return a task which renders the view again on this thread, against the real
+	 *  request with its own attributes, into a buffer wrapping the real response
+	 */
+	private ViewCache.Refresher inlineRefresher(final CacheOutput policy, final Viewable viewingPleasure, final Object model,
+			final HttpServletRequest request, final HttpServletResponse response)
+	{
+		return new ViewCache.Refresher() {
+			public CachedOutput render() throws Exception
+			{
+				LocalAttributesRequestWrapper local = new LocalAttributesRequestWrapper(request);
+				local.removeAttribute(ServerTiming.ATTRIBUTE);
+				
+				BufferedHttpServletResponse buffered = new BufferedHttpServletResponse(response);
+				RenderContext current = RenderContext.of(request);
+				RenderContext context = (current != null) ? current : RenderContext.capture(viewingPleasure);
+				
+				return renderForCache(policy, viewingPleasure, model, context, local, new CapturingResponseWrapper(response, buffered), buffered);
+			}
+		};
+	}
+	
+	/**
+	 * Renders with the context pointed at the given request and response.
+	 * 
+	 * @param buffered is where response ends up writing
+	 * @return the output to cache, or null if it shouldn't be
+	 */
+	private CachedOutput renderForCache(CacheOutput policy, final Viewable viewingPleasure, final Object model, RenderContext context,
+			final HttpServletRequest request, final HttpServletResponse response, BufferedHttpServletResponse buffered) throws Exception
+	{
+		RenderContext refresh = context.with(request, response);
+		request.setAttribute(RenderContext.ATTRIBUTE, refresh);
+		refresh.call(new Callable<Void>() {
+			public Void call() throws Exception
+			{
+				ViewWriter.this.render(viewingPleasure, model, request, response);
+				return null;
+			}
+		});
+		
+		if (!isCacheable(buffered))
+			return null;
+		
+		return new CachedOutput(buffered.toByteArray(), buffered.getContentType(), buffered.getHeaders(), System.currentTimeMillis(), policy);
 	}
 	
 	public ViewResolver getViewResolver()
@@ -94,9 +354,23 @@ public class ViewWriter implements MessageBodyWriter<Object>
 		return viewResolver;
 	}
 	
+	/**
+	 * Takes effect for requests which haven't yet started writing; those in flight
+	 * finish with the resolver they started with.
+	 */
 	public void setViewResolver(ViewResolver viewResolver)
 	{
 		this.viewResolver = viewResolver;
 	}
 	
+	public PrefetchRunner getPrefetchRunner()
+	{
+		return prefetchRunner;
+	}
+	
+	public void setPrefetchRunner(PrefetchRunner prefetchRunner)
+	{
+		this.prefetchRunner = prefetchRunner;
+	}
+	
 }
@@ -0,0 +1,117 @@
+package com.googlecode.htmleasy.provider;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.core.MediaType;
+
+import org.jboss.resteasy.spi.ResteasyProviderFactory;
+
+import com.googlecode.htmleasy.HtmleasyProviders;
+import com.googlecode.htmleasy.Preload;
+import com.googlecode.htmleasy.ViewWith;
+import com.googlecode.htmleasy.Viewable;
+import com.googlecode.htmleasy.util.BufferedHttpServletResponse;
+import com.googlecode.htmleasy.util.HtmlEscapingWriter;
+import com.googlecode.htmleasy.util.StandInHttpServletRequest;
+
+/**
+ * Drives one request's worth of view resolution and rendering outside a container,
+ * so that every class involved gets loaded and initialized.  The "cds" profile in
+ * the pom runs it (through bench.WarmupMain in the tests) to record the classes for
+ * a Class Data Sharing archive, and bench.StartupBenchmark compares its timing with
+ * and without the archive; apps can also call run() at startup to take the cost
+ * before the first real request.
+ */
+public class Warmup
+{
+	/** Stands in for a model class bound with @ViewWith */
+	@ViewWith(value="/warmup.jsp", propertyMap=true)
+	public static class Model
+	{
+		public String getTitle() { return "Warmup"; }
+	}
+
+	/** Renders without a servlet container */
+	public static class Page implements Viewable
+	{
+		public void render(HttpServletRequest request, HttpServletResponse response) throws IOException
+		{
+			response.setContentType("text/html; charset=UTF-8");
+
+			HtmlEscapingWriter out = HtmlEscapingWriter.forResponse(response);
+			out.write("<p>");
+			out.escape("Warm & ready");
+			out.write("</p>");
+			out.flush();
+		}
+	}
+
+	/** Stands in for a resource method, for its annotations */
+	@Preload(value="/warmup.css", earlyHints=false)
+	public Page page() { return new Page(); }
+
+	/** */
+	private Warmup() {}
+
+	/**
+	 * Loads the providers, resolves a model's view and renders a page through ViewWriter.
+	 *
+	 * @return nanoseconds taken
+	 */
+	public static long run() throws IOException
+	{
+		long start = System.nanoTime();
+
+		ClassLoader loader = Warmup.class.getClassLoader();
+		for (Class<?> provider : HtmleasyProviders.getClasses())
+		{
+			try
+			{
+				Class.forName(provider.getName(), true, loader);
+			}
+			catch (ClassNotFoundException ex)
+			{
+				throw new IllegalStateException(ex);
+			}
+		}
+
+		ViewResolver resolver = new ViewResolver();
+		resolver.getView(new Model());
+
+		Annotation[] annotations;
+		try
+		{
+			Method page = Warmup.class.getMethod("page");
+			annotations = page.getAnnotations();
+		}
+		catch (NoSuchMethodException ex)
+		{
+			throw new IllegalStateException(ex);
+		}
+
+		StandInHttpServletRequest request = new StandInHttpServletRequest(null, "GET", "", "/warmup");
+		BufferedHttpServletResponse response = new BufferedHttpServletResponse();
+
+		ResteasyProviderFactory.addContextDataLevel();
+		try
+		{
+			ResteasyProviderFactory.pushContext(HttpServletRequest.class, request);
+			ResteasyProviderFactory.pushContext(HttpServletResponse.class, response);
+
+			ViewWriter writer = new ViewWriter();
+			writer.setViewResolver(resolver);
+			writer.writeTo(new Page(), Page.class, Page.class, annotations, MediaType.TEXT_HTML_TYPE, null, new ByteArrayOutputStream());
+		}
+		finally
+		{
+			ResteasyProviderFactory.removeContextDataLevel();
+		}
+
+		return System.nanoTime() - start;
+	}
+}
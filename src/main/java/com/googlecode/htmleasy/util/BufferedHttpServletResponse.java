@@ -0,0 +1,353 @@
+package com.googlecode.htmleasy.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A response which captures everything written to it in memory rather than
+ * sending it anywhere.  Used to render a view into a buffer so the output can be
+ * reordered, cached or inspected before it goes to the client.
+ * 
+ * The optional parent response supplies URL encoding, locale and the default
+ * character encoding; nothing is ever written to it.  Status, headers and cookies
+ * are recorded here and can be read back.
+ */
+public class BufferedHttpServletResponse implements HttpServletResponse
+{
+	/** The servlet spec default */
+	private static final String DEFAULT_ENCODING = "ISO-8859-1";
+	
+	/** Exposes the internal array so we don't copy when draining */
+	private static class Buffer extends ByteArrayOutputStream
+	{
+		Buffer(int size) { super(size); }
+		byte[] array() { return this.buf; }
+		
+		/** Grows the array up front so that size bytes fit without copying */
+		synchronized void reserve(int size)
+		{
+			if (size > this.buf.length)
+			{
+				byte[] bigger = new byte[size];
+				System.arraycopy(this.buf, 0, bigger, 0, this.count);
+				this.buf = bigger;
+			}
+		}
+	}
+	
+	/** May be null */
+	private final HttpServletResponse parent;
+	
+	/** */
+	private final Buffer buffer;
+	private ServletOutputStream stream;
+	private PrintWriter writer;
+	
+	private int status = SC_OK;
+	private String errorMessage;
+	private String redirect;
+	private boolean committed;
+	
+	private String contentType;
+	private String characterEncoding;
+	private Locale locale;
+	private int bufferSize;
+	
+	/** Case-insensitive, since that's how HTTP treats header names */
+	private final Map<String, List<String>> headers = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+	private final List<Cookie> cookies = new ArrayList<Cookie>();
+	
+	/**
+	 * A standalone response, for rendering outside of any real request.
+	 */
+	public BufferedHttpServletResponse()
+	{
+		this(null);
+	}
+	
+	/**
+	 * @param parent supplies URL encoding, locale, and the default character encoding; may be null.
+	 */
+	public BufferedHttpServletResponse(HttpServletResponse parent)
+	{
+		this(parent, 8192);
+	}
+	
+	/**
+	 * @param parent supplies URL encoding, locale, and the default character encoding; may be null.
+	 * @param initialCapacity is the starting size of the capture buffer in bytes
+	 */
+	public BufferedHttpServletResponse(HttpServletResponse parent, int initialCapacity)
+	{
+		this.parent = parent;
+		this.buffer = new Buffer(initialCapacity);
+		this.bufferSize = initialCapacity;
+		
+		if (parent != null)
+		{
+			this.characterEncoding = parent.getCharacterEncoding();
+			this.locale = parent.getLocale();
+		}
+	}
+	
+	/** @return the number of bytes captured so far */
+	public int size()
+	{
+		this.flushWriter();
+		return this.buffer.size();
+	}
+	
+	/** @return a copy of the captured bytes */
+	public byte[] toByteArray()
+	{
+		this.flushWriter();
+		return this.buffer.toByteArray();
+	}
+	
+	/** Copies the captured bytes to out without an intermediate copy */
+	public void writeTo(OutputStream out) throws IOException
+	{
+		this.flushWriter();
+		out.write(this.buffer.array(), 0, this.buffer.size());
+	}
+	
+	/**
+	 * Sends everything captured (status, headers, cookies, redirect or error, and
+	 * body) to a real response, as if it had been written there directly.
+	 */
+	public void replayTo(HttpServletResponse response) throws IOException
+	{
+		for (Cookie cookie : this.cookies)
+			response.addCookie(cookie);
+		
+		for (Map.Entry<String, List<String>> header : this.headers.entrySet())
+		{
+			// sendRedirect() below sets this itself
+			if (this.redirect != null && "Location".equalsIgnoreCase(header.getKey()))
+				continue;
+			
+			for (String value : header.getValue())
+				response.addHeader(header.getKey(), value);
+		}
+		
+		if (this.redirect != null)
+		{
+			response.sendRedirect(this.redirect);
+		}
+		else if (this.errorMessage != null || this.status >= 400 && this.buffer.size() == 0)
+		{
+			response.sendError(this.status, this.errorMessage);
+		}
+		else
+		{
+			response.setStatus(this.status);
+			if (this.contentType != null)
+				response.setContentType(this.contentType);
+			
+			this.writeTo(response.getOutputStream());
+		}
+	}
+	
+	/** @return the captured output decoded with the response character encoding */
+	public String getContentAsString() throws IOException
+	{
+		this.flushWriter();
+		return this.buffer.toString(this.getCharacterEncoding());
+	}
+	
+	/** */
+	public int getStatus() { return this.status; }
+	public String getErrorMessage() { return this.errorMessage; }
+	public String getRedirect() { return this.redirect; }
+	public List<Cookie> getCookies() { return Collections.unmodifiableList(this.cookies); }
+	public Map<String, List<String>> getHeaders() { return Collections.unmodifiableMap(this.headers); }
+	
+	/** @return the first value of the header, or null */
+	public String getHeader(String name)
+	{
+		List<String> values = this.headers.get(name);
+		return (values == null || values.isEmpty()) ? null : values.get(0);
+	}
+	
+	/** */
+	private void flushWriter()
+	{
+		if (this.writer != null)
+			this.writer.flush();
+	}
+	
+	/** */
+	private void putHeader(String name, String value, boolean add)
+	{
+		List<String> values = this.headers.get(name);
+		if (values == null)
+		{
+			values = new ArrayList<String>(1);
+			this.headers.put(name, values);
+		}
+		else if (!add)
+		{
+			values.clear();
+		}
+		values.add(value);
+	}
+	
+	/* HttpServletResponse */
+	
+	public void addCookie(Cookie cookie) { this.cookies.add(cookie); }
+	public boolean containsHeader(String name) { return this.headers.containsKey(name); }
+	
+	public String encodeURL(String url) { return (this.parent == null) ? url : this.parent.encodeURL(url); }
+	public String encodeRedirectURL(String url) { return (this.parent == null) ? url : this.parent.encodeRedirectURL(url); }
+	@Deprecated public String encodeUrl(String url) { return this.encodeURL(url); }
+	@Deprecated public String encodeRedirectUrl(String url) { return this.encodeRedirectURL(url); }
+	
+	public void sendError(int sc, String msg) throws IOException
+	{
+		this.status = sc;
+		this.errorMessage = msg;
+		this.committed = true;
+	}
+	
+	public void sendError(int sc) throws IOException
+	{
+		this.sendError(sc, null);
+	}
+	
+	public void sendRedirect(String location) throws IOException
+	{
+		this.status = SC_FOUND;
+		this.redirect = location;
+		this.putHeader("Location", location, false);
+		this.committed = true;
+	}
+	
+	public void setDateHeader(String name, long date) { this.putHeader(name, new Date(date).toString(), false); }
+	public void addDateHeader(String name, long date) { this.putHeader(name, new Date(date).toString(), true); }
+	public void setHeader(String name, String value) { this.putHeader(name, value, false); }
+	public void addHeader(String name, String value) { this.putHeader(name, value, true); }
+	public void setIntHeader(String name, int value) { this.putHeader(name, Integer.toString(value), false); }
+	public void addIntHeader(String name, int value) { this.putHeader(name, Integer.toString(value), true); }
+	
+	public void setStatus(int sc) { this.status = sc; }
+	@Deprecated public void setStatus(int sc, String sm) { this.status = sc; this.errorMessage = sm; }
+	
+	/* ServletResponse */
+	
+	public String getCharacterEncoding()
+	{
+		return (this.characterEncoding == null) ? DEFAULT_ENCODING : this.characterEncoding;
+	}
+	
+	public void setCharacterEncoding(String charset)
+	{
+		// Like a real response, this has no effect once the writer exists
+		if (this.writer == null)
+			this.characterEncoding = charset;
+	}
+	
+	public String getContentType() { return this.contentType; }
+	
+	public void setContentType(String type)
+	{
+		this.contentType = type;
+		
+		if (type != null)
+		{
+			int idx = type.toLowerCase(Locale.ENGLISH).indexOf("charset=");
+			if (idx >= 0)
+			{
+				String charset = type.substring(idx + "charset=".length()).trim();
+				int end = charset.indexOf(';');
+				if (end >= 0)
+					charset = charset.substring(0, end).trim();
+				
+				this.setCharacterEncoding(charset.replace("\"", ""));
+			}
+		}
+	}
+	
+	public ServletOutputStream getOutputStream() throws IOException
+	{
+		if (this.stream == null)
+		{
+			this.stream = new ServletOutputStream() {
+				@Override
+				public void write(int b) throws IOException
+				{
+					buffer.write(b);
+				}
+				
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException
+				{
+					buffer.write(b, off, len);
+				}
+			};
+		}
+		return this.stream;
+	}
+	
+	public PrintWriter getWriter() throws IOException
+	{
+		if (this.writer == null)
+			this.writer = new PrintWriter(new OutputStreamWriter(this.buffer, this.getCharacterEncoding()));
+		
+		return this.writer;
+	}
+	
+	public void setContentLength(int len) { this.setIntHeader("Content-Length", len); }
+	
+	/** Also makes room in the capture buffer, so a caller that knows the likely size avoids regrowth */
+	public void setBufferSize(int size)
+	{
+		this.bufferSize = size;
+		this.buffer.reserve(size);
+	}
+	
+	public int getBufferSize() { return this.bufferSize; }
+	
+	public void flushBuffer() throws IOException
+	{
+		this.flushWriter();
+		this.committed = true;
+	}
+	
+	public void resetBuffer()
+	{
+		this.flushWriter();
+		this.buffer.reset();
+	}
+	
+	public boolean isCommitted() { return this.committed; }
+	
+	public void reset()
+	{
+		this.resetBuffer();
+		this.status = SC_OK;
+		this.headers.clear();
+		this.cookies.clear();
+		this.contentType = null;
+	}
+	
+	public void setLocale(Locale loc) { this.locale = loc; }
+	
+	public Locale getLocale()
+	{
+		return (this.locale == null) ? Locale.getDefault() : this.locale;
+	}
+}
@@ -0,0 +1,74 @@
+package com.googlecode.htmleasy.util;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Locale;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Presents a BufferedHttpServletResponse as a wrapper around the container's
+ * response, so that it can be handed to RequestDispatcher.forward() and include().
+ * The servlet spec only allows those with the container's own response or a
+ * ServletResponseWrapper around it.  Everything is captured in the buffer; the
+ * wrapped response is there for the container's benefit and is never written to.
+ */
+public class CapturingResponseWrapper extends HttpServletResponseWrapper
+{
+	/** */
+	private final BufferedHttpServletResponse capture;
+
+	/**
+	 * @param original is the container's response (or a wrapper of it)
+	 * @param capture receives everything written
+	 */
+	public CapturingResponseWrapper(HttpServletResponse original, BufferedHttpServletResponse capture)
+	{
+		super(original);
+		this.capture = capture;
+	}
+
+	/** */
+	public BufferedHttpServletResponse getCapture() { return this.capture; }
+
+	/* HttpServletResponse */
+
+	@Override public void addCookie(Cookie cookie) { this.capture.addCookie(cookie); }
+	@Override public boolean containsHeader(String name) { return this.capture.containsHeader(name); }
+	@Override public String encodeURL(String url) { return this.capture.encodeURL(url); }
+	@Override public String encodeRedirectURL(String url) { return this.capture.encodeRedirectURL(url); }
+	@Override @Deprecated public String encodeUrl(String url) { return this.capture.encodeURL(url); }
+	@Override @Deprecated public String encodeRedirectUrl(String url) { return this.capture.encodeRedirectURL(url); }
+	@Override public void sendError(int sc, String msg) throws IOException { this.capture.sendError(sc, msg); }
+	@Override public void sendError(int sc) throws IOException { this.capture.sendError(sc); }
+	@Override public void sendRedirect(String location) throws IOException { this.capture.sendRedirect(location); }
+	@Override public void setDateHeader(String name, long date) { this.capture.setDateHeader(name, date); }
+	@Override public void addDateHeader(String name, long date) { this.capture.addDateHeader(name, date); }
+	@Override public void setHeader(String name, String value) { this.capture.setHeader(name, value); }
+	@Override public void addHeader(String name, String value) { this.capture.addHeader(name, value); }
+	@Override public void setIntHeader(String name, int value) { this.capture.setIntHeader(name, value); }
+	@Override public void addIntHeader(String name, int value) { this.capture.addIntHeader(name, value); }
+	@Override public void setStatus(int sc) { this.capture.setStatus(sc); }
+	@Override @Deprecated public void setStatus(int sc, String sm) { this.capture.setStatus(sc, sm); }
+
+	/* ServletResponse */
+
+	@Override public String getCharacterEncoding() { return this.capture.getCharacterEncoding(); }
+	@Override public void setCharacterEncoding(String charset) { this.capture.setCharacterEncoding(charset); }
+	@Override public String getContentType() { return this.capture.getContentType(); }
+	@Override public void setContentType(String type) { this.capture.setContentType(type); }
+	@Override public ServletOutputStream getOutputStream() throws IOException { return this.capture.getOutputStream(); }
+	@Override public PrintWriter getWriter() throws IOException { return this.capture.getWriter(); }
+	@Override public void setContentLength(int len) { this.capture.setContentLength(len); }
+	@Override public void setBufferSize(int size) { this.capture.setBufferSize(size); }
+	@Override public int getBufferSize() { return this.capture.getBufferSize(); }
+	@Override public void flushBuffer() throws IOException { this.capture.flushBuffer(); }
+	@Override public void resetBuffer() { this.capture.resetBuffer(); }
+	@Override public boolean isCommitted() { return this.capture.isCommitted(); }
+	@Override public void reset() { this.capture.reset(); }
+	@Override public void setLocale(Locale loc) { this.capture.setLocale(loc); }
+	@Override public Locale getLocale() { return this.capture.getLocale(); }
+}
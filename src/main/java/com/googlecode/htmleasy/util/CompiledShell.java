@@ -0,0 +1,156 @@
+package com.googlecode.htmleasy.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.servlet.ServletException;
+
+/**
+ * Rendered page output split once into static byte segments and named holes.  The
+ * static segments can then be written straight from memory on every request, with
+ * only the holes rendered afresh.
+ * 
+ * Holes are marked in the rendered output with placeholder comments of the form
+ * produced by {@link #placeholder(String)}, e.g. &lt;!--htmleasy:cart--&gt;.  The
+ * markers are matched as bytes, so the output must be in an ASCII-compatible
+ * encoding such as UTF-8 or ISO-8859-1.
+ */
+public class CompiledShell
+{
+	/** */
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	
+	/** */
+	private static final byte[] MARKER_START = ascii("<!--htmleasy:");
+	private static final byte[] MARKER_END = ascii("-->");
+	
+	/**
+	 * Writes the content of a hole when the shell is written out.
+	 */
+	public interface HoleWriter
+	{
+		/** Writes the content of the named hole to out */
+		public void writeHole(String name, OutputStream out) throws IOException, ServletException;
+	}
+	
+	/** Each element is either a byte[] of static content or a String hole name */
+	private final List<Object> segments;
+	private final List<String> holeNames;
+	private final String contentType;
+	private final int staticSize;
+	
+	/** */
+	private CompiledShell(List<Object> segments, List<String> holeNames, String contentType, int staticSize)
+	{
+		this.segments = segments;
+		this.holeNames = Collections.unmodifiableList(holeNames);
+		this.contentType = contentType;
+		this.staticSize = staticSize;
+	}
+	
+	/**
+	 * @return the marker to put in a template where the named hole should go
+	 */
+	public static String placeholder(String name)
+	{
+		return "<!--htmleasy:" + name + "-->";
+	}
+	
+	/**
+	 * Splits rendered output into static segments and holes.
+	 * 
+	 * @param contentType is remembered so that it can be set on responses served from the shell; may be null
+	 */
+	public static CompiledShell compile(byte[] content, String contentType)
+	{
+		List<Object> segments = new ArrayList<Object>();
+		List<String> holes = new ArrayList<String>();
+		int staticSize = 0;
+		
+		int pos = 0;
+		while (pos < content.length)
+		{
+			int start = indexOf(content, MARKER_START, pos);
+			int nameStart = start + MARKER_START.length;
+			int end = (start < 0) ? -1 : indexOf(content, MARKER_END, nameStart);
+			
+			if (end < 0)
+			{
+				segments.add(copy(content, pos, content.length));
+				staticSize += content.length - pos;
+				break;
+			}
+			
+			if (start > pos)
+			{
+				segments.add(copy(content, pos, start));
+				staticSize += start - pos;
+			}
+			
+			String name = new String(copy(content, nameStart, end), ASCII).trim();
+			segments.add(name);
+			holes.add(name);
+			
+			pos = end + MARKER_END.length;
+		}
+		
+		return new CompiledShell(segments, holes, contentType, staticSize);
+	}
+	
+	/** @return the names of the holes, in the order they appear */
+	public List<String> getHoleNames() { return this.holeNames; }
+	
+	/** @return the content type of the original render, or null */
+	public String getContentType() { return this.contentType; }
+	
+	/** @return the total number of static bytes */
+	public int getStaticSize() { return this.staticSize; }
+	
+	/**
+	 * Writes the static segments to out, asking holes for the content of each hole in turn.
+	 */
+	public void writeTo(OutputStream out, HoleWriter holes) throws IOException, ServletException
+	{
+		for (Object segment : this.segments)
+		{
+			if (segment instanceof byte[])
+				out.write((byte[]) segment);
+			else
+				holes.writeHole((String) segment, out);
+		}
+	}
+	
+	/** */
+	private static int indexOf(byte[] haystack, byte[] needle, int from)
+	{
+		int last = haystack.length - needle.length;
+		outer:
+		for (int i = from; i <= last; i++)
+		{
+			for (int j = 0; j < needle.length; j++)
+				if (haystack[i + j] != needle[j])
+					continue outer;
+			
+			return i;
+		}
+		return -1;
+	}
+	
+	/** */
+	private static byte[] copy(byte[] src, int from, int to)
+	{
+		byte[] dest = new byte[to - from];
+		System.arraycopy(src, from, dest, 0, dest.length);
+		return dest;
+	}
+	
+	/** */
+	private static byte[] ascii(String str)
+	{
+		return str.getBytes(ASCII);
+	}
+}
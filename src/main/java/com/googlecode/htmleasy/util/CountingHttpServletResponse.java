@@ -0,0 +1,93 @@
+package com.googlecode.htmleasy.util;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Counts what is written to the body of a response.  Output through the stream
+ * is counted in bytes and output through the writer in chars, which is close
+ * enough for sizing buffers.
+ */
+public class CountingHttpServletResponse extends HttpServletResponseWrapper
+{
+	/** */
+	private long count;
+	private ServletOutputStream out;
+	private PrintWriter writer;
+	
+	/** */
+	public CountingHttpServletResponse(HttpServletResponse response)
+	{
+		super(response);
+	}
+	
+	/** @return bytes plus chars written so far */
+	public long getCount() { return this.count; }
+	
+	@Override
+	public ServletOutputStream getOutputStream() throws IOException
+	{
+		if (this.out == null)
+		{
+			final ServletOutputStream real = super.getOutputStream();
+			this.out = new ServletOutputStream() {
+				@Override
+				public void write(int b) throws IOException
+				{
+					count++;
+					real.write(b);
+				}
+				
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException
+				{
+					count += len;
+					real.write(b, off, len);
+				}
+				
+				@Override
+				public void flush() throws IOException { real.flush(); }
+				
+				@Override
+				public void close() throws IOException { real.close(); }
+			};
+		}
+		return this.out;
+	}
+	
+	@Override
+	public PrintWriter getWriter() throws IOException
+	{
+		if (this.writer == null)
+		{
+			this.writer = new PrintWriter(new FilterWriter(super.getWriter()) {
+				@Override
+				public void write(int c) throws IOException
+				{
+					count++;
+					super.write(c);
+				}
+				
+				@Override
+				public void write(char[] cbuf, int off, int len) throws IOException
+				{
+					count += len;
+					super.write(cbuf, off, len);
+				}
+				
+				@Override
+				public void write(String str, int off, int len) throws IOException
+				{
+					count += len;
+					super.write(str, off, len);
+				}
+			});
+		}
+		return this.writer;
+	}
+}
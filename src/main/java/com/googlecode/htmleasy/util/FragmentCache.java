@@ -0,0 +1,74 @@
+package com.googlecode.htmleasy.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Holds compiled page shells for FragmentView, by key.  Shells live until they are
+ * invalidated or, once the cache holds its maximum number of shells, until they are
+ * the least recently used; invalidate a key when the data behind its static content
+ * changes.
+ */
+public class FragmentCache
+{
+	/** If left unspecified, the most shells the cache will hold */
+	public static final int DEFAULT_MAX_SHELLS = 1000;
+	
+	/** Access ordered, so the eldest entry is the least recently used; guarded by this */
+	private final LinkedHashMap<String, CompiledShell> shells;
+	
+	/** */
+	public FragmentCache()
+	{
+		this(DEFAULT_MAX_SHELLS);
+	}
+	
+	/**
+	 * @param maxShells is the most shells the cache will hold before evicting the least recently used
+	 */
+	public FragmentCache(final int maxShells)
+	{
+		if (maxShells < 1)
+			throw new IllegalArgumentException("maxShells must be positive");
+		
+		this.shells = new LinkedHashMap<String, CompiledShell>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CompiledShell> eldest)
+			{
+				return this.size() > maxShells;
+			}
+		};
+	}
+	
+	/** @return the shell, or null if there is none */
+	public synchronized CompiledShell get(String key)
+	{
+		return this.shells.get(key);
+	}
+	
+	/** */
+	public synchronized void put(String key, CompiledShell shell)
+	{
+		this.shells.put(key, shell);
+	}
+	
+	/** Forces the shell to be rendered again on the next request */
+	public synchronized void invalidate(String key)
+	{
+		this.shells.remove(key);
+	}
+	
+	/** */
+	public synchronized void clear()
+	{
+		this.shells.clear();
+	}
+	
+	/** */
+	public synchronized int size()
+	{
+		return this.shells.size();
+	}
+}
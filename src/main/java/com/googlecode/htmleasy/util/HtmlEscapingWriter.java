@@ -0,0 +1,385 @@
+package com.googlecode.htmleasy.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A Writer for Viewables which produce HTML themselves rather than forwarding to
+ * a template engine.  It has two kinds of output: write() passes markup through
+ * unchanged, while escape() HTML-escapes text.  Escaping is driven by a lookup
+ * table and copies runs of characters which need no escaping in one go.
+ *
+ * Given an OutputStream, it encodes UTF-8 itself into a reusable buffer, so no
+ * intermediate Strings or CharsetEncoder calls are made per write.  Given a
+ * Writer, it only escapes.  forResponse() picks the stream whenever the response
+ * is (or can be made) UTF-8.
+ *
+ * <code>
+ *   HtmlEscapingWriter out = HtmlEscapingWriter.forResponse(response);
+ *   out.write("<td>");
+ *   out.escape(product.getName());
+ *   out.write("</td>");
+ *   out.flush();
+ * </code>
+ *
+ * Not thread-safe.  Characters that can't be encoded (unpaired surrogates) are
+ * written as '?'.
+ */
+public class HtmlEscapingWriter extends Writer
+{
+	/** If left unspecified, the size of the encoding buffer */
+	public static final int DEFAULT_BUFFER_SIZE = 8192;
+	
+	/** Replacement text for the characters that need escaping, indexed by char; null for the rest */
+	private static final String[] ESCAPES = new String[128];
+	private static final byte[][] ESCAPE_BYTES = new byte[128][];
+	static
+	{
+		ESCAPES['&'] = "&amp;";
+		ESCAPES['<'] = "&lt;";
+		ESCAPES['>'] = "&gt;";
+		ESCAPES['"'] = "&quot;";
+		ESCAPES['\''] = "&#39;";
+		
+		for (int i=0; i<ESCAPES.length; i++)
+		{
+			if (ESCAPES[i] != null)
+			{
+				byte[] bytes = new byte[ESCAPES[i].length()];
+				for (int j=0; j<bytes.length; j++)
+					bytes[j] = (byte) ESCAPES[i].charAt(j);
+				
+				ESCAPE_BYTES[i] = bytes;
+			}
+		}
+	}
+	
+	/** Exactly one of these is non-null */
+	private final OutputStream out;
+	private final Writer writer;
+	
+	/** Only used when encoding */
+	private final byte[] buf;
+	private int pos;
+	
+	/** A high surrogate at the end of the last write, waiting for its other half */
+	private char pendingHigh;
+	
+	/**
+	 * Encodes UTF-8 straight to the stream.
+	 */
+	public HtmlEscapingWriter(OutputStream out)
+	{
+		this(out, DEFAULT_BUFFER_SIZE);
+	}
+	
+	/**
+	 * Encodes UTF-8 straight to the stream.
+	 * 
+	 * @param bufferSize is the size of the encoding buffer, at least 16
+	 */
+	public HtmlEscapingWriter(OutputStream out, int bufferSize)
+	{
+		this.out = out;
+		this.writer = null;
+		this.buf = new byte[Math.max(bufferSize, 16)];
+	}
+	
+	/**
+	 * Escapes to a Writer which does its own encoding.
+	 */
+	public HtmlEscapingWriter(Writer writer)
+	{
+		this.out = null;
+		this.writer = writer;
+		this.buf = null;
+	}
+	
+	/**
+	 * @return a writer on the response's output stream if it is UTF-8, setting the
+	 *  encoding if nothing has been written yet; otherwise on the response's writer.
+	 */
+	public static HtmlEscapingWriter forResponse(HttpServletResponse response) throws IOException
+	{
+		if (!response.isCommitted() && response.getContentType() == null)
+			response.setContentType("text/html;charset=UTF-8");
+		
+		if ("UTF-8".equalsIgnoreCase(response.getCharacterEncoding()))
+			return new HtmlEscapingWriter(response.getOutputStream());
+		else
+			return new HtmlEscapingWriter(response.getWriter());
+	}
+	
+	/* Markup, unescaped */
+	
+	@Override
+	public void write(int c) throws IOException
+	{
+		if (this.writer != null)
+			this.writer.write(c);
+		else
+			this.encode((char) c);
+	}
+	
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException
+	{
+		if (this.writer != null)
+		{
+			this.writer.write(cbuf, off, len);
+			return;
+		}
+		
+		int end = off + len;
+		int i = off;
+		while (i < end)
+		{
+			// Copy ASCII straight into the buffer until something needs more care
+			if (this.pendingHigh == 0)
+			{
+				byte[] b = this.buf;
+				int limit = Math.min(end, i + (b.length - this.pos));
+				while (i < limit && cbuf[i] < 0x80)
+					b[this.pos++] = (byte) cbuf[i++];
+				
+				if (i == end)
+					break;
+			}
+			this.encode(cbuf[i++]);
+		}
+	}
+	
+	@Override
+	public void write(String str, int off, int len) throws IOException
+	{
+		if (this.writer != null)
+		{
+			this.writer.write(str, off, len);
+			return;
+		}
+		
+		int end = off + len;
+		int i = off;
+		while (i < end)
+		{
+			if (this.pendingHigh == 0)
+			{
+				byte[] b = this.buf;
+				int limit = Math.min(end, i + (b.length - this.pos));
+				char c;
+				while (i < limit && (c = str.charAt(i)) < 0x80)
+				{
+					b[this.pos++] = (byte) c;
+					i++;
+				}
+				
+				if (i == end)
+					break;
+			}
+			this.encode(str.charAt(i++));
+		}
+	}
+	
+	/* Text, escaped */
+	
+	/**
+	 * Writes the value's string form HTML-escaped; null writes nothing.
+	 */
+	public void escape(Object value) throws IOException
+	{
+		if (value != null)
+			this.escape(value.toString());
+	}
+	
+	/** Writes the text HTML-escaped */
+	public void escape(String text) throws IOException
+	{
+		int len = text.length();
+		int runStart = 0;
+		for (int i=0; i<len; i++)
+		{
+			char c = text.charAt(i);
+			if (c < 128 && ESCAPES[c] != null)
+			{
+				if (i > runStart)
+					this.write(text, runStart, i - runStart);
+				
+				this.writeEscape(c);
+				runStart = i + 1;
+			}
+		}
+		
+		if (len > runStart)
+			this.write(text, runStart, len - runStart);
+	}
+	
+	/** Writes the characters HTML-escaped */
+	public void escape(char[] cbuf, int off, int len) throws IOException
+	{
+		int end = off + len;
+		int runStart = off;
+		for (int i=off; i<end; i++)
+		{
+			char c = cbuf[i];
+			if (c < 128 && ESCAPES[c] != null)
+			{
+				if (i > runStart)
+					this.write(cbuf, runStart, i - runStart);
+				
+				this.writeEscape(c);
+				runStart = i + 1;
+			}
+		}
+		
+		if (end > runStart)
+			this.write(cbuf, runStart, end - runStart);
+	}
+	
+	/**
+	 * @return a Writer which escapes everything written to it into this one, for
+	 *  code which wants to print text through a plain Writer
+	 */
+	public Writer escaping()
+	{
+		return new Writer() {
+			@Override
+			public void write(char[] cbuf, int off, int len) throws IOException { escape(cbuf, off, len); }
+			
+			@Override
+			public void write(String str, int off, int len) throws IOException { escape(str.substring(off, off + len)); }
+			
+			@Override
+			public void flush() throws IOException { HtmlEscapingWriter.this.flush(); }
+			
+			@Override
+			public void close() throws IOException { HtmlEscapingWriter.this.flush(); }
+		};
+	}
+	
+	/** */
+	private void writeEscape(char c) throws IOException
+	{
+		if (this.writer != null)
+		{
+			this.writer.write(ESCAPES[c]);
+		}
+		else
+		{
+			byte[] bytes = ESCAPE_BYTES[c];
+			if (this.pos + bytes.length + 1 > this.buf.length)
+				this.drain();
+			
+			this.flushPendingHigh();
+			System.arraycopy(bytes, 0, this.buf, this.pos, bytes.length);
+			this.pos += bytes.length;
+		}
+	}
+	
+	/**
+	 * Encodes one char as UTF-8 into the buffer.
+	 */
+	private void encode(char c) throws IOException
+	{
+		if (this.pos + 4 > this.buf.length)
+			this.drain();
+		
+		byte[] b = this.buf;
+		if (c < 0x80)
+		{
+			this.flushPendingHigh();
+			b[this.pos++] = (byte) c;
+		}
+		else if (c < 0x800)
+		{
+			this.flushPendingHigh();
+			b[this.pos++] = (byte) (0xc0 | (c >> 6));
+			b[this.pos++] = (byte) (0x80 | (c & 0x3f));
+		}
+		else if (Character.isHighSurrogate(c))
+		{
+			this.flushPendingHigh();
+			this.pendingHigh = c;
+		}
+		else if (Character.isLowSurrogate(c))
+		{
+			if (this.pendingHigh == 0)
+			{
+				b[this.pos++] = '?';
+			}
+			else
+			{
+				int cp = Character.toCodePoint(this.pendingHigh, c);
+				this.pendingHigh = 0;
+				b[this.pos++] = (byte) (0xf0 | (cp >> 18));
+				b[this.pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+				b[this.pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+				b[this.pos++] = (byte) (0x80 | (cp & 0x3f));
+			}
+		}
+		else
+		{
+			this.flushPendingHigh();
+			b[this.pos++] = (byte) (0xe0 | (c >> 12));
+			b[this.pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+			b[this.pos++] = (byte) (0x80 | (c & 0x3f));
+		}
+	}
+	
+	/** A high surrogate not followed by a low one can't be encoded */
+	private void flushPendingHigh()
+	{
+		if (this.pendingHigh != 0)
+		{
+			this.pendingHigh = 0;
+			this.buf[this.pos++] = '?';
+		}
+	}
+	
+	/** Writes the buffer to the stream */
+	private void drain() throws IOException
+	{
+		if (this.pos > 0)
+		{
+			this.out.write(this.buf, 0, this.pos);
+			this.pos = 0;
+		}
+	}
+	
+	@Override
+	public void flush() throws IOException
+	{
+		if (this.writer != null)
+		{
+			this.writer.flush();
+		}
+		else
+		{
+			this.drain();
+			this.out.flush();
+		}
+	}
+	
+	@Override
+	public void close() throws IOException
+	{
+		if (this.writer != null)
+		{
+			this.writer.close();
+		}
+		else
+		{
+			if (this.pendingHigh != 0)
+			{
+				if (this.pos + 1 > this.buf.length)
+					this.drain();
+				
+				this.flushPendingHigh();
+			}
+			this.drain();
+			this.out.close();
+		}
+	}
+}
@@ -0,0 +1,265 @@
+package com.googlecode.htmleasy.util;
+
+/**
+ * Shrinks the static text of an HTML or JSP template without changing what it
+ * renders.  Runs of whitespace between and around tags collapse to a single space
+ * (or a single newline, if the run contained one), and HTML and JSP comments are
+ * dropped.  Everything the container or browser might treat specially is copied
+ * as is:
+ *
+ *   - tags, including their attributes
+ *   - JSP scriptlets, expressions and directives, and EL expressions
+ *   - the bodies of pre, textarea, script and style elements
+ *   - conditional comments, and HTML comments containing JSP, EL or custom actions
+ *     (e.g. &lt;!-- &lt;c:import url="..."/&gt; --&gt;), which the container still runs
+ *   - CDATA sections
+ *
+ * All the markup it looks for is ASCII, so templates in any ASCII-compatible
+ * encoding (including UTF-8) can be minified as ISO-8859-1 text, byte for byte.
+ */
+public class HtmlMinifier
+{
+	/** Elements whose bodies must be left alone */
+	private static final String[] RAW_ELEMENTS = { "pre", "textarea", "script", "style" };
+
+	/** */
+	private final String in;
+	private final StringBuilder out;
+	private int pos;
+
+	/** */
+	private HtmlMinifier(String in)
+	{
+		this.in = in;
+		this.out = new StringBuilder(in.length());
+	}
+
+	/**
+	 * @return the minified template
+	 */
+	public static String minify(String template)
+	{
+		HtmlMinifier minifier = new HtmlMinifier(template);
+		minifier.run();
+		return minifier.out.toString();
+	}
+
+	/** */
+	private void run()
+	{
+		while (this.pos < this.in.length())
+		{
+			char c = this.in.charAt(this.pos);
+
+			if (isSpace(c))
+				this.whitespace();
+			else if (this.at("<%--"))
+				this.skipThrough("--%>");
+			else if (this.at("<%"))
+				this.copyThrough("%>");
+			else if (this.at("${") || this.at("#{"))
+				this.copyThrough("}");
+			else if (this.at("<!--"))
+				this.comment();
+			else if (this.at("<![CDATA["))
+				this.copyThrough("]]>");
+			else if (c == '<' && this.isTagStart(this.pos + 1))
+				this.tag();
+			else
+				this.out.append(this.in.charAt(this.pos++));
+		}
+	}
+
+	/** Collapses a run of whitespace, merging with whitespace already written (e.g. before a dropped comment) */
+	private void whitespace()
+	{
+		boolean newline = false;
+		while (this.pos < this.in.length() && isSpace(this.in.charAt(this.pos)))
+		{
+			if (this.in.charAt(this.pos) == '\n')
+				newline = true;
+			this.pos++;
+		}
+
+		int last = this.out.length() - 1;
+		if (last >= 0 && isSpace(this.out.charAt(last)))
+		{
+			if (newline)
+				this.out.setCharAt(last, '\n');
+		}
+		else
+		{
+			this.out.append(newline ? '\n' : ' ');
+		}
+	}
+
+	/** Drops an HTML comment unless something may depend on it */
+	private void comment()
+	{
+		int end = this.in.indexOf("-->", this.pos + 4);
+		if (end < 0)
+		{
+			this.copyThrough("-->");
+			return;
+		}
+
+		String body = this.in.substring(this.pos + 4, end);
+		if (body.startsWith("[if") || body.startsWith("<![endif]") || body.contains("<%") || body.contains("${") || body.contains("#{")
+				|| containsPrefixedTag(body))
+			this.copyThrough("-->");
+		else
+			this.pos = end + 3;
+	}
+
+	/** @return true if the text contains a tag with a namespace prefix, like &lt;jsp:include&gt; or &lt;/c:if&gt; */
+	private static boolean containsPrefixedTag(String text)
+	{
+		for (int at = text.indexOf('<'); at >= 0; at = text.indexOf('<', at + 1))
+		{
+			int name = at + 1;
+			if (name < text.length() && text.charAt(name) == '/')
+				name++;
+
+			if (name >= text.length() || !Character.isLetter(text.charAt(name)))
+				continue;
+
+			int end = name;
+			while (end < text.length() && isNameChar(text.charAt(end)))
+			{
+				if (text.charAt(end) == ':')
+					return true;
+				end++;
+			}
+		}
+
+		return false;
+	}
+
+	/** Copies a tag, then the body of a raw element if it is the opening tag of one */
+	private void tag()
+	{
+		int nameStart = this.pos + 1;
+		boolean closing = this.in.charAt(nameStart) == '/';
+		if (closing)
+			nameStart++;
+
+		int nameEnd = nameStart;
+		while (nameEnd < this.in.length() && isNameChar(this.in.charAt(nameEnd)))
+			nameEnd++;
+
+		String name = this.in.substring(nameStart, nameEnd);
+
+		char quote = 0;
+		while (this.pos < this.in.length())
+		{
+			if (this.at("<%"))
+			{
+				this.copyThrough("%>");
+				continue;
+			}
+
+			if (quote == 0 && (this.at("${") || this.at("#{")))
+			{
+				this.copyThrough("}");
+				continue;
+			}
+
+			char c = this.in.charAt(this.pos++);
+			this.out.append(c);
+
+			if (quote != 0)
+			{
+				if (c == quote)
+					quote = 0;
+			}
+			else if ((c == '"' || c == '\'') && this.pos - 1 > nameEnd)
+			{
+				quote = c;
+			}
+			else if (c == '>')
+			{
+				break;
+			}
+		}
+
+		if (!closing && isRawElement(name) && this.in.charAt(this.pos - 2) != '/')
+			this.copyRawBody(name);
+	}
+
+	/** Copies up to, but not including, the closing tag of a raw element */
+	private void copyRawBody(String name)
+	{
+		String close = "</" + name;
+
+		int end = this.pos;
+		while (end < this.in.length())
+		{
+			if (this.in.regionMatches(true, end, close, 0, close.length())
+					&& (end + close.length() == this.in.length() || !isNameChar(this.in.charAt(end + close.length()))))
+				break;
+
+			end++;
+		}
+
+		this.out.append(this.in, this.pos, end);
+		this.pos = end;
+	}
+
+	/** @return true if the input at the current position starts with s */
+	private boolean at(String s)
+	{
+		return this.in.startsWith(s, this.pos);
+	}
+
+	/** Copies everything through the end marker, or the rest of the input if there isn't one */
+	private void copyThrough(String end)
+	{
+		int stop = this.in.indexOf(end, this.pos + 1);
+		stop = (stop < 0) ? this.in.length() : stop + end.length();
+
+		this.out.append(this.in, this.pos, stop);
+		this.pos = stop;
+	}
+
+	/** */
+	private void skipThrough(String end)
+	{
+		int stop = this.in.indexOf(end, this.pos + 1);
+		this.pos = (stop < 0) ? this.in.length() : stop + end.length();
+	}
+
+	/** A '<' not followed by one of these is just text, e.g. "a < b" */
+	private boolean isTagStart(int at)
+	{
+		if (at >= this.in.length())
+			return false;
+
+		char c = this.in.charAt(at);
+		if (c == '/')
+			return at + 1 < this.in.length() && Character.isLetter(this.in.charAt(at + 1));
+		else
+			return Character.isLetter(c) || c == '!' || c == '?';
+	}
+
+	/** */
+	private static boolean isRawElement(String name)
+	{
+		for (String raw : RAW_ELEMENTS)
+			if (raw.equalsIgnoreCase(name))
+				return true;
+
+		return false;
+	}
+
+	/** Tag names may include a namespace prefix, as JSP custom tags do */
+	private static boolean isNameChar(char c)
+	{
+		return Character.isLetterOrDigit(c) || c == ':' || c == '-' || c == '_' || c == '.';
+	}
+
+	/** Only ASCII whitespace; anything else might be part of a multibyte character */
+	private static boolean isSpace(char c)
+	{
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+	}
+}
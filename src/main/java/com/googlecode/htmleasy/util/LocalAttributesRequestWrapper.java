@@ -0,0 +1,80 @@
+package com.googlecode.htmleasy.util;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+/**
+ * A request wrapper which keeps attribute changes to itself.  Reads fall through to
+ * the wrapped request, but setAttribute() and removeAttribute() only affect this
+ * wrapper.  This lets several views render against the same request at the same
+ * time without clobbering each other's "model" attribute.
+ */
+public class LocalAttributesRequestWrapper extends HttpServletRequestWrapper
+{
+	/** Attributes set on this wrapper */
+	private final Map<String, Object> local = new HashMap<String, Object>();
+	
+	/** Attributes of the wrapped request hidden by removeAttribute() */
+	private final Set<String> removed = new HashSet<String>();
+	
+	/** */
+	public LocalAttributesRequestWrapper(HttpServletRequest request)
+	{
+		super(request);
+	}
+	
+	@Override
+	public synchronized Object getAttribute(String name)
+	{
+		if (this.local.containsKey(name))
+			return this.local.get(name);
+		else if (this.removed.contains(name))
+			return null;
+		else
+			return super.getAttribute(name);
+	}
+	
+	@Override
+	public synchronized void setAttribute(String name, Object value)
+	{
+		if (value == null)
+		{
+			this.removeAttribute(name);
+		}
+		else
+		{
+			this.local.put(name, value);
+			this.removed.remove(name);
+		}
+	}
+	
+	@Override
+	public synchronized void removeAttribute(String name)
+	{
+		this.local.remove(name);
+		this.removed.add(name);
+	}
+	
+	@Override
+	@SuppressWarnings("rawtypes")
+	public synchronized Enumeration getAttributeNames()
+	{
+		Set<String> names = new HashSet<String>();
+		
+		Enumeration<?> inherited = super.getAttributeNames();
+		while (inherited.hasMoreElements())
+			names.add((String) inherited.nextElement());
+		
+		names.removeAll(this.removed);
+		names.addAll(this.local.keySet());
+		
+		return Collections.enumeration(names);
+	}
+}
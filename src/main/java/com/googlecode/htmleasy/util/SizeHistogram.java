@@ -0,0 +1,81 @@
+package com.googlecode.htmleasy.util;
+
+/**
+ * A decaying histogram of sizes in power-of-two buckets.  Old samples lose half
+ * their weight every half-life, so percentiles follow changes in what is being
+ * measured.  Cheap enough to update on every request.
+ */
+public class SizeHistogram
+{
+	/** Bucket i holds sizes below 2^i (and at least 2^(i-1)) */
+	private static final int BUCKETS = 32;
+	
+	/** */
+	private final double[] weights = new double[BUCKETS];
+	private final long halfLifeMillis;
+	private double total;
+	private long samples;
+	private long lastDecay = System.currentTimeMillis();
+	
+	/**
+	 * @param halfLifeMillis is how long it takes a sample to lose half its weight
+	 */
+	public SizeHistogram(long halfLifeMillis)
+	{
+		this.halfLifeMillis = halfLifeMillis;
+	}
+	
+	/** */
+	public synchronized void record(long size)
+	{
+		this.decay();
+		
+		int bucket = (size <= 0) ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(size));
+		this.weights[bucket] += 1;
+		this.total += 1;
+		this.samples++;
+	}
+	
+	/** @return how many sizes have ever been recorded, ignoring decay */
+	public synchronized long getSamples() { return this.samples; }
+	
+	/**
+	 * @param fraction is between 0 and 1, e.g. 0.9 for the 90th percentile
+	 * @return a size at least as large as that fraction of the recent samples, or 0 if there are none
+	 */
+	public synchronized long percentile(double fraction)
+	{
+		this.decay();
+		
+		if (this.total <= 0)
+			return 0;
+		
+		double wanted = this.total * fraction;
+		double seen = 0;
+		for (int i=0; i<BUCKETS; i++)
+		{
+			seen += this.weights[i];
+			if (seen >= wanted && this.weights[i] > 0)
+				return 1L << i;
+		}
+		return 1L << (BUCKETS - 1);
+	}
+	
+	/** Applies whatever decay is due */
+	private void decay()
+	{
+		long now = System.currentTimeMillis();
+		long elapsed = now - this.lastDecay;
+		if (elapsed < this.halfLifeMillis)
+			return;
+		
+		double factor = Math.pow(0.5, (double) elapsed / this.halfLifeMillis);
+		this.total = 0;
+		for (int i=0; i<BUCKETS; i++)
+		{
+			this.weights[i] *= factor;
+			this.total += this.weights[i];
+		}
+		this.lastDecay = now;
+	}
+}
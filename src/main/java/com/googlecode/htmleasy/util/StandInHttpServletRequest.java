@@ -0,0 +1,393 @@
+package com.googlecode.htmleasy.util;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.security.Principal;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+/**
+ * An in-memory request, for rendering views when there is no real request to hand:
+ * at build or startup time, or on a background thread after the original request
+ * has completed.
+ *
+ * getRequestDispatcher() hands out the ServletContext's dispatchers, but the servlet
+ * spec only lets them forward and include requests the container made (or wrappers
+ * of them).  Some containers tolerate a stand-in, others (Jetty, for one) reject it,
+ * so portable code only renders views which don't dispatch (ConcurrentViewable)
+ * against a stand-in.
+ *
+ * There is no user and no body.  getSession() creates a throwaway session which
+ * lives as long as the request, so templates rendered this way see no session state
+ * and anything they store in it is lost.
+ */
+public class StandInHttpServletRequest implements HttpServletRequest
+{
+	/**
+	 * An in-memory session which is never stored anywhere.
+	 */
+	private static class StandInSession implements HttpSession
+	{
+		private final ServletContext context;
+		private final long created = System.currentTimeMillis();
+		private final Map<String, Object> attributes = new ConcurrentHashMap<String, Object>();
+		private int maxInactiveInterval = -1;
+		private volatile boolean valid = true;
+
+		StandInSession(ServletContext context)
+		{
+			this.context = context;
+		}
+
+		private void checkValid()
+		{
+			if (!this.valid)
+				throw new IllegalStateException("Session has been invalidated");
+		}
+
+		public long getCreationTime() { this.checkValid(); return this.created; }
+		public String getId() { return "stand-in-" + Integer.toHexString(System.identityHashCode(this)); }
+		public long getLastAccessedTime() { return this.created; }
+		public ServletContext getServletContext() { return this.context; }
+		public void setMaxInactiveInterval(int interval) { this.maxInactiveInterval = interval; }
+		public int getMaxInactiveInterval() { return this.maxInactiveInterval; }
+		@Deprecated @SuppressWarnings("deprecation") public javax.servlet.http.HttpSessionContext getSessionContext() { return null; }
+		public boolean isNew() { this.checkValid(); return true; }
+
+		public Object getAttribute(String name) { this.checkValid(); return this.attributes.get(name); }
+		@Deprecated public Object getValue(String name) { return this.getAttribute(name); }
+
+		public Enumeration<String> getAttributeNames()
+		{
+			this.checkValid();
+			return Collections.enumeration(new ArrayList<String>(this.attributes.keySet()));
+		}
+
+		@Deprecated
+		public String[] getValueNames()
+		{
+			this.checkValid();
+			return this.attributes.keySet().toArray(new String[0]);
+		}
+
+		public void setAttribute(String name, Object value)
+		{
+			this.checkValid();
+			if (value == null)
+				this.attributes.remove(name);
+			else
+				this.attributes.put(name, value);
+		}
+
+		@Deprecated public void putValue(String name, Object value) { this.setAttribute(name, value); }
+		public void removeAttribute(String name) { this.checkValid(); this.attributes.remove(name); }
+		@Deprecated public void removeValue(String name) { this.removeAttribute(name); }
+
+		public void invalidate()
+		{
+			this.checkValid();
+			this.valid = false;
+			this.attributes.clear();
+		}
+	}
+
+	/** */
+	private final ServletContext context;
+	private final String method;
+	private final String contextPath;
+	private final String servletPath;
+	private final String pathInfo;
+
+	private String queryString;
+	private String scheme = "http";
+	private String serverName = "localhost";
+	private int serverPort = 80;
+	private String characterEncoding;
+	private Locale locale = Locale.getDefault();
+	private Cookie[] cookies;
+	private StandInSession session;
+
+	/** Case-insensitive, since that's how HTTP treats header names */
+	private final Map<String, List<String>> headers = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+	private final Map<String, String[]> parameters = new LinkedHashMap<String, String[]>();
+	private final Map<String, Object> attributes = new HashMap<String, Object>();
+
+	/**
+	 * @param context supplies request dispatchers and the context path
+	 * @param method is the HTTP method, e.g. "GET"
+	 * @param servletPath is the path of the servlet or filter mapping within the context; may be ""
+	 * @param pathInfo is the rest of the path; may be null
+	 */
+	public StandInHttpServletRequest(ServletContext context, String method, String servletPath, String pathInfo)
+	{
+		this.context = context;
+		this.method = method;
+		this.contextPath = (context == null) ? "" : context.getContextPath();
+		this.servletPath = servletPath;
+		this.pathInfo = pathInfo;
+	}
+
+	/**
+	 * Copies everything a view might read from a real request, so that the copy can
+	 * be rendered against after the real request has completed.  Attribute values are
+	 * shared, not copied.
+	 * 
+	 * @param context supplies request dispatchers; may be null if none will be needed
+	 */
+	@SuppressWarnings("unchecked")
+	public static StandInHttpServletRequest snapshot(HttpServletRequest request, ServletContext context)
+	{
+		StandInHttpServletRequest copy = new StandInHttpServletRequest(context, request.getMethod(), request.getServletPath(), request.getPathInfo());
+		copy.queryString = request.getQueryString();
+		copy.scheme = request.getScheme();
+		copy.serverName = request.getServerName();
+		copy.serverPort = request.getServerPort();
+		copy.characterEncoding = request.getCharacterEncoding();
+		copy.locale = request.getLocale();
+		copy.cookies = request.getCookies();
+		
+		for (Enumeration<String> names = request.getHeaderNames(); names.hasMoreElements();)
+		{
+			String name = names.nextElement();
+			for (Enumeration<String> values = request.getHeaders(name); values.hasMoreElements();)
+				copy.addHeader(name, values.nextElement());
+		}
+		
+		copy.parameters.putAll((Map<String, String[]>) request.getParameterMap());
+		
+		for (Enumeration<String> names = request.getAttributeNames(); names.hasMoreElements();)
+		{
+			String name = names.nextElement();
+			copy.attributes.put(name, request.getAttribute(name));
+		}
+		
+		return copy;
+	}
+
+	/** */
+	public void setQueryString(String queryString) { this.queryString = queryString; }
+	public void setScheme(String scheme) { this.scheme = scheme; }
+	public void setServerName(String serverName) { this.serverName = serverName; }
+	public void setServerPort(int serverPort) { this.serverPort = serverPort; }
+	public void setLocale(Locale locale) { this.locale = locale; }
+	public void setCookies(Cookie[] cookies) { this.cookies = cookies; }
+
+	/** */
+	public synchronized void addHeader(String name, String value)
+	{
+		List<String> values = this.headers.get(name);
+		if (values == null)
+		{
+			values = new ArrayList<String>(1);
+			this.headers.put(name, values);
+		}
+		values.add(value);
+	}
+
+	/** */
+	public synchronized void setParameter(String name, String... values)
+	{
+		this.parameters.put(name, values);
+	}
+
+	/* HttpServletRequest */
+
+	public String getAuthType() { return null; }
+	public Cookie[] getCookies() { return this.cookies; }
+
+	public synchronized long getDateHeader(String name)
+	{
+		String value = this.getHeader(name);
+		if (value == null)
+			return -1;
+
+		try
+		{
+			return new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US).parse(value).getTime();
+		}
+		catch (ParseException ex)
+		{
+			throw new IllegalArgumentException("Not a date header: " + name + ": " + value);
+		}
+	}
+
+	public synchronized String getHeader(String name)
+	{
+		List<String> values = this.headers.get(name);
+		return (values == null || values.isEmpty()) ? null : values.get(0);
+	}
+
+	public synchronized Enumeration<String> getHeaders(String name)
+	{
+		List<String> values = this.headers.get(name);
+		return Collections.enumeration(values == null ? Collections.<String>emptyList() : new ArrayList<String>(values));
+	}
+
+	public synchronized Enumeration<String> getHeaderNames()
+	{
+		return Collections.enumeration(new ArrayList<String>(this.headers.keySet()));
+	}
+
+	public int getIntHeader(String name)
+	{
+		String value = this.getHeader(name);
+		return (value == null) ? -1 : Integer.parseInt(value);
+	}
+
+	public String getMethod() { return this.method; }
+	public String getPathInfo() { return this.pathInfo; }
+	public String getPathTranslated() { return (this.pathInfo == null) ? null : this.getRealPath(this.pathInfo); }
+	public String getContextPath() { return this.contextPath; }
+	public String getQueryString() { return this.queryString; }
+	public String getRemoteUser() { return null; }
+	public boolean isUserInRole(String role) { return false; }
+	public Principal getUserPrincipal() { return null; }
+	public String getRequestedSessionId() { return null; }
+
+	public String getRequestURI()
+	{
+		return this.contextPath + this.servletPath + (this.pathInfo == null ? "" : this.pathInfo);
+	}
+
+	public StringBuffer getRequestURL()
+	{
+		StringBuffer url = new StringBuffer();
+		url.append(this.scheme).append("://").append(this.serverName);
+		if (!(("http".equals(this.scheme) && this.serverPort == 80) || ("https".equals(this.scheme) && this.serverPort == 443)))
+			url.append(':').append(this.serverPort);
+
+		url.append(this.getRequestURI());
+		return url;
+	}
+
+	public String getServletPath() { return this.servletPath; }
+	public HttpSession getSession() { return this.getSession(true); }
+
+	public synchronized HttpSession getSession(boolean create)
+	{
+		if (this.session != null && !this.session.valid)
+			this.session = null;
+
+		if (this.session == null && create)
+			this.session = new StandInSession(this.context);
+
+		return this.session;
+	}
+	public boolean isRequestedSessionIdValid() { return false; }
+	public boolean isRequestedSessionIdFromCookie() { return false; }
+	public boolean isRequestedSessionIdFromURL() { return false; }
+	@Deprecated public boolean isRequestedSessionIdFromUrl() { return false; }
+
+	/* ServletRequest */
+
+	public synchronized Object getAttribute(String name) { return this.attributes.get(name); }
+
+	public synchronized Enumeration<String> getAttributeNames()
+	{
+		return Collections.enumeration(new ArrayList<String>(this.attributes.keySet()));
+	}
+
+	public synchronized void setAttribute(String name, Object o)
+	{
+		if (o == null)
+			this.attributes.remove(name);
+		else
+			this.attributes.put(name, o);
+	}
+
+	public synchronized void removeAttribute(String name) { this.attributes.remove(name); }
+
+	public String getCharacterEncoding() { return this.characterEncoding; }
+	public void setCharacterEncoding(String env) throws UnsupportedEncodingException { this.characterEncoding = env; }
+	public int getContentLength() { return -1; }
+	public String getContentType() { return null; }
+
+	public ServletInputStream getInputStream() throws IOException
+	{
+		final ByteArrayInputStream empty = new ByteArrayInputStream(new byte[0]);
+		return new ServletInputStream() {
+			@Override
+			public int read() throws IOException { return empty.read(); }
+		};
+	}
+
+	public BufferedReader getReader() throws IOException
+	{
+		return new BufferedReader(new InputStreamReader(this.getInputStream()));
+	}
+
+	public synchronized String getParameter(String name)
+	{
+		String[] values = this.parameters.get(name);
+		return (values == null || values.length == 0) ? null : values[0];
+	}
+
+	public synchronized Enumeration<String> getParameterNames()
+	{
+		return Collections.enumeration(new ArrayList<String>(this.parameters.keySet()));
+	}
+
+	public synchronized String[] getParameterValues(String name) { return this.parameters.get(name); }
+
+	public synchronized Map<String, String[]> getParameterMap()
+	{
+		return Collections.unmodifiableMap(new LinkedHashMap<String, String[]>(this.parameters));
+	}
+
+	public String getProtocol() { return "HTTP/1.1"; }
+	public String getScheme() { return this.scheme; }
+	public String getServerName() { return this.serverName; }
+	public int getServerPort() { return this.serverPort; }
+	public String getRemoteAddr() { return "127.0.0.1"; }
+	public String getRemoteHost() { return "localhost"; }
+	public int getRemotePort() { return 0; }
+	public String getLocalName() { return this.serverName; }
+	public String getLocalAddr() { return "127.0.0.1"; }
+	public int getLocalPort() { return this.serverPort; }
+	public Locale getLocale() { return this.locale; }
+	public Enumeration<Locale> getLocales() { return Collections.enumeration(Collections.singletonList(this.locale)); }
+	public boolean isSecure() { return "https".equals(this.scheme); }
+
+	/**
+	 * Relative paths are resolved against the directory of the request path, as a container would.
+	 */
+	public RequestDispatcher getRequestDispatcher(String path)
+	{
+		if (this.context == null || path == null)
+			return null;
+
+		if (!path.startsWith("/"))
+		{
+			String current = this.servletPath + (this.pathInfo == null ? "" : this.pathInfo);
+			path = current.substring(0, current.lastIndexOf('/') + 1) + path;
+		}
+
+		return this.context.getRequestDispatcher(path);
+	}
+
+	@Deprecated
+	public String getRealPath(String path)
+	{
+		return (this.context == null) ? null : this.context.getRealPath(path);
+	}
+}
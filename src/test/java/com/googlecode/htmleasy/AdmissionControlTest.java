@@ -0,0 +1,174 @@
+package com.googlecode.htmleasy;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.ws.rs.core.Response;
+
+import junit.framework.TestCase;
+
+import org.jboss.resteasy.core.ServerResponse;
+
+import com.googlecode.htmleasy.AdmissionControl.Priority;
+import com.googlecode.htmleasy.util.StandInHttpServletRequest;
+
+/**
+ * Limits, priorities, queueing and the adaptive limit, without a container.
+ */
+public class AdmissionControlTest extends TestCase
+{
+	/** */
+	public void testFixedLimitRejectsWithoutQueue() throws Exception
+	{
+		AdmissionControl control = new AdmissionControl(2, 0, 0);
+
+		assertTrue(control.acquire(Priority.HIGH));
+		assertTrue(control.acquire(Priority.HIGH));
+		assertFalse(control.acquire(Priority.HIGH));
+		assertEquals(2, control.getInFlight());
+		assertEquals(1, control.getRejectedCount());
+
+		control.release(0);
+		assertTrue(control.acquire(Priority.HIGH));
+	}
+
+	/** */
+	public void testLowPriorityGetsHalfTheLimit() throws Exception
+	{
+		AdmissionControl control = new AdmissionControl(10, 0, 0);
+
+		for (int i = 0; i < 5; i++)
+			assertTrue(control.acquire(Priority.LOW));
+		assertFalse(control.acquire(Priority.LOW));
+
+		for (int i = 0; i < 4; i++)
+			assertTrue(control.acquire(Priority.NORMAL));
+		assertFalse(control.acquire(Priority.NORMAL));
+
+		assertTrue(control.acquire(Priority.HIGH));
+		assertFalse(control.acquire(Priority.HIGH));
+	}
+
+	/** */
+	public void testPriorityFromPath()
+	{
+		AdmissionControl control = new AdmissionControl(1, 0, 0);
+		control.setHighPriorityPaths(Arrays.asList("/checkout"));
+		control.setLowPriorityPaths(Arrays.asList("/reports"));
+
+		assertEquals(Priority.HIGH, control.priorityOf(new StandInHttpServletRequest(null, "GET", "", "/checkout/pay")));
+		assertEquals(Priority.LOW, control.priorityOf(new StandInHttpServletRequest(null, "GET", "", "/reports")));
+		assertEquals(Priority.NORMAL, control.priorityOf(new StandInHttpServletRequest(null, "GET", "", "/home")));
+	}
+
+	/** */
+	public void testQueuedRequestIsAdmittedOnRelease() throws Exception
+	{
+		final AdmissionControl control = new AdmissionControl(1, 1, 5000);
+		assertTrue(control.acquire(Priority.HIGH));
+
+		final CountDownLatch done = new CountDownLatch(1);
+		final AtomicBoolean admitted = new AtomicBoolean();
+		Thread waiter = new Thread() {
+			@Override
+			public void run()
+			{
+				try
+				{
+					admitted.set(control.acquire(Priority.HIGH));
+				}
+				catch (InterruptedException ex)
+				{
+					// Left false
+				}
+				done.countDown();
+			}
+		};
+		waiter.start();
+
+		while (control.getQueued() == 0)
+			Thread.sleep(1);
+
+		// The queue is full, so a third request is turned away at once
+		assertFalse(control.acquire(Priority.HIGH));
+
+		control.release(0);
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertTrue(admitted.get());
+	}
+
+	/** */
+	public void testQueuedRequestTimesOut() throws Exception
+	{
+		AdmissionControl control = new AdmissionControl(1, 1, 20);
+		assertTrue(control.acquire(Priority.HIGH));
+
+		long start = System.nanoTime();
+		assertFalse(control.acquire(Priority.HIGH));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(15));
+		assertEquals(0, control.getQueued());
+	}
+
+	/** */
+	public void testAdaptiveLimitGrowsAndShrinks() throws Exception
+	{
+		AdmissionControl control = new AdmissionControl(4, true, 100, 8, 0, 0);
+		long fast = TimeUnit.MILLISECONDS.toNanos(1);
+		long slow = TimeUnit.MILLISECONDS.toNanos(500);
+
+		for (int i = 0; i < 4; i++)
+		{
+			assertTrue(control.acquire(Priority.HIGH));
+			control.release(fast);
+		}
+		assertEquals(5, control.getLimit());
+
+		assertTrue(control.acquire(Priority.HIGH));
+		control.release(slow);
+		assertEquals(4, control.getLimit());
+
+		// Only one decrease per target latency interval
+		assertTrue(control.acquire(Priority.HIGH));
+		control.release(slow);
+		assertEquals(4, control.getLimit());
+	}
+
+	/** */
+	public void testRejectionIsUtf8ServiceUnavailable() throws Exception
+	{
+		AdmissionControl control = new AdmissionControl(1, 0, 0);
+		Response rejection = control.rejection(new StandInHttpServletRequest(null, "POST", "", "/x"));
+
+		assertEquals(503, rejection.getStatus());
+		assertEquals("1", rejection.getMetadata().getFirst("Retry-After"));
+		assertEquals("text/html;charset=UTF-8", rejection.getMetadata().getFirst("Content-Type").toString().replace(" ", ""));
+		assertTrue(new String((byte[]) rejection.getEntity(), "UTF-8").contains("Service busy"));
+	}
+
+	/** */
+	public void testEnterAndFinishPairUp() throws Exception
+	{
+		AdmissionControl control = new AdmissionControl(1, 0, 0);
+		StandInHttpServletRequest first = new StandInHttpServletRequest(null, "GET", "", "/a");
+		first.setAttribute(AdmissionControl.ATTRIBUTE, control);
+		StandInHttpServletRequest second = new StandInHttpServletRequest(null, "GET", "", "/b");
+		second.setAttribute(AdmissionControl.ATTRIBUTE, control);
+
+		assertNull(control.enter(first));
+		assertEquals(1, control.getInFlight());
+
+		ServerResponse rejected = control.enter(second);
+		assertNotNull(rejected);
+		assertEquals(503, rejected.getStatus());
+
+		// Requests that never took a slot give nothing back
+		AdmissionControl.finish(second);
+		assertEquals(1, control.getInFlight());
+
+		AdmissionControl.finish(first);
+		AdmissionControl.finish(first);
+		assertEquals(0, control.getInFlight());
+	}
+}
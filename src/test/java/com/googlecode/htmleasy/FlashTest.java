@@ -0,0 +1,137 @@
+package com.googlecode.htmleasy;
+
+import java.io.Serializable;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.servlet.http.Cookie;
+
+import junit.framework.TestCase;
+
+import com.googlecode.htmleasy.util.BufferedHttpServletResponse;
+import com.googlecode.htmleasy.util.StandInHttpServletRequest;
+
+/**
+ * Encoding flashes into cookies and back, signed and local.
+ */
+public class FlashTest extends TestCase
+{
+	/** */
+	private static Map<String, Serializable> values()
+	{
+		Map<String, Serializable> values = new LinkedHashMap<String, Serializable>();
+		values.put("message", "Saved \u00e9");
+		values.put("count", 3);
+		values.put("id", 1234567890123L);
+		values.put("ok", true);
+		values.put("ratio", 0.5);
+		values.put("when", new Date(1000));
+		return values;
+	}
+
+	/** @return the cookie value in a Set-Cookie header */
+	private static String valueOf(String setCookie)
+	{
+		int start = setCookie.indexOf('=') + 1;
+		return setCookie.substring(start, setCookie.indexOf(';', start));
+	}
+
+	/** @return the request attributes restored from the cookie */
+	private static Map<String, Object> restore(Flash flash, String value)
+	{
+		StandInHttpServletRequest request = new StandInHttpServletRequest(null, "GET", "", "/next");
+		request.setCookies(new Cookie[] { new Cookie("flash", value) });
+		BufferedHttpServletResponse response = new BufferedHttpServletResponse();
+		flash.restore(request, response);
+
+		assertEquals(0, response.getCookies().get(0).getMaxAge());
+		return Flash.get(request);
+	}
+
+	/** */
+	public void testBase64HasNoPadding() throws Exception
+	{
+		for (int length = 0; length < 10; length++)
+		{
+			byte[] bytes = new byte[length];
+			for (int i = 0; i < length; i++)
+				bytes[i] = (byte) (i * 37 - 100);
+
+			String encoded = Flash.base64(bytes);
+			assertEquals(-1, encoded.indexOf('='));
+			assertTrue(java.util.Arrays.equals(bytes, Flash.unbase64(encoded)));
+		}
+	}
+
+	/** */
+	public void testSignedRoundTrip()
+	{
+		Flash flash = new Flash("secret", 60, "flash", 100);
+		String value = valueOf(flash.toSetCookie(values(), new StandInHttpServletRequest(null, "POST", "", "/save")));
+
+		assertTrue(value.indexOf('.') > 0);
+		assertEquals(-1, value.indexOf('='));
+		assertEquals(values(), restore(flash, value));
+	}
+
+	/** */
+	public void testSignedCookieIsReadOnceByThisServer()
+	{
+		Flash flash = new Flash("secret", 60, "flash", 100);
+		String value = valueOf(flash.toSetCookie(values(), new StandInHttpServletRequest(null, "POST", "", "/save")));
+
+		assertFalse(restore(flash, value).isEmpty());
+		assertTrue(restore(flash, value).isEmpty());
+	}
+
+	/** */
+	public void testTamperedOrForeignCookieIsIgnored()
+	{
+		Flash flash = new Flash("secret", 60, "flash", 100);
+		String value = valueOf(flash.toSetCookie(values(), new StandInHttpServletRequest(null, "POST", "", "/save")));
+
+		// The last character may carry only unused bits, so change the first
+		char first = value.charAt(0);
+		String tampered = (first == 'A' ? 'B' : 'A') + value.substring(1);
+		assertTrue(restore(flash, tampered).isEmpty());
+
+		Flash other = new Flash("other", 60, "flash", 100);
+		assertTrue(restore(other, value).isEmpty());
+	}
+
+	/** */
+	public void testLocalTokenIsReadOnce()
+	{
+		Flash flash = new Flash(null, 60, "flash", 100);
+		String value = valueOf(flash.toSetCookie(values(), new StandInHttpServletRequest(null, "POST", "", "/save")));
+
+		assertEquals(-1, value.indexOf('='));
+		assertEquals(-1, value.indexOf('.'));
+		assertEquals(values(), restore(flash, value));
+		assertTrue(restore(flash, value).isEmpty());
+	}
+
+	/** */
+	public void testExpiredFlashIsIgnored()
+	{
+		Flash flash = new Flash("secret", -1, "flash", 100);
+		String value = valueOf(flash.toSetCookie(values(), new StandInHttpServletRequest(null, "POST", "", "/save")));
+
+		assertTrue(restore(flash, value).isEmpty());
+	}
+
+	/** */
+	public void testFlashLeavesSharedExceptionAlone()
+	{
+		RedirectException shared = new RedirectException("/home");
+		RedirectException flashed = shared.flash("message", "Saved");
+
+		assertNotSame(shared, flashed);
+		assertTrue(shared.getFlash().isEmpty());
+		assertEquals("Saved", flashed.getFlash().get("message"));
+		assertEquals(shared.getPath(), flashed.getPath());
+		assertEquals(2, flashed.flash("more", 1).getFlash().size());
+		assertEquals(1, flashed.getFlash().size());
+	}
+}
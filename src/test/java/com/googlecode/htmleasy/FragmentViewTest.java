@@ -0,0 +1,126 @@
+package com.googlecode.htmleasy;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import com.googlecode.htmleasy.util.BufferedHttpServletResponse;
+import com.googlecode.htmleasy.util.CapturingResponseWrapper;
+import com.googlecode.htmleasy.util.FragmentCache;
+import com.googlecode.htmleasy.util.StandInHttpServletRequest;
+
+/**
+ * Caching shells, filling holes, and refusing to cache shells particular to one request.
+ */
+public class FragmentViewTest extends TestCase
+{
+	/** Writes a page with a cart hole, and whatever else a test asks for */
+	private static class Shell implements Viewable
+	{
+		int renders;
+		boolean redirect;
+		boolean cookie;
+		HttpServletResponse seen;
+
+		public void render(HttpServletRequest request, HttpServletResponse response) throws IOException
+		{
+			this.renders++;
+			this.seen = response;
+
+			if (this.redirect)
+			{
+				response.sendRedirect("/login");
+				return;
+			}
+
+			if (this.cookie)
+				response.addCookie(new Cookie("visited", "yes"));
+
+			response.setContentType("text/html");
+			response.getWriter().print("<p>" + FragmentView.placeholder("cart") + "</p>");
+		}
+	}
+
+	/** */
+	private static final Viewable CART = new Viewable() {
+		public void render(HttpServletRequest request, HttpServletResponse response) throws IOException
+		{
+			response.getWriter().print("3 items");
+		}
+	};
+
+	/** */
+	private static final Map<String, Viewable> HOLES = Collections.singletonMap("cart", CART);
+
+	/** */
+	private static BufferedHttpServletResponse render(FragmentView view) throws Exception
+	{
+		BufferedHttpServletResponse response = new BufferedHttpServletResponse();
+		view.render(new StandInHttpServletRequest(null, "GET", "", "/catalog"), response);
+		return response;
+	}
+
+	/** */
+	public void testShellIsRenderedOnceAndHolesEveryTime() throws Exception
+	{
+		FragmentCache cache = new FragmentCache();
+		Shell shell = new Shell();
+		FragmentView view = new FragmentView(cache, "catalog", shell, HOLES);
+
+		BufferedHttpServletResponse first = render(view);
+		BufferedHttpServletResponse second = render(view);
+
+		assertEquals(1, shell.renders);
+		assertTrue(shell.seen instanceof CapturingResponseWrapper);
+		assertEquals("<p>3 items</p>", first.getContentAsString());
+		assertEquals("<p>3 items</p>", second.getContentAsString());
+		assertEquals("text/html", second.getContentType());
+		assertEquals(1, cache.size());
+	}
+
+	/** */
+	public void testRedirectingShellIsSentAsIsAndNotCached() throws Exception
+	{
+		FragmentCache cache = new FragmentCache();
+		Shell shell = new Shell();
+		shell.redirect = true;
+
+		BufferedHttpServletResponse response = render(new FragmentView(cache, "catalog", shell, HOLES));
+
+		assertEquals("/login", response.getRedirect());
+		assertEquals(0, response.size());
+		assertEquals(0, cache.size());
+	}
+
+	/** */
+	public void testShellSettingCookiesIsUsedOnceAndNotCached() throws Exception
+	{
+		FragmentCache cache = new FragmentCache();
+		Shell shell = new Shell();
+		shell.cookie = true;
+		FragmentView view = new FragmentView(cache, "catalog", shell, HOLES);
+
+		BufferedHttpServletResponse response = render(view);
+		render(view);
+
+		assertEquals(2, shell.renders);
+		assertEquals(0, cache.size());
+		assertEquals("<p>3 items</p>", response.getContentAsString());
+		assertEquals("visited", response.getCookies().get(0).getName());
+	}
+
+	/** */
+	public void testMissingHoleRendersAsNothing() throws Exception
+	{
+		Map<String, Viewable> none = Collections.emptyMap();
+		BufferedHttpServletResponse response = render(new FragmentView(new FragmentCache(), "catalog", new Shell(), none));
+
+		assertEquals("<p></p>", response.getContentAsString());
+	}
+}
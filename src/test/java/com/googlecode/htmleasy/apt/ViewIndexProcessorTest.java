@@ -0,0 +1,189 @@
+package com.googlecode.htmleasy.apt;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Scanner;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+import junit.framework.TestCase;
+
+import com.googlecode.htmleasy.provider.ViewResolver;
+
+/**
+ * Compiles small sources with the processor through javax.tools and checks what
+ * it generates and what it rejects.
+ */
+public class ViewIndexProcessorTest extends TestCase
+{
+	/** A source file held in memory */
+	private static class Source extends SimpleJavaFileObject
+	{
+		private final String code;
+
+		Source(String className, String code)
+		{
+			super(URI.create("string:///" + className.replace('.', '/') + Kind.SOURCE.extension), Kind.SOURCE);
+			this.code = code;
+		}
+
+		@Override
+		public CharSequence getCharContent(boolean ignoreEncodingErrors) { return this.code; }
+	}
+
+	/** */
+	private File out;
+	private DiagnosticCollector<JavaFileObject> diagnostics;
+
+	/** */
+	@Override
+	protected void setUp() throws IOException
+	{
+		this.out = File.createTempFile("viewindex", "");
+		this.out.delete();
+		this.out.mkdirs();
+		this.diagnostics = new DiagnosticCollector<JavaFileObject>();
+	}
+
+	/** */
+	@Override
+	protected void tearDown()
+	{
+		delete(this.out);
+	}
+
+	/** */
+	private static void delete(File file)
+	{
+		File[] children = file.listFiles();
+		if (children != null)
+			for (File child : children)
+				delete(child);
+
+		file.delete();
+	}
+
+	/** @return whether the compile succeeded; null if there is no compiler to run */
+	private Boolean compile(Source... sources)
+	{
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		if (compiler == null)
+			return null;
+
+		List<String> options = new ArrayList<String>(Arrays.asList(
+				"-classpath", System.getProperty("java.class.path"),
+				"-d", this.out.getPath(), "-s", this.out.getPath(),
+				"-processor", ViewIndexProcessor.class.getName()));
+
+		return compiler.getTask(null, null, this.diagnostics, options, null, Arrays.asList(sources)).call();
+	}
+
+	/** */
+	private static String read(File file) throws IOException
+	{
+		Scanner scanner = new Scanner(file, "UTF-8");
+		try
+		{
+			return scanner.useDelimiter("\\A").next();
+		}
+		finally
+		{
+			scanner.close();
+		}
+	}
+
+	/** */
+	public void testGeneratesIndexOfClassBindings() throws Exception
+	{
+		Boolean ok = this.compile(new Source("ex.Models",
+				"package ex;\n"
+				+ "import com.googlecode.htmleasy.ViewWith;\n"
+				+ "public class Models {\n"
+				+ "  @ViewWith(\"/a.jsp\") public static class A {}\n"
+				+ "  @ViewWith(value=\"/b \\\"q\\\".jsp\", modelName=\"b\", propertyMap=true) static class B {}\n"
+				+ "  public static class Unbound {}\n"
+				+ "}\n"));
+		if (ok == null)
+			return;
+
+		assertTrue(this.diagnostics.getDiagnostics().toString(), ok);
+
+		String index = read(new File(this.out, "ex/HtmleasyViewIndex.java"));
+		assertTrue(index, index.contains("registry.type(\"ex.Models$A\", \"/a.jsp\", \"model\", false);"));
+		assertTrue(index, index.contains("registry.type(\"ex.Models$B\", \"/b \\\"q\\\".jsp\", \"b\", true);"));
+		assertFalse(index, index.contains("Unbound"));
+
+		String services = read(new File(this.out, "META-INF/services/com.googlecode.htmleasy.provider.ViewIndex"));
+		assertEquals("ex.HtmleasyViewIndex", services.trim());
+
+		// The resolver picks the index up through the context class loader
+		ClassLoader previous = Thread.currentThread().getContextClassLoader();
+		URLClassLoader loader = new URLClassLoader(new URL[] { this.out.toURI().toURL() }, this.getClass().getClassLoader());
+		Thread.currentThread().setContextClassLoader(loader);
+		try
+		{
+			ViewResolver resolver = new ViewResolver();
+			assertEquals("/a.jsp", resolver.getIndexedTypes().get("ex.Models$A").value());
+
+			Class<?> b = loader.loadClass("ex.Models$B");
+			assertEquals("/b \"q\".jsp", resolver.resolve(b, b, null, null).getViewPath());
+		}
+		finally
+		{
+			Thread.currentThread().setContextClassLoader(previous);
+		}
+	}
+
+	/** */
+	public void testRejectsUnreachableViewSetEntry() throws Exception
+	{
+		Boolean ok = this.compile(new Source("ex.Resource",
+				"package ex;\n"
+				+ "import com.googlecode.htmleasy.ViewSet;\n"
+				+ "import com.googlecode.htmleasy.ViewWith;\n"
+				+ "public class Resource {\n"
+				+ "  @ViewSet({ @ViewWith(value=\"/number.jsp\", ifClass=Number.class), @ViewWith(value=\"/int.jsp\", ifClass=Integer.class) })\n"
+				+ "  public Object get() { return null; }\n"
+				+ "}\n"));
+		if (ok == null)
+			return;
+
+		assertFalse(ok);
+
+		boolean found = false;
+		for (Diagnostic<? extends JavaFileObject> diagnostic : this.diagnostics.getDiagnostics())
+			if (diagnostic.getKind() == Diagnostic.Kind.ERROR && diagnostic.getMessage(null).contains("can never be chosen"))
+				found = true;
+
+		assertTrue(this.diagnostics.getDiagnostics().toString(), found);
+	}
+
+	/** */
+	public void testAcceptsMostSpecificFirst() throws Exception
+	{
+		Boolean ok = this.compile(new Source("ex.Resource",
+				"package ex;\n"
+				+ "import com.googlecode.htmleasy.ViewSet;\n"
+				+ "import com.googlecode.htmleasy.ViewWith;\n"
+				+ "public class Resource {\n"
+				+ "  @ViewSet({ @ViewWith(value=\"/int.jsp\", ifClass=Integer.class), @ViewWith(value=\"/number.jsp\", ifClass=Number.class) })\n"
+				+ "  public Object get() { return null; }\n"
+				+ "}\n"));
+		if (ok == null)
+			return;
+
+		assertTrue(this.diagnostics.getDiagnostics().toString(), ok);
+		assertFalse(new File(this.out, "ex/HtmleasyViewIndex.java").exists());
+	}
+}
@@ -0,0 +1,86 @@
+package com.googlecode.htmleasy.bench;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.core.MediaType;
+
+import com.googlecode.htmleasy.ViewWith;
+import com.googlecode.htmleasy.provider.Resolution;
+import com.googlecode.htmleasy.provider.ViewMappings;
+import com.googlecode.htmleasy.provider.ViewResolver;
+
+/**
+ * Times ViewWriter.isWriteable()'s decision for an endpoint serving HTML and JSON,
+ * with the Accept headers browsers and API clients send mixed together.  Each call
+ * gets a fresh annotation array, as it does from RESTEasy.  Compares the cached
+ * resolve() against resolving from scratch every time, which is what isWriteable()
+ * used to do.
+ *
+ *   mvn -Pbench verify
+ */
+public class ResolutionBenchmark
+{
+	/** */
+	@ViewWith("/order.jsp")
+	public static class Order {}
+
+	/** */
+	public static class Resource
+	{
+		@GET
+		public Order order() { return null; }
+	}
+
+	/** Resolves without the cache */
+	static class Uncached extends ViewResolver
+	{
+		Resolution uncached(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType)
+		{
+			return this.computeResolution(type, genericType, annotations, mediaType, ViewMappings.EMPTY);
+		}
+	}
+
+	/** As RESTEasy offers them to each candidate writer */
+	private static final MediaType[] ACCEPTS = {
+		MediaType.valueOf("text/html"),
+		MediaType.valueOf("application/json"),
+		MediaType.valueOf("application/xhtml+xml"),
+		MediaType.valueOf("text/html;charset=UTF-8"),
+		MediaType.valueOf("application/json;charset=UTF-8"),
+		MediaType.valueOf("*/*"),
+	};
+
+	/** */
+	public static void main(String[] args) throws Exception
+	{
+		int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 2000000;
+		Method method = Resource.class.getMethod("order");
+
+		Uncached resolver = new Uncached();
+
+		for (int round = 0; round < 3; round++)
+		{
+			int sink = 0;
+
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++)
+				if (resolver.resolve(Order.class, Order.class, method.getAnnotations(), ACCEPTS[i % ACCEPTS.length]).isResolvable())
+					sink++;
+			long cached = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < iterations; i++)
+				if (resolver.uncached(Order.class, Order.class, method.getAnnotations(), ACCEPTS[i % ACCEPTS.length]).isResolvable())
+					sink++;
+			long uncached = System.nanoTime() - start;
+
+			System.out.println("round " + round + ": cached " + cached / iterations + " ns/call, uncached "
+					+ uncached / iterations + " ns/call (" + sink + ")");
+		}
+
+		System.out.println("cached entries: " + resolver.getCachedResolutionCount());
+	}
+}
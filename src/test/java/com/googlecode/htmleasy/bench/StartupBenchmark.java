@@ -0,0 +1,139 @@
+package com.googlecode.htmleasy.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Times the first rendered view in fresh JVMs started with and without the Class
+ * Data Sharing archive the cds profile builds.  Each run is a child JVM executing
+ * WarmupMain; the report gives the median of the runs for Warmup.run() itself,
+ * for JVM start to first view, and for the whole process.
+ *
+ *   mvn -Pcds package
+ *
+ * or by hand, with the classpath the archive was dumped with first:
+ *
+ *   java -cp ... com.googlecode.htmleasy.bench.StartupBenchmark target/htmleasy.jsa jar:deps:test-classes [runs]
+ *
+ * The archived run uses -Xshare:on, so an archive the JVM can't map fails the run
+ * instead of quietly measuring a JVM without it.
+ */
+public class StartupBenchmark
+{
+	/** Medians of one configuration, in milliseconds */
+	private static class Result
+	{
+		double warmup;
+		double firstView;
+		double process;
+	}
+
+	/** */
+	public static void main(String[] args) throws Exception
+	{
+		if (args.length < 2)
+		{
+			System.err.println("Usage: StartupBenchmark <archive.jsa> <classpath> [runs]");
+			System.exit(2);
+		}
+
+		String archive = args[0];
+		String classpath = args[1];
+		int runs = (args.length > 2) ? Integer.parseInt(args[2]) : 5;
+
+		if (!new File(archive).isFile())
+			throw new IllegalArgumentException("No archive at " + archive + "; run mvn -Pcds package first");
+
+		Result without = measure(classpath, runs);
+		Result with = measure(classpath, runs, "-Xshare:on", "-XX:SharedArchiveFile=" + archive);
+
+		System.out.println("Startup to first view, median of " + runs + " JVMs:");
+		System.out.println(String.format("  %-18s %10s %12s %10s", "", "Warmup.run", "first view", "process"));
+		print("without archive", without);
+		print("with archive", with);
+		System.out.println(String.format("  %-18s %9.0f%% %11.0f%% %9.0f%%", "saved",
+				saving(without.warmup, with.warmup), saving(without.firstView, with.firstView), saving(without.process, with.process)));
+	}
+
+	/** Starts runs child JVMs with the options and takes the medians */
+	private static Result measure(String classpath, int runs, String... options) throws IOException, InterruptedException
+	{
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+
+		List<String> command = new ArrayList<String>();
+		command.add(java);
+		command.addAll(Arrays.asList(options));
+		command.add("-cp");
+		command.add(classpath);
+		command.add(WarmupMain.class.getName());
+
+		List<Double> warmups = new ArrayList<Double>();
+		List<Double> firstViews = new ArrayList<Double>();
+		List<Double> processes = new ArrayList<Double>();
+
+		for (int i = 0; i < runs; i++)
+		{
+			long start = System.nanoTime();
+			Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+
+			String last = null;
+			StringBuilder output = new StringBuilder();
+			BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+			try
+			{
+				for (String line = in.readLine(); line != null; line = in.readLine())
+				{
+					output.append(line).append('\n');
+					last = line;
+				}
+			}
+			finally
+			{
+				in.close();
+			}
+
+			int exit = process.waitFor();
+			long elapsed = System.nanoTime() - start;
+
+			String[] numbers = (last == null) ? new String[0] : last.trim().split(" ");
+			if (exit != 0 || numbers.length != 2)
+				throw new IllegalStateException("Child JVM " + command + " exited with " + exit + ":\n" + output);
+
+			warmups.add(Long.parseLong(numbers[0]) / 1e6);
+			firstViews.add((double) Long.parseLong(numbers[1]));
+			processes.add(elapsed / 1e6);
+		}
+
+		Result result = new Result();
+		result.warmup = median(warmups);
+		result.firstView = median(firstViews);
+		result.process = median(processes);
+		return result;
+	}
+
+	/** */
+	private static double median(List<Double> values)
+	{
+		Collections.sort(values);
+		int middle = values.size() / 2;
+		return (values.size() % 2 == 1) ? values.get(middle) : (values.get(middle - 1) + values.get(middle)) / 2;
+	}
+
+	/** @return the percentage of before that after saves */
+	private static double saving(double before, double after)
+	{
+		return (before <= 0) ? 0 : 100 * (before - after) / before;
+	}
+
+	/** */
+	private static void print(String name, Result result)
+	{
+		System.out.println(String.format("  %-18s %8.1fms %10.0fms %8.0fms", name, result.warmup, result.firstView, result.process));
+	}
+}
@@ -0,0 +1,22 @@
+package com.googlecode.htmleasy.bench;
+
+import java.lang.management.ManagementFactory;
+
+import com.googlecode.htmleasy.provider.Warmup;
+
+/**
+ * Runs Warmup once in a fresh JVM and prints two numbers on one line: the
+ * nanoseconds Warmup.run() took, and the milliseconds from JVM start to the end of
+ * it.  The cds profile runs it to record the class list; StartupBenchmark runs it
+ * in child JVMs and reads the line.
+ */
+public class WarmupMain
+{
+	/** */
+	public static void main(String[] args) throws Exception
+	{
+		long nanos = Warmup.run();
+		long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+		System.out.println(nanos + " " + uptime);
+	}
+}
@@ -0,0 +1,98 @@
+package com.googlecode.htmleasy.provider;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.googlecode.htmleasy.util.BufferedHttpServletResponse;
+
+/**
+ * The stored form of a cached page, and replaying it with its headers.
+ */
+public class CachedOutputTest extends TestCase
+{
+	/** */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** @return what a view might leave in its buffer */
+	private static BufferedHttpServletResponse rendered() throws Exception
+	{
+		BufferedHttpServletResponse buffered = new BufferedHttpServletResponse();
+		buffered.setContentType("text/html");
+		buffered.addHeader("Vary", "Accept-Language");
+		buffered.addHeader("Link", "</a.css>; rel=preload");
+		buffered.addHeader("Link", "</b.js>; rel=preload");
+		buffered.setHeader("Set-Cookie", "session=alice");
+		buffered.setContentLength(5);
+		buffered.getWriter().print("hello");
+		return buffered;
+	}
+
+	/** */
+	private static CachedOutput cached() throws Exception
+	{
+		BufferedHttpServletResponse buffered = rendered();
+		return new CachedOutput(buffered.toByteArray(), buffered.getContentType(), buffered.getHeaders(), 1000, 2000, 3000, 4000);
+	}
+
+	/** */
+	public void testSetCookieAndBodyHeadersAreNotStored() throws Exception
+	{
+		Map<String, List<String>> headers = cached().getHeaders();
+
+		assertEquals(2, headers.size());
+		assertEquals(Collections.singletonList("Accept-Language"), headers.get("vary"));
+		assertEquals(Arrays.asList("</a.css>; rel=preload", "</b.js>; rel=preload"), headers.get("Link"));
+		assertFalse(headers.containsKey("Set-Cookie"));
+		assertFalse(headers.containsKey("Content-Length"));
+	}
+
+	/** */
+	public void testRoundTrip() throws Exception
+	{
+		CachedOutput original = cached();
+		CachedOutput read = CachedOutput.fromBytes(original.toBytes());
+
+		assertEquals("text/html", read.getContentType());
+		assertEquals(original.getHeaders(), read.getHeaders());
+		assertEquals(1000, read.getCreated());
+		assertEquals(2000, read.getFreshUntil());
+		assertEquals(3000, read.getStaleUntil());
+		assertEquals(4000, read.getErrorUntil());
+
+		byte[] body = new byte[read.getLength()];
+		read.getBody().get(body);
+		assertEquals("hello", new String(body, UTF8));
+	}
+
+	/** */
+	public void testWriteToReplaysHeaders() throws Exception
+	{
+		BufferedHttpServletResponse response = new BufferedHttpServletResponse();
+		CachedOutput.fromBytes(cached().toBytes()).writeTo(response);
+
+		assertEquals("text/html", response.getContentType());
+		assertEquals("Accept-Language", response.getHeader("Vary"));
+		assertEquals(2, response.getHeaders().get("Link").size());
+		assertEquals("5", response.getHeader("Content-Length"));
+		assertNull(response.getHeader("Set-Cookie"));
+		assertTrue(response.getCookies().isEmpty());
+		assertEquals("hello", response.getContentAsString());
+	}
+
+	/** */
+	public void testTruncatedOrForeignBytesAreRejected() throws Exception
+	{
+		byte[] bytes = cached().toBytes();
+		for (int length = 0; length < bytes.length; length++)
+			assertNull(CachedOutput.fromBytes(Arrays.copyOf(bytes, length)));
+
+		byte[] foreign = bytes.clone();
+		foreign[0] = 1;
+		assertNull(CachedOutput.fromBytes(foreign));
+	}
+}
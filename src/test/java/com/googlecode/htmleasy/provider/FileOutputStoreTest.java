@@ -0,0 +1,102 @@
+package com.googlecode.htmleasy.provider;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import junit.framework.TestCase;
+
+/**
+ * Reading values back, and treating corrupt files as misses.
+ */
+public class FileOutputStoreTest extends TestCase
+{
+	/** */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** */
+	private File dir;
+	private FileOutputStore store;
+
+	/** */
+	@Override
+	protected void setUp() throws IOException
+	{
+		this.dir = File.createTempFile("store", "");
+		this.dir.delete();
+		this.store = new FileOutputStore(this.dir, 1 << 20);
+	}
+
+	/** */
+	@Override
+	protected void tearDown()
+	{
+		this.store.clear();
+		this.dir.delete();
+	}
+
+	/** @return the single entry file in the store */
+	private File entry()
+	{
+		File[] files = this.dir.listFiles();
+		assertEquals(1, files.length);
+		return files[0];
+	}
+
+	/** Overwrites the entry with a key length and value length of our choosing */
+	private void corrupt(int keyLength, int valueLength) throws IOException
+	{
+		byte[] key = "page".getBytes(UTF8);
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(this.entry()));
+		try
+		{
+			out.writeInt(keyLength);
+			out.write(key);
+			out.writeInt(valueLength);
+			out.write(new byte[10]);
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/** */
+	public void testRoundTrip()
+	{
+		this.store.put("page", "<p>hello</p>".getBytes(UTF8));
+
+		ByteBuffer value = this.store.get("page");
+		byte[] bytes = new byte[value.remaining()];
+		value.get(bytes);
+		assertEquals("<p>hello</p>", new String(bytes, UTF8));
+		assertNull(this.store.get("other"));
+	}
+
+	/** */
+	public void testHugeLengthIsAMiss() throws IOException
+	{
+		this.store.put("page", new byte[10]);
+
+		this.corrupt(4, Integer.MAX_VALUE);
+		assertNull(this.store.get("page"));
+
+		this.corrupt(Integer.MAX_VALUE, 10);
+		assertNull(this.store.get("page"));
+	}
+
+	/** */
+	public void testNegativeLengthIsAMiss() throws IOException
+	{
+		this.store.put("page", new byte[10]);
+
+		this.corrupt(4, -1);
+		assertNull(this.store.get("page"));
+
+		this.corrupt(-4, 10);
+		assertNull(this.store.get("page"));
+	}
+}
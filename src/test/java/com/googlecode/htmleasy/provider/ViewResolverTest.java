@@ -0,0 +1,183 @@
+package com.googlecode.htmleasy.provider;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.core.MediaType;
+
+import junit.framework.TestCase;
+
+import com.googlecode.htmleasy.View;
+import com.googlecode.htmleasy.ViewEvents;
+import com.googlecode.htmleasy.ViewWith;
+
+/**
+ * Resolution and its cache.  RESTEasy hands the resolver a new copy of the
+ * method's annotations on every request, so the tests do the same.
+ */
+public class ViewResolverTest extends TestCase
+{
+	/** */
+	@ViewWith("/model.jsp")
+	public static class Model {}
+
+	/** */
+	public static class Plain {}
+
+	/** */
+	public static class Resource
+	{
+		@GET
+		public Model model() { return null; }
+
+		@GET
+		@ViewWith("/plain.jsp")
+		public Plain plain() { return null; }
+
+		@GET
+		@ViewWith("/other.jsp")
+		public Plain other() { return null; }
+
+		@GET
+		public View view() { return null; }
+	}
+
+	/** Counts cache outcomes */
+	private static class Counter extends ViewEvents.Adapter
+	{
+		int hits;
+		int misses;
+
+		@Override
+		public void resolved(Class<?> type, MediaType mediaType, boolean resolvable, boolean cached, long nanos)
+		{
+			if (cached)
+				this.hits++;
+			else
+				this.misses++;
+		}
+	}
+
+	/** */
+	private ViewResolver resolver;
+	private Counter counter;
+
+	/** */
+	@Override
+	protected void setUp()
+	{
+		this.resolver = new ViewResolver();
+		this.counter = new Counter();
+		ViewEvents.setResolveThreshold(0, TimeUnit.NANOSECONDS);
+		ViewEvents.setListener(this.counter);
+	}
+
+	/** */
+	@Override
+	protected void tearDown()
+	{
+		ViewEvents.setListener(null);
+		ViewEvents.setResolveThreshold(1, TimeUnit.MILLISECONDS);
+	}
+
+	/** */
+	private static Method method(String name) throws Exception
+	{
+		return Resource.class.getMethod(name);
+	}
+
+	/** */
+	private Resolution resolve(String methodName, Class<?> type, MediaType mediaType) throws Exception
+	{
+		Method method = method(methodName);
+		return this.resolver.resolve(type, method.getGenericReturnType(), method.getAnnotations(), mediaType);
+	}
+
+	/** */
+	public void testFreshAnnotationArraysHitTheCache() throws Exception
+	{
+		assertNotSame(method("plain").getAnnotations(), method("plain").getAnnotations());
+
+		for (int i = 0; i < 100; i++)
+			assertTrue(this.resolve("plain", Plain.class, MediaType.TEXT_HTML_TYPE).isResolvable());
+
+		assertEquals(1, this.resolver.getCachedResolutionCount());
+		assertEquals(1, this.counter.misses);
+		assertEquals(99, this.counter.hits);
+	}
+
+	/** */
+	public void testCachedResolutionIsReused() throws Exception
+	{
+		Resolution first = this.resolve("plain", Plain.class, MediaType.TEXT_HTML_TYPE);
+		Resolution second = this.resolve("plain", Plain.class, MediaType.TEXT_HTML_TYPE);
+		assertSame(first, second);
+	}
+
+	/** */
+	public void testMethodsWithDifferentAnnotationsDontShareEntries() throws Exception
+	{
+		assertEquals("/plain.jsp", this.resolve("plain", Plain.class, null).getViewPath());
+		assertEquals("/other.jsp", this.resolve("other", Plain.class, null).getViewPath());
+		assertEquals(2, this.resolver.getCachedResolutionCount());
+	}
+
+	/** */
+	public void testMediaTypeParametersShareOneEntry() throws Exception
+	{
+		this.resolve("model", Model.class, MediaType.valueOf("text/html"));
+		this.resolve("model", Model.class, MediaType.valueOf("text/html;charset=UTF-8"));
+		this.resolve("model", Model.class, MediaType.valueOf("text/html;q=0.9"));
+
+		assertEquals(1, this.resolver.getCachedResolutionCount());
+	}
+
+	/** */
+	public void testModelsAreOnlyHtml() throws Exception
+	{
+		assertTrue(this.resolve("model", Model.class, MediaType.TEXT_HTML_TYPE).isResolvable());
+		assertTrue(this.resolve("model", Model.class, MediaType.valueOf(MediaType.APPLICATION_XHTML_XML)).isResolvable());
+		assertTrue(this.resolve("model", Model.class, MediaType.WILDCARD_TYPE).isResolvable());
+		assertFalse(this.resolve("model", Model.class, MediaType.APPLICATION_JSON_TYPE).isResolvable());
+	}
+
+	/** */
+	public void testViewablesAreAnyMediaType() throws Exception
+	{
+		assertTrue(this.resolve("view", View.class, MediaType.valueOf("application/rss+xml")).isResolvable());
+		assertTrue(this.resolve("view", View.class, MediaType.APPLICATION_JSON_TYPE).isResolvable());
+	}
+
+	/** */
+	public void testUnannotatedIsNotResolvable() throws Exception
+	{
+		assertFalse(this.resolve("view", Plain.class, MediaType.TEXT_HTML_TYPE).isResolvable());
+	}
+
+	/** */
+	public void testChangingMappingsStartsAFreshCache() throws Exception
+	{
+		this.resolve("model", Model.class, null);
+		assertEquals(1, this.resolver.getCachedResolutionCount());
+
+		this.resolver.overrideView(Model.class, "/override.jsp");
+		assertEquals(0, this.resolver.getCachedResolutionCount());
+		assertEquals("/override.jsp", this.resolve("model", Model.class, null).getViewPath());
+	}
+
+	/** */
+	public void testViewWithLiteralHonoursTheAnnotationContract() throws Exception
+	{
+		ViewWith compiled = Model.class.getAnnotation(ViewWith.class);
+		ViewWith literal = ViewMappings.viewWith("/model.jsp");
+
+		assertTrue(literal.equals(compiled));
+		assertTrue(compiled.equals(literal));
+		assertEquals(compiled.hashCode(), literal.hashCode());
+		assertEquals(literal, ViewMappings.viewWith("/model.jsp"));
+		assertFalse(literal.equals(ViewMappings.viewWith("/model.jsp", "other", false)));
+		assertFalse(literal.equals(ViewMappings.viewWith("/model.jsp", View.DEFAULT_MODEL_NAME, true)));
+		assertFalse(literal.equals(method("plain").getAnnotation(ViewWith.class)));
+	}
+}
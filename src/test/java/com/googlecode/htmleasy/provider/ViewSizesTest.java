@@ -0,0 +1,76 @@
+package com.googlecode.htmleasy.provider;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executor;
+
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+
+import junit.framework.TestCase;
+
+import com.googlecode.htmleasy.CompositeView;
+import com.googlecode.htmleasy.View;
+
+/**
+ * Keys, suggestions and the MXBean.
+ */
+public class ViewSizesTest extends TestCase
+{
+	/** Keeps the tests from starting the default pool */
+	private static final Executor INLINE = new Executor() {
+		public void execute(Runnable command) { command.run(); }
+	};
+
+	/** */
+	public void testCompositesAreKeyedByTheirRegions()
+	{
+		CompositeView home = new CompositeView(INLINE, new View("/header.jsp"), new View("/home.jsp"));
+		CompositeView cart = new CompositeView(INLINE, new View("/header.jsp"), new View("/cart.jsp"));
+
+		assertEquals("composite[/header.jsp,/home.jsp]", ViewSizes.keyOf(home));
+		assertFalse(ViewSizes.keyOf(home).equals(ViewSizes.keyOf(cart)));
+		assertEquals("composite[composite[/header.jsp,/home.jsp],/footer.jsp]",
+				ViewSizes.keyOf(new CompositeView(INLINE, home, new View("/footer.jsp"))));
+	}
+
+	/** */
+	public void testSuggestsOnlyAfterEnoughSamples()
+	{
+		ViewSizes sizes = new ViewSizes();
+		for (int i = 0; i < 15; i++)
+			sizes.record("/a.jsp", 3000);
+
+		assertEquals(0, sizes.suggestBufferSize("/a.jsp"));
+		assertTrue(sizes.getLearnedSizes().isEmpty());
+
+		sizes.record("/a.jsp", 3000);
+		assertEquals(4096, sizes.suggestBufferSize("/a.jsp"));
+
+		sizes.setMaxBufferSize(2048);
+		assertEquals(2048, sizes.suggestBufferSize("/a.jsp"));
+		assertEquals(Integer.valueOf(2048), sizes.getLearnedSizes().get("/a.jsp"));
+	}
+
+	/** */
+	public void testLearnedSizesAreExposedOverJmx() throws Exception
+	{
+		ViewSizes sizes = new ViewSizes();
+		for (int i = 0; i < 16; i++)
+			sizes.record("/a.jsp", 3000);
+
+		ObjectName name = sizes.register("test");
+		assertNotNull(name);
+		try
+		{
+			TabularData learned = (TabularData) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "LearnedSizes");
+			assertEquals(1, learned.size());
+			assertEquals(1, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "ViewCount"));
+		}
+		finally
+		{
+			ViewSizes.unregister(name);
+		}
+
+		assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+	}
+}
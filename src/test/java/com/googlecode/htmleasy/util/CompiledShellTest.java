@@ -0,0 +1,104 @@
+package com.googlecode.htmleasy.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+/**
+ * Splitting rendered output into static segments and holes, and writing it back.
+ */
+public class CompiledShellTest extends TestCase
+{
+	/** */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Fills each hole with its name in square brackets */
+	private static final CompiledShell.HoleWriter NAMES = new CompiledShell.HoleWriter() {
+		public void writeHole(String name, OutputStream out) throws IOException
+		{
+			out.write(("[" + name + "]").getBytes(UTF8));
+		}
+	};
+
+	/** */
+	private static CompiledShell compile(String content)
+	{
+		return CompiledShell.compile(content.getBytes(UTF8), "text/html");
+	}
+
+	/** */
+	private static String write(CompiledShell shell) throws Exception
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		shell.writeTo(out, NAMES);
+		return new String(out.toByteArray(), UTF8);
+	}
+
+	/** */
+	public void testSplitsAroundHoles() throws Exception
+	{
+		CompiledShell shell = compile("<p>" + CompiledShell.placeholder("cart") + "</p><p>" + CompiledShell.placeholder("user") + "</p>");
+
+		assertEquals(Arrays.asList("cart", "user"), shell.getHoleNames());
+		assertEquals("<p></p><p></p>".length(), shell.getStaticSize());
+		assertEquals("<p>[cart]</p><p>[user]</p>", write(shell));
+		assertEquals("text/html", shell.getContentType());
+	}
+
+	/** */
+	public void testHolesAtTheEdgesAndSideBySide() throws Exception
+	{
+		CompiledShell shell = compile(CompiledShell.placeholder("a") + CompiledShell.placeholder("b") + "x" + CompiledShell.placeholder("c"));
+
+		assertEquals(Arrays.asList("a", "b", "c"), shell.getHoleNames());
+		assertEquals(1, shell.getStaticSize());
+		assertEquals("[a][b]x[c]", write(shell));
+	}
+
+	/** */
+	public void testNoHoles() throws Exception
+	{
+		String page = "<html><!-- just a comment --></html>";
+		CompiledShell shell = compile(page);
+
+		assertEquals(Collections.emptyList(), shell.getHoleNames());
+		assertEquals(page.length(), shell.getStaticSize());
+		assertEquals(page, write(shell));
+
+		assertEquals("", write(compile("")));
+	}
+
+	/** */
+	public void testUnterminatedMarkerIsStatic() throws Exception
+	{
+		String page = "<p>" + CompiledShell.placeholder("cart") + "</p><!--htmleasy:broken";
+		CompiledShell shell = compile(page);
+
+		assertEquals(Collections.singletonList("cart"), shell.getHoleNames());
+		assertEquals("<p>[cart]</p><!--htmleasy:broken", write(shell));
+	}
+
+	/** */
+	public void testNamesAreTrimmedAndMayRepeat() throws Exception
+	{
+		CompiledShell shell = compile("<!--htmleasy: cart -->|<!--htmleasy:cart-->");
+
+		assertEquals(Arrays.asList("cart", "cart"), shell.getHoleNames());
+		assertEquals("[cart]|[cart]", write(shell));
+	}
+
+	/** */
+	public void testNonAsciiStaticContentIsCopiedAsBytes() throws Exception
+	{
+		String page = "caf\u00e9 " + CompiledShell.placeholder("x") + " \u20ac";
+		CompiledShell shell = compile(page);
+
+		assertEquals(page.getBytes(UTF8).length - CompiledShell.placeholder("x").length(), shell.getStaticSize());
+		assertEquals("caf\u00e9 [x] \u20ac", write(shell));
+	}
+}
@@ -0,0 +1,58 @@
+package com.googlecode.htmleasy.util;
+
+import junit.framework.TestCase;
+
+/**
+ * Least recently used eviction of shells.
+ */
+public class FragmentCacheTest extends TestCase
+{
+	/** */
+	private static CompiledShell shell()
+	{
+		return CompiledShell.compile(new byte[0], null);
+	}
+
+	/** */
+	public void testEvictsLeastRecentlyUsed()
+	{
+		FragmentCache cache = new FragmentCache(2);
+		CompiledShell a = shell();
+		cache.put("a", a);
+		cache.put("b", shell());
+
+		assertSame(a, cache.get("a"));
+		cache.put("c", shell());
+
+		assertEquals(2, cache.size());
+		assertSame(a, cache.get("a"));
+		assertNull(cache.get("b"));
+		assertNotNull(cache.get("c"));
+	}
+
+	/** */
+	public void testInvalidateAndClear()
+	{
+		FragmentCache cache = new FragmentCache();
+		cache.put("a", shell());
+		cache.put("b", shell());
+
+		cache.invalidate("a");
+		assertNull(cache.get("a"));
+		assertEquals(1, cache.size());
+
+		cache.clear();
+		assertEquals(0, cache.size());
+	}
+
+	/** */
+	public void testRejectsNonPositiveBound()
+	{
+		try
+		{
+			new FragmentCache(0);
+			fail();
+		}
+		catch (IllegalArgumentException ex) {}
+	}
+}
@@ -0,0 +1,168 @@
+package com.googlecode.htmleasy.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Fuzzes the writer against a reference: escape the text with String.replace(),
+ * join everything up and let String.getBytes() encode it.  Random mixes of markup,
+ * escaped text, multi-byte characters and surrogates, split across calls and
+ * small buffers, must come out byte for byte the same.
+ */
+public class HtmlEscapingWriterTest extends TestCase
+{
+	/** Runs per test; each is a different seed */
+	private static final int RUNS = 2000;
+
+	/** Weighted towards the characters the writer treats specially */
+	private static final char[] ALPHABET = {
+		'a', 'b', 'z', ' ', '\n', '\t', '0', '/', '=', ';', '#',
+		'&', '<', '>', '"', '\'',
+		'\u007f', '\u0080', '\u00e9', '\u07ff', '\u0800', '\u20ac', '\uffff',
+		'\ud83d', '\ude00', '\udbff', '\udfff',
+	};
+
+	/** The reference escaping */
+	private static String escaped(String text)
+	{
+		return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;").replace("'", "&#39;");
+	}
+
+	/** */
+	private static String randomText(Random random)
+	{
+		char[] chars = new char[random.nextInt(random.nextInt(8) == 0 ? 200 : 12)];
+		for (int i = 0; i < chars.length; i++)
+			chars[i] = ALPHABET[random.nextInt(ALPHABET.length)];
+
+		return new String(chars);
+	}
+
+	/**
+	 * Drives the writer with a random sequence of calls.
+	 *
+	 * @return what the reference says the writer should have produced
+	 */
+	private static String drive(HtmlEscapingWriter out, Random random) throws IOException
+	{
+		StringBuilder expected = new StringBuilder();
+		int calls = random.nextInt(30);
+		for (int call = 0; call < calls; call++)
+		{
+			String text = randomText(random);
+			int off = (text.length() == 0) ? 0 : random.nextInt(text.length());
+			int len = random.nextInt(text.length() - off + 1);
+
+			switch (random.nextInt(9))
+			{
+				case 0:
+					out.write(text);
+					expected.append(text);
+					break;
+				case 1:
+					out.write(text, off, len);
+					expected.append(text, off, off + len);
+					break;
+				case 2:
+					out.write(text.toCharArray(), off, len);
+					expected.append(text, off, off + len);
+					break;
+				case 3:
+					if (text.length() > 0)
+					{
+						out.write(text.charAt(0));
+						expected.append(text.charAt(0));
+					}
+					break;
+				case 4:
+					out.escape(text);
+					expected.append(escaped(text));
+					break;
+				case 5:
+					out.escape(text.toCharArray(), off, len);
+					expected.append(escaped(text.substring(off, off + len)));
+					break;
+				case 6:
+					Object value = random.nextBoolean() ? text : null;
+					out.escape(value);
+					if (value != null)
+						expected.append(escaped(text));
+					break;
+				case 7:
+					Writer escaping = out.escaping();
+					escaping.write(text, off, len);
+					expected.append(escaped(text.substring(off, off + len)));
+					break;
+				default:
+					out.flush();
+			}
+		}
+
+		return expected.toString();
+	}
+
+	/** */
+	public void testEncodingMatchesReference() throws Exception
+	{
+		for (int run = 0; run < RUNS; run++)
+		{
+			Random random = new Random(run);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			HtmlEscapingWriter out = new HtmlEscapingWriter(bytes, 16 + random.nextInt(48));
+
+			String expected = drive(out, random);
+			out.close();
+
+			byte[] want = expected.getBytes("UTF-8");
+			if (!Arrays.equals(want, bytes.toByteArray()))
+				fail("Seed " + run + ": expected " + Arrays.toString(want) + " but got " + Arrays.toString(bytes.toByteArray()));
+		}
+	}
+
+	/** */
+	public void testWriterModeOnlyEscapes() throws Exception
+	{
+		for (int run = 0; run < RUNS; run++)
+		{
+			Random random = new Random(run);
+			StringWriter chars = new StringWriter();
+			HtmlEscapingWriter out = new HtmlEscapingWriter(chars);
+
+			String expected = drive(out, random);
+			out.close();
+
+			assertEquals("Seed " + run, expected, chars.toString());
+		}
+	}
+
+	/** */
+	public void testSurrogatePairSplitAcrossCalls() throws Exception
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		HtmlEscapingWriter out = new HtmlEscapingWriter(bytes, 16);
+		out.write("\ud83d");
+		out.flush();
+		out.escape("\ude00<");
+		out.close();
+
+		assertEquals("\ud83d\ude00&lt;", new String(bytes.toByteArray(), "UTF-8"));
+	}
+
+	/** */
+	public void testUnpairedSurrogatesBecomeQuestionMarks() throws Exception
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		HtmlEscapingWriter out = new HtmlEscapingWriter(bytes);
+		out.write("a\ude00b\ud83d&");
+		out.escape("\ud83d");
+		out.close();
+
+		assertEquals("a?b?&?", new String(bytes.toByteArray(), "UTF-8"));
+	}
+}
@@ -0,0 +1,89 @@
+package com.googlecode.htmleasy.util;
+
+import junit.framework.TestCase;
+
+/**
+ * What the minifier may and may not touch.
+ */
+public class HtmlMinifierTest extends TestCase
+{
+	/** */
+	public void testCollapsesWhitespace()
+	{
+		assertEquals("<ul> <li>a</li>\n<li>b</li> </ul>", HtmlMinifier.minify("<ul>  <li>a</li>\n\t\t<li>b</li>   </ul>"));
+	}
+
+	/** */
+	public void testDropsPlainComments()
+	{
+		assertEquals("<p>a</p> <p>b</p>", HtmlMinifier.minify("<p>a</p> <!-- gone --> <p>b</p>"));
+		assertEquals("<p>a</p>", HtmlMinifier.minify("<p>a<%-- gone --%></p>"));
+	}
+
+	/** */
+	public void testKeepsCommentsTheContainerOrBrowserReads()
+	{
+		String[] kept = {
+			"<!--[if IE]><p>ie</p><![endif]-->",
+			"<!-- <%= request.getRequestURI() %> -->",
+			"<!-- ${model.name} -->",
+			"<!-- #{model.name} -->",
+			"<!-- <c:import url=\"/ad.jsp\"/> -->",
+			"<!-- <jsp:include page=\"/ad.jsp\"/> -->",
+			"<!-- </my-tags:region> -->",
+		};
+
+		for (String comment : kept)
+			assertEquals(comment, HtmlMinifier.minify(comment));
+	}
+
+	/** */
+	public void testDropsCommentsWithPlainTags()
+	{
+		assertEquals("", HtmlMinifier.minify("<!-- <div class=\"old\">a:b</div> -->"));
+		assertEquals("", HtmlMinifier.minify("<!-- 1 < 2:3 -->"));
+	}
+
+	/** */
+	public void testLeavesRawElementsAlone()
+	{
+		String[] raw = {
+			"<pre>  a\n   b  </pre>",
+			"<textarea>  x  </textarea>",
+			"<script>if (a  <  b) { x = '  '; }</script>",
+			"<style>p  {  color: red  }</style>",
+			"<![CDATA[  a  ]]>",
+		};
+
+		for (String element : raw)
+			assertEquals(element, HtmlMinifier.minify(element));
+	}
+
+	/** */
+	public void testLeavesTagsAndJspAlone()
+	{
+		String[] untouched = {
+			"<a title=\"two  spaces\" href='x'>",
+			"<%@ page contentType=\"text/html\" %>",
+			"<%  if (a  <  b) {  %>",
+			"${fn:join(list,  ',  ')}",
+			"<input value=\"${ model.name }\">",
+		};
+
+		for (String text : untouched)
+			assertEquals(text, HtmlMinifier.minify(text));
+	}
+
+	/** */
+	public void testTextLessThanIsNotATag()
+	{
+		assertEquals("a < b <p>", HtmlMinifier.minify("a  <  b  <p>"));
+	}
+
+	/** */
+	public void testUnterminatedConstructsAreCopied()
+	{
+		assertEquals("<!-- ${a}", HtmlMinifier.minify("<!-- ${a}"));
+		assertEquals("<% open", HtmlMinifier.minify("<% open"));
+	}
+}
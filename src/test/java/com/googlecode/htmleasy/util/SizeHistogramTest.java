@@ -0,0 +1,75 @@
+package com.googlecode.htmleasy.util;
+
+import junit.framework.TestCase;
+
+/**
+ * Buckets, percentiles and decay.
+ */
+public class SizeHistogramTest extends TestCase
+{
+	/** */
+	public void testEmptyHistogramSuggestsNothing()
+	{
+		SizeHistogram histogram = new SizeHistogram(60000);
+
+		assertEquals(0, histogram.getSamples());
+		assertEquals(0, histogram.percentile(0.9));
+	}
+
+	/** */
+	public void testPercentileCoversTheSize()
+	{
+		long[] sizes = { 1, 1000, 1023, 1024, 5000, 70000, 1L << 40 };
+
+		for (long size : sizes)
+		{
+			SizeHistogram histogram = new SizeHistogram(60000);
+			histogram.record(size);
+
+			long suggested = histogram.percentile(0.9);
+			assertTrue(size + " -> " + suggested, suggested >= Math.min(size, 1L << 31));
+			assertTrue(size + " -> " + suggested, suggested <= Math.max(2 * size, 1));
+		}
+	}
+
+	/** */
+	public void testPercentilePicksTheRightBucket()
+	{
+		SizeHistogram histogram = new SizeHistogram(60000);
+		for (int i = 0; i < 80; i++)
+			histogram.record(3000);
+		for (int i = 0; i < 20; i++)
+			histogram.record(100000);
+
+		assertEquals(100, histogram.getSamples());
+		assertEquals(4096, histogram.percentile(0.5));
+		assertEquals(4096, histogram.percentile(0.8));
+		assertEquals(131072, histogram.percentile(0.9));
+	}
+
+	/** */
+	public void testZeroAndNegativeSizesGoInTheFirstBucket()
+	{
+		SizeHistogram histogram = new SizeHistogram(60000);
+		histogram.record(0);
+		histogram.record(-5);
+
+		assertEquals(1, histogram.percentile(1.0));
+	}
+
+	/** */
+	public void testOldSamplesDecay() throws Exception
+	{
+		SizeHistogram histogram = new SizeHistogram(5);
+		for (int i = 0; i < 100; i++)
+			histogram.record(100000);
+
+		// Twenty half-lives later the old samples weigh next to nothing
+		Thread.sleep(100);
+		for (int i = 0; i < 10; i++)
+			histogram.record(3000);
+
+		assertEquals(110, histogram.getSamples());
+		assertEquals(4096, histogram.percentile(0.9));
+	}
+}